@@ -193,10 +193,12 @@ public abstract class ImageCrawler
         mLocalTransforms = controller.mOptions.mLocalTransforms;
 
         // Only create remote data source if remote transforms
-        // are enabled.
+        // are enabled, which sends the server the deadline of each
+        // request if one is set.
         if (!mLocalTransforms) {
             mRemoteDataSource =
-                    new RemoteDataSource(mController.mPlatform.getBaseUrl());
+                    new RemoteDataSource(mController.mPlatform.getBaseUrl(),
+                                         controller.mOptions.mRemoteDeadline);
         }
     }
 
@@ -241,10 +243,15 @@ public abstract class ImageCrawler
     /**
      * Sets a flag that is periodically check at strategic
      * locations to determine if all processing should be
-     * cancelled.
+     * cancelled, and cancels any remote transform calls in
+     * flight so the server stops working on them.
      */
     public void stopCrawl() {
         mCancelled = true;
+
+        if (mRemoteDataSource != null) {
+            mRemoteDataSource.cancelAll();
+        }
     }
 
     /**
@@ -254,7 +254,11 @@ public class ReactorCrawler
         // buildMultipartBodyPart(), getTransformNames(),
         // applyReactorTransforms(), and createImage() helper methods, as
         // well as use Mono and Flux operators, such as flatMapMany()
-        // and map(), respectively.
+        // and map(), respectively.  To bound how long each image
+        // takes, call the RemoteDataSource applyReactorTransforms()
+        // overload with a maxLatency instead, which emits the images
+        // the server finished in time so they're cached at once, and
+        // retries only the transforms missing from a partial response.
 
         // Get remote microservices API instance.
         RemoteDataSource.TransformApi api = getRemoteDataSource().getApi();
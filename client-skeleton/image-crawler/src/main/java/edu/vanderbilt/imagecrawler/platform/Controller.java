@@ -4,6 +4,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.InputStream;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.function.Consumer;
@@ -246,6 +247,19 @@ public class Controller {
             return this;
         }
 
+        /**
+         * Sets the {@code remoteDeadline} and returns a reference to this Builder so that
+         * the methods can be chained together.
+         *
+         * @param val how long each remote transform request may take, or null to wait
+         *            as long as the server takes.
+         * @return a reference to this Builder
+         */
+        public Builder remoteDeadline(Duration val) {
+            mOptionsBuilder.remoteDeadline(val);
+            return this;
+        }
+
         /**
          * Sets the {@code downloadPath} and returns a reference to this Builder so that the
          * methods can be chained together.
@@ -1,6 +1,7 @@
 package edu.vanderbilt.imagecrawler.platform;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -56,7 +57,7 @@ public class JavaImage implements PlatformImage {
     public void setImage(InputStream inputStream, Cache.Item item) {
         try {
             mSize = inputStream.available();
-            mImage = ImageIO.read(inputStream);
+            mImage = toRgbImage(ImageIO.read(inputStream));
             mCacheItem = item;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -141,6 +142,54 @@ public class JavaImage implements PlatformImage {
         return mCacheItem;
     }
 
+    /**
+     * Converts 8-bit grayscale and palette images, which the server
+     * may send to save bandwidth, into RGB images so that transforms
+     * can use getRGB() and setRGB() without losing any colors.
+     * <p>
+     * This also applies to grayscale and palette images downloaded
+     * from the web, which were kept in their own format before.  A
+     * transform such as sepia colors their pixels, which setRGB()
+     * used to map back to the nearest gray level or palette entry.
+     * Gray images now also read as their stored gray levels, as
+     * browsers show them, rather than as getRGB() converts them from
+     * the linear gray color space.
+     */
+    private static BufferedImage toRgbImage(BufferedImage image) {
+        if (image == null) {
+            return null;
+        }
+
+        boolean gray = image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        if (!gray && !(image.getColorModel() instanceof IndexColorModel)) {
+            return image;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels;
+
+        if (gray) {
+            // Use the gray levels directly, since getRGB() would gamma
+            // correct them for the linear gray color space.
+            pixels = image.getRaster().getSamples(0, 0, width, height, 0, (int[]) null);
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = 0xFF000000 | pixels[i] * 0x010101;
+            }
+        } else {
+            pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        }
+
+        BufferedImage result = new BufferedImage(
+                width,
+                height,
+                image.getColorModel().hasAlpha()
+                        ? BufferedImage.TYPE_INT_ARGB
+                        : BufferedImage.TYPE_INT_RGB);
+        result.setRGB(0, 0, width, height, pixels, 0, width);
+        return result;
+    }
+
     private int updateProgress(Cache.Item newItem, float progress, int lastProgress) {
         int percent = (int) (progress * 100);
         if (percent > lastProgress) {
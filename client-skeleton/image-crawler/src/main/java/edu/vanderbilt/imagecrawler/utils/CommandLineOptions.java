@@ -1,5 +1,7 @@
 package edu.vanderbilt.imagecrawler.utils;
 
+import java.time.Duration;
+
 /**
  * This class provides a static command line argument crawler that
  * builds an immutable options object.
@@ -34,6 +36,9 @@ public class CommandLineOptions {
                     case "-o":
                         builder.downloadPath(argv[++argc]);
                         break;
+                    case "-t":
+                        builder.remoteDeadline(Duration.ofMillis(Long.parseLong(argv[++argc])));
+                        break;
                     case "-h":
                     default:
                         printUsage();
@@ -55,5 +60,6 @@ public class CommandLineOptions {
                                    "or \"file://android_assets/...\" " +
                                    "or \"file://java_resources/...\"");
         System.out.println("-o [downloadPath]");
+        System.out.println("-t [remoteDeadlineMillis]");
     }
 }
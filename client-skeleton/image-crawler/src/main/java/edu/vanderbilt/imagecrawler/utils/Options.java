@@ -2,6 +2,8 @@ package edu.vanderbilt.imagecrawler.utils;
 
 import edu.vanderbilt.imagecrawler.platform.Platform;
 
+import java.time.Duration;
+
 /**
  * Immutable data class containing all crawling options. To avoid
  * unnecessary boiler-plate code, this class and all final
@@ -46,12 +48,22 @@ public class Options {
      */
     public final String mDownloadDirName;
 
+    /**
+     * How long each remote transform request may take before it's
+     * abandoned, which is also sent to the server so it stops
+     * working on it.
+     * <p>
+     * Default: null (wait as long as the server takes).
+     */
+    public final Duration mRemoteDeadline;
+
     private Options(Builder builder) {
         mMaxDepth = builder.mMaxDepth;
         mRootUrl = builder.mRootUrl;
         mDownloadDirName = builder.mDownloadDirName;
         mDebug = builder.mDiagnosticsEnabled;
         mLocalTransforms = builder.mLocalTransforms;
+        mRemoteDeadline = builder.mRemoteDeadline;
     }
 
     /**
@@ -82,6 +94,7 @@ public class Options {
         private String mDownloadDirName = DEFAULT_DOWNLOAD_DIR_NAME;
         private boolean mDiagnosticsEnabled = false;
         private boolean mLocalTransforms = true;
+        private Duration mRemoteDeadline = null;
 
         private Builder() {
         }
@@ -125,6 +138,18 @@ public class Options {
             return this;
         }
 
+        /**
+         * Sets the {@code remoteDeadline} and returns a reference to this Builder so that
+         * the methods can be chained together.
+         *
+         * @param val the {@code remoteDeadline} to set, or null for none
+         * @return a reference to this Builder
+         */
+        public Builder remoteDeadline(Duration val) {
+            mRemoteDeadline = val;
+            return this;
+        }
+
         /**
          * Sets the {@code downloadPath} and returns a reference to this Builder so that the
          * methods can be chained together.
@@ -1,12 +1,18 @@
 package edu.vanderbilt.imagecrawler.web;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.jakewharton.retrofit2.adapter.reactor.ReactorCallAdapterFactory;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import edu.vanderbilt.imagecrawler.crawlers.ImageCrawler;
 import edu.vanderbilt.imagecrawler.utils.IOUtils;
@@ -16,17 +22,22 @@ import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
 import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
 import okhttp3.logging.HttpLoggingInterceptor;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import retrofit2.Retrofit;
 import retrofit2.adapter.rxjava3.RxJava3CallAdapterFactory;
 import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.http.Headers;
 import retrofit2.http.Multipart;
 import retrofit2.http.POST;
 import retrofit2.http.Part;
 import retrofit2.http.Query;
+import retrofit2.http.Streaming;
 
 import static io.reactivex.rxjava3.schedulers.Schedulers.io;
+import static reactor.core.scheduler.Schedulers.boundedElastic;
 import static reactor.core.scheduler.Schedulers.parallel;
 
 /**
@@ -40,11 +51,32 @@ public class RemoteDataSource {
     public static final Duration DEFAULT_TIMEOUT =
             Duration.ofMinutes(30);
 
+    /**
+     * Request header that tells the server how many milliseconds are
+     * left before this client gives up on a request, so the server
+     * can drop work that nobody is waiting for.
+     */
+    public static final String DEADLINE_HEADER = "X-Deadline-Millis";
+
     /**
      * API instances.
      */
     private final TransformApi api;
 
+    /**
+     * The HTTP client that makes all the API calls.
+     */
+    private final OkHttpClient httpClient;
+
+    /**
+     * Gson instance used by the JSON converter and to parse streamed
+     * transformed images.
+     */
+    private static final Gson gson = new GsonBuilder()
+            .setDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZZ")
+            .setLenient()
+            .create();
+
     /**
      * Project Reactor adapter needed to obtain info from the server.
      */
@@ -61,7 +93,39 @@ public class RemoteDataSource {
      * The constructor initializes the fields.
      */
     public RemoteDataSource(String baseUrl) {
-        api = buildApi(baseUrl);
+        this(baseUrl, null);
+    }
+
+    /**
+     * The constructor initializes the fields.
+     *
+     * @param baseUrl  The server endpoint base URL
+     * @param deadline How long each request may take before it's
+     *                 abandoned, which is also sent to the server, or
+     *                 null to wait as long as the server takes
+     */
+    public RemoteDataSource(String baseUrl, Duration deadline) {
+        this(baseUrl, buildHttpClient(deadline));
+    }
+
+    /**
+     * The constructor initializes the fields.
+     *
+     * @param baseUrl    The server endpoint base URL
+     * @param httpClient The client that makes all the API calls
+     */
+    RemoteDataSource(String baseUrl, OkHttpClient httpClient) {
+        this.httpClient = httpClient;
+        api = buildApi(baseUrl, httpClient);
+    }
+
+    /**
+     * @return How long each request may take before it's abandoned,
+     * or null if there's no deadline.
+     */
+    public Duration getDeadline() {
+        int millis = httpClient.callTimeoutMillis();
+        return millis == 0 ? null : Duration.ofMillis(millis);
     }
 
     /**
@@ -71,6 +135,15 @@ public class RemoteDataSource {
         return api;
     }
 
+    /**
+     * Cancels all queued and in-flight API calls, which closes their
+     * connections so the server stops working on them too.  Calls
+     * made afterwards are not affected.
+     */
+    public void cancelAll() {
+        httpClient.dispatcher().cancelAll();
+    }
+
     /**
      * Builds a {@link MultipartBody.Part} containing the passed image bytes.
      *
@@ -81,6 +154,25 @@ public class RemoteDataSource {
     public MultipartBody.Part buildMultipartBodyPart(
             ImageCrawler imageCrawler,
             Image image) {
+        return buildMultipartBodyPart(
+                imageCrawler, image, "image", image.getFileName());
+    }
+
+    /**
+     * Builds a {@link MultipartBody.Part} containing the passed image
+     * bytes under the given part and file names.
+     *
+     * @param imageCrawler The image crawler instance.
+     * @param image        The base image to be transformed.
+     * @param partName     The name of the multipart form field.
+     * @param fileName     The file name the server tags results with.
+     * @return A {@link MultipartBody.Part} instance.
+     */
+    private MultipartBody.Part buildMultipartBodyPart(
+            ImageCrawler imageCrawler,
+            Image image,
+            String partName,
+            String fileName) {
 
         // Get an input stream for the source image.
         InputStream inputStream = imageCrawler
@@ -89,16 +181,162 @@ public class RemoteDataSource {
         // Get the image bytes from the input stream.
         byte[] bytes = IOUtils.toBytes(inputStream);
 
-        // Get the image file name (key).
-        String fileName = image.getFileName();
-
         // Build a multipart request body containing the image bytes.
         RequestBody requestBody = RequestBody
                 .create(bytes, MediaType.parse("multipart/form-data"));
 
         // Create the request part for the image bytes request body.
         return MultipartBody.Part
-                .createFormData("image", fileName, requestBody);
+                .createFormData(partName, fileName, requestBody);
+    }
+
+    /**
+     * Applies all passed transforms to the base image and emits each
+     * {@link TransformedImage} as soon as the server streams it back,
+     * so the first result arrives after the fastest transform rather
+     * than the slowest one.
+     *
+     * @param transforms The transforms to perform on the passed image
+     * @param image      The image to transform
+     * @return A {@link Flux} that emits {@link TransformedImage} objects
+     */
+    public Flux<TransformedImage> applyReactorTransformsStream(
+            List<String> transforms,
+            MultipartBody.Part image) {
+        return fromJsonLines(api.applyTransformsStream(transforms, image));
+    }
+
+    /**
+     * Applies all passed transforms to a batch of images in one
+     * request and emits each {@link TransformedImage} as soon as the
+     * server streams it back.  The server tags each result with the
+     * file name of its image part, which must be unique within the
+     * batch.
+     *
+     * @param transforms The transforms to perform on the passed images
+     * @param images     The images to transform
+     * @return A {@link Flux} that emits {@link TransformedImage} objects
+     */
+    public Flux<TransformedImage> applyReactorTransformsBatch(
+            List<String> transforms,
+            List<MultipartBody.Part> images) {
+        return fromJsonLines(api.applyTransformsBatch(transforms, images));
+    }
+
+    /**
+     * Groups the passed images into batches of up to {@code
+     * batchSize}, or however many arrive within {@code linger}, and
+     * transforms each batch with one {@link
+     * #applyReactorTransformsBatch} request, which costs far fewer
+     * round trips than a request per image when crawling many small
+     * images.
+     *
+     * @param crawler    Image crawler instance
+     * @param transforms The transforms to perform on each image
+     * @param images     The images to transform
+     * @param batchSize  The most images sent in one request
+     * @param linger     The longest an image waits for its batch to fill
+     * @return A {@link Flux} that emits a cacheable transformed {@link
+     * Image} for each image and transform
+     */
+    public Flux<Image> applyReactorTransformsBatched(
+            ImageCrawler crawler,
+            List<String> transforms,
+            Flux<Image> images,
+            int batchSize,
+            Duration linger) {
+        return images
+                .bufferTimeout(batchSize, linger)
+                .flatMap(batch -> {
+                    // Tag each part with its index, since images on
+                    // different pages can share a file name.
+                    Map<String, Image> tags = new HashMap<>();
+                    List<MultipartBody.Part> parts = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        Image image = batch.get(i);
+                        String tag = i + "-" + image.getFileName();
+                        tags.put(tag, image);
+                        parts.add(buildMultipartBodyPart(crawler, image, "images", tag));
+                    }
+
+                    return applyReactorTransformsBatch(transforms, parts)
+                            .filter(result -> !result.isMissing()
+                                    && tags.containsKey(result.getSourceName()))
+                            .map(result -> createTransformedImage(
+                                    crawler,
+                                    tags.get(result.getSourceName()),
+                                    result));
+                });
+    }
+
+    /**
+     * Returns a {@link Flux} that emits one {@link TransformedImage}
+     * per line of a newline-delimited JSON response as soon as it's
+     * read.
+     */
+    private static Flux<TransformedImage> fromJsonLines(
+            Mono<ResponseBody> response) {
+        return response
+                // Reading the body blocks, so keep it off the
+                // parallel scheduler.
+                .publishOn(boundedElastic())
+
+                // Emit one TransformedImage per JSON line.
+                .flatMapMany(body -> Flux.using(
+                        () -> new BufferedReader(body.charStream()),
+                        reader -> Flux.fromStream(reader.lines()),
+                        reader -> body.close()))
+                .filter(line -> !line.trim().isEmpty())
+                .map(line -> gson.fromJson(line, TransformedImage.class));
+    }
+
+    /**
+     * Applies all passed transforms to the base image, but only waits
+     * {@code maxLatency} for the server to finish them.  The images
+     * done in time are emitted at once so they can be cached, and the
+     * transforms that are missing from the partial response are
+     * requested again, up to {@code retries} more times.  The entries
+     * of the transforms still missing after the last retry are
+     * emitted too, so the caller can tell why they're missing.
+     *
+     * @param transforms The transforms to perform on the passed image
+     * @param image      The image to transform
+     * @param maxLatency The longest the server may take for each request
+     * @param retries    How many more times missing transforms are
+     *                   requested
+     * @return A {@link Flux} that emits the {@link TransformedImage}
+     * objects that were done, followed by any that are still missing
+     */
+    public Flux<TransformedImage> applyReactorTransforms(
+            List<String> transforms,
+            MultipartBody.Part image,
+            Duration maxLatency,
+            int retries) {
+        return api
+                .applyReactorTransforms(transforms, maxLatency.toMillis(), image)
+                .flatMapMany(results -> {
+                    // Emit what's done and retry only what's missing.
+                    List<String> missing = results
+                            .stream()
+                            .filter(TransformedImage::isMissing)
+                            .map(TransformedImage::getTransformName)
+                            .collect(Collectors.toList());
+
+                    Flux<TransformedImage> done = Flux
+                            .fromIterable(results)
+                            .filter(result -> !result.isMissing());
+
+                    if (missing.isEmpty()) {
+                        return done;
+                    } else if (retries <= 0) {
+                        // Give up on the missing transforms, but say so.
+                        return done.concatWith(Flux
+                                .fromIterable(results)
+                                .filter(TransformedImage::isMissing));
+                    }
+                    return done.concatWith(applyReactorTransforms(
+                            missing, image, maxLatency, retries - 1));
+                });
     }
 
     /**
@@ -121,19 +359,33 @@ public class RemoteDataSource {
     }
 
     /**
+     * @param deadline How long each request may take before it's
+     *                 abandoned, or null if there's no deadline
      * @return An OkHttpClient that supports token authentication.
      */
-    private static OkHttpClient buildHttpClient() {
+    static OkHttpClient buildHttpClient(Duration deadline) {
         // Create a custom logging interceptor.
         HttpLoggingInterceptor httpLoggingInterceptor =
                 new HttpLoggingInterceptor();
         httpLoggingInterceptor
                 .setLevel(HttpLoggingInterceptor.Level.HEADERS);
 
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+
+        if (deadline != null) {
+            // Tell the server how long this client will wait.
+            builder.addInterceptor(chain -> chain.proceed(chain
+                    .request()
+                    .newBuilder()
+                    .header(DEADLINE_HEADER,
+                            Long.toString(deadline.toMillis()))
+                    .build()))
+                    .callTimeout(deadline);
+        }
+
         // Build the HTTP client using with the custom logging
         // interceptor.
-        return new OkHttpClient
-                .Builder()
+        return builder
                 .addInterceptor(httpLoggingInterceptor)
                 .connectTimeout(DEFAULT_TIMEOUT)
                 .readTimeout(DEFAULT_TIMEOUT)
@@ -145,24 +397,24 @@ public class RemoteDataSource {
      * Builds an RxJava compatible {@link TransformApi} instance
      * that supports token authentication.
      *
-     * @param baseUrl The server endpoint base URL
+     * @param baseUrl    The server endpoint base URL
+     * @param httpClient The client that makes the API calls
      * @return A RxJava compatible {@link TransformApi} instance
      * that supports token authentication
      */
-    private static TransformApi buildApi(String baseUrl) {
+    private static TransformApi buildApi(String baseUrl,
+                                         OkHttpClient httpClient) {
         // Build an ImageFilterApi API instance that uses an Rx
         // adapter for API calls.
         return new Retrofit
                 .Builder()
                 .baseUrl(baseUrl)
-                .client(buildHttpClient())
+                .client(httpClient)
                 .addCallAdapterFactory(rxAdapter)
                 .addCallAdapterFactory(fluxAdapter)
-                .addConverterFactory(GsonConverterFactory
-                        .create(new GsonBuilder()
-                                .setDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZZ")
-                                .setLenient()
-                                .create()))
+                // Decode binary frames before falling back to JSON.
+                .addConverterFactory(new TransformedImageFramesConverterFactory())
+                .addConverterFactory(GsonConverterFactory.create(gson))
                 .build()
                 .create(TransformApi.class);
     }
@@ -173,6 +425,19 @@ public class RemoteDataSource {
      */
     public interface TransformApi {
         String APPLY_TRANSFORMS = "/apply-transforms";
+        String APPLY_TRANSFORMS_STREAM = "/apply-transforms-stream";
+        String APPLY_TRANSFORMS_BATCH = "/apply-transforms-batch";
+
+        /**
+         * Media type of newline-delimited JSON.
+         */
+        String NDJSON = "application/x-ndjson";
+
+        /**
+         * Media type of the binary frame stream that carries raw image
+         * bytes instead of base64 encoded JSON.
+         */
+        String TRANSFORMED_IMAGE_FRAMES = "application/x-transformed-images";
 
         /**
          * Asynchronously applies all passed transforms to the base
@@ -195,6 +460,90 @@ public class RemoteDataSource {
         applyReactorTransforms(@Query("transforms") List<String> transforms,
                                @Part MultipartBody.Part image);
 
+        /**
+         * Asynchronously applies all passed transforms to the base
+         * image, but has the server respond after {@code
+         * maxLatencyMs} with the images that are done by then and an
+         * entry for each missing one whose {@link
+         * TransformedImage#getStatus()} says why.  Use {@link
+         * RemoteDataSource#applyReactorTransforms(List,
+         * MultipartBody.Part, Duration, int)} to retry the missing
+         * transforms.
+         *
+         * @param transforms   The transforms to perform on the passed image
+         * @param maxLatencyMs The longest the server may take, in milliseconds
+         * @param image        The image to transform
+         * @return A {@link Mono} that emits a {@link List} of {@link TransformedImage} objects
+         */
+        @Multipart
+        @POST(APPLY_TRANSFORMS)
+        Mono<List<TransformedImage>>
+        applyReactorTransforms(@Query("transforms") List<String> transforms,
+                               @Query("maxLatencyMs") long maxLatencyMs,
+                               @Part MultipartBody.Part image);
+
+        /**
+         * Asynchronously applies all passed transforms to the base
+         * image and receives the results as binary frames holding the
+         * raw image bytes, which avoids the base64 and JSON overhead
+         * of {@link #applyReactorTransforms}.
+         * <p>
+         * The @Headers annotation asks the server for binary frames,
+         * which are decoded by {@link
+         * TransformedImageFramesConverterFactory}.
+         *
+         * @param transforms The transforms to perform on the passed image
+         * @param image      The image to transform
+         * @return A {@link Mono} that emits a {@link List} of {@link TransformedImage} objects
+         */
+        @Multipart
+        @POST(APPLY_TRANSFORMS)
+        @Headers("Accept: " + TRANSFORMED_IMAGE_FRAMES)
+        Mono<List<TransformedImage>>
+        applyReactorTransformsBinary(@Query("transforms") List<String> transforms,
+                                     @Part MultipartBody.Part image);
+
+        /**
+         * Asynchronously applies all passed transforms to the base
+         * image and returns the unbuffered response body, which
+         * holds one JSON {@link TransformedImage} per line that the
+         * server writes as soon as each transform finishes.  Use
+         * {@link RemoteDataSource#applyReactorTransformsStream} to
+         * receive them as a {@link Flux}.
+         *
+         * @param transforms The transforms to perform on the passed image
+         * @param image      The image to transform
+         * @return A {@link Mono} that emits the streaming {@link ResponseBody}
+         */
+        @Multipart
+        @Streaming
+        @POST(APPLY_TRANSFORMS_STREAM)
+        @Headers("Accept: " + NDJSON)
+        Mono<ResponseBody>
+        applyTransformsStream(@Query("transforms") List<String> transforms,
+                              @Part MultipartBody.Part image);
+
+        /**
+         * Asynchronously applies all passed transforms to a batch of
+         * images and returns the unbuffered response body, which
+         * holds one JSON {@link TransformedImage} per line tagged with
+         * the file name of its image part.  Use {@link
+         * RemoteDataSource#applyReactorTransformsBatch} to receive
+         * them as a {@link Flux}.
+         *
+         * @param transforms The transforms to perform on the passed images
+         * @param images     The images to transform, each in an
+         *                   {@code images} part with a unique file name
+         * @return A {@link Mono} that emits the streaming {@link ResponseBody}
+         */
+        @Multipart
+        @Streaming
+        @POST(APPLY_TRANSFORMS_BATCH)
+        @Headers("Accept: " + NDJSON)
+        Mono<ResponseBody>
+        applyTransformsBatch(@Query("transforms") List<String> transforms,
+                             @Part List<MultipartBody.Part> images);
+
         /**
          * Asynchronously applies all passed transforms to the base
          * image.
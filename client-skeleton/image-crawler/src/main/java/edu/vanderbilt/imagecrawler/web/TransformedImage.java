@@ -1,5 +1,7 @@
 package edu.vanderbilt.imagecrawler.web;
 
+import com.google.gson.annotations.SerializedName;
+
 import java.awt.image.BufferedImage;
 import java.util.Base64;
 
@@ -8,11 +10,28 @@ import edu.vanderbilt.imagecrawler.utils.ImageUtils;
 /**
  * Data Transfer Object (DTO) used to return a {@link
  * TransformedImage} back to the client app.
+ * <p>
+ * A partial response also holds an entry without an image for each
+ * transform that didn't finish in time, whose {@link #getStatus()}
+ * says why.
  */
 public class TransformedImage {
     /**
-     * Source image name.
+     * The status of a transform that didn't finish within the
+     * requested latency bound.
+     */
+    public static final String TIMED_OUT = "TIMED_OUT";
+
+    /**
+     * The status of a transform whose microservice call failed.
+     */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * Source image name, which the server sends as {@code imageName}
+     * and uses to tag each image of a batch.
      */
+    @SerializedName(value = "imageName", alternate = {"sourceName"})
     private String sourceName;
 
     /**
@@ -25,6 +44,17 @@ public class TransformedImage {
      */
     private String encodedBytes;
 
+    /**
+     * Raw image bytes received as a binary frame, which are only
+     * base64 encoded if {@link #getEncodedBytes()} is called.
+     */
+    private transient byte[] bytes;
+
+    /**
+     * Why the image is missing, or null if it's there.
+     */
+    private String status;
+
     /**
      * Default constructor is required for Jackson.
      */
@@ -43,7 +73,7 @@ public class TransformedImage {
                             byte[] bytes) {
         this.sourceName = sourceName;
         this.transformName = transformName;
-        this.encodedBytes = Base64.getEncoder().encodeToString(bytes);
+        this.bytes = bytes;
     }
 
     /**
@@ -99,6 +129,9 @@ public class TransformedImage {
      * @return Image bytes as a 64-bit encoded String
      */
     public String getEncodedBytes() {
+        if (encodedBytes == null && bytes != null) {
+            encodedBytes = Base64.getEncoder().encodeToString(bytes);
+        }
         return encodedBytes;
     }
 
@@ -109,13 +142,38 @@ public class TransformedImage {
      */
     public void setEncodedBytes(String encodedBytes) {
         this.encodedBytes = encodedBytes;
+        this.bytes = null;
+    }
+
+    /**
+     * @return Why the image is missing, or null if it's there
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Sets why the image is missing.
+     *
+     * @param status The status, or null if the image is there
+     */
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    /**
+     * @return {@code true} if this is the entry of a transform that
+     * is missing from a partial response
+     */
+    public boolean isMissing() {
+        return status != null;
     }
 
     /**
      * @return Decoded image bytes
      */
     public byte[] getBytes() {
-        return Base64.getDecoder().decode(encodedBytes);
+        return bytes != null ? bytes : Base64.getDecoder().decode(encodedBytes);
     }
 
     /**
@@ -124,7 +182,8 @@ public class TransformedImage {
      * @param bytes Image bytes
      */
     public void setBytes(byte[] bytes) {
-        encodedBytes = Base64.getEncoder().encodeToString(bytes);
+        this.bytes = bytes;
+        this.encodedBytes = null;
     }
 
     /**
@@ -137,7 +196,7 @@ public class TransformedImage {
         return "TransformedImage{" +
             "sourceName='" + sourceName + '\'' +
             "transformName='" + transformName + '\'' +
-            ", encodedBytes='" + encodedBytes + '\'' +
+            ", encodedBytes='" + getEncodedBytes() + '\'' +
             '}';
     }
 }
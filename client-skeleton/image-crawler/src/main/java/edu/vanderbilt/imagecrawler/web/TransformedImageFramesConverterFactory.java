@@ -0,0 +1,114 @@
+package edu.vanderbilt.imagecrawler.web;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+import retrofit2.http.Headers;
+
+import static edu.vanderbilt.imagecrawler.web.RemoteDataSource.TransformApi.TRANSFORMED_IMAGE_FRAMES;
+
+/**
+ * Retrofit converter factory that decodes the binary frame stream the
+ * server sends for {@link RemoteDataSource.TransformApi} methods whose
+ * {@code @Headers} ask for {@link
+ * RemoteDataSource.TransformApi#TRANSFORMED_IMAGE_FRAMES}.  All other
+ * methods are left to the JSON converter.
+ * <p>
+ * Each frame holds the image name and transform name written by
+ * {@code DataOutputStream.writeUTF()}, followed by a 4 byte
+ * big-endian image length and the raw image bytes.
+ */
+public class TransformedImageFramesConverterFactory extends Converter.Factory {
+    /**
+     * The image length that marks a frame of a missing image.
+     */
+    private static final int MISSING = -1;
+
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type,
+                                                            Annotation[] annotations,
+                                                            Retrofit retrofit) {
+        if (!acceptsFrames(annotations)) {
+            return null;
+        } else if (type == TransformedImage.class) {
+            return body -> {
+                List<TransformedImage> images = readFrames(body);
+                if (images.size() != 1) {
+                    throw new IOException("Expected one frame but got " + images.size());
+                }
+                return images.get(0);
+            };
+        } else if (type instanceof ParameterizedType
+                && ((ParameterizedType) type).getRawType() == List.class
+                && ((ParameterizedType) type).getActualTypeArguments()[0]
+                == TransformedImage.class) {
+            return TransformedImageFramesConverterFactory::readFrames;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return True if the method's {@code @Headers} accept binary frames.
+     */
+    private static boolean acceptsFrames(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof Headers) {
+                for (String header : ((Headers) annotation).value()) {
+                    int colon = header.indexOf(':');
+                    if (colon > 0
+                            && header.substring(0, colon).trim().equalsIgnoreCase("Accept")
+                            && header.substring(colon + 1).trim().equals(TRANSFORMED_IMAGE_FRAMES)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads frames until the end of the response body.
+     */
+    private static List<TransformedImage> readFrames(ResponseBody body) throws IOException {
+        try (DataInputStream in = new DataInputStream(body.byteStream())) {
+            List<TransformedImage> images = new ArrayList<>();
+
+            while (true) {
+                String sourceName;
+                try {
+                    sourceName = in.readUTF();
+                } catch (EOFException e) {
+                    // No more frames.
+                    return images;
+                }
+
+                String transformName = in.readUTF();
+                int length = in.readInt();
+                if (length == MISSING) {
+                    // A missing image is followed by its status.
+                    TransformedImage missing =
+                            new TransformedImage(sourceName, transformName, (byte[]) null);
+                    missing.setStatus(in.readUTF());
+                    images.add(missing);
+                    continue;
+                } else if (length < 0) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                images.add(new TransformedImage(sourceName, transformName, bytes));
+            }
+        }
+    }
+}
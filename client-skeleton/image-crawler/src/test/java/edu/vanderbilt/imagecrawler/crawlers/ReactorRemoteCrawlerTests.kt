@@ -1,6 +1,8 @@
 package edu.vanderbilt.imagecrawler.crawlers
 
 import admin.AssignmentTests
+import edu.vanderbilt.imagecrawler.platform.Controller
+import edu.vanderbilt.imagecrawler.platform.Platform
 import edu.vanderbilt.imagecrawler.utils.Image
 import edu.vanderbilt.imagecrawler.web.RemoteDataSource
 import edu.vanderbilt.imagecrawler.web.TransformedImage
@@ -16,6 +18,7 @@ import org.junit.Test
 import reactor.core.publisher.Flux
 import reactor.core.publisher.Mono
 import reactor.core.scheduler.Schedulers
+import java.time.Duration
 import kotlin.test.AfterTest
 
 class ReactorRemoteCrawlerTests : AssignmentTests() {
@@ -59,4 +62,20 @@ class ReactorRemoteCrawlerTests : AssignmentTests() {
         verify { remoteDataSource.api }
         verify { monoList.flatMapMany<TransformedImage>(any()) }
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `the remote data source uses the configured deadline`() {
+        val platform: Platform = mockk(relaxed = true)
+        every { platform.baseUrl } returns "http://localhost/"
+        val controller = Controller.newBuilder()
+            .platform(platform)
+            .localTransforms(false)
+            .remoteDeadline(Duration.ofSeconds(5))
+            .build()
+        val crawler = ReactorCrawler()
+
+        crawler.initialize(controller)
+
+        assertThat(crawler.remoteDataSource.deadline).isEqualTo(Duration.ofSeconds(5))
+    }
+}
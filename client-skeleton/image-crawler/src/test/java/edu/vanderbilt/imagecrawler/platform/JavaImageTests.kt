@@ -0,0 +1,69 @@
+package edu.vanderbilt.imagecrawler.platform
+
+import edu.vanderbilt.imagecrawler.transforms.Transform
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import java.awt.image.BufferedImage
+import java.awt.image.IndexColorModel
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import javax.imageio.ImageIO
+
+/**
+ * These tests ensure that [JavaImage] decodes 8-bit grayscale and
+ * palette images into RGB images with the same pixel values.
+ */
+class JavaImageTests {
+    private val item: Cache.Item = mockk(relaxed = true)
+
+    @Test
+    fun `gray images are decoded as their stored gray levels`() {
+        val gray = BufferedImage(16, 16, BufferedImage.TYPE_BYTE_GRAY)
+        val levels = IntArray(256) { it }
+        gray.raster.setSamples(0, 0, 16, 16, 0, levels)
+
+        val pixels = pixels(JavaImage(ByteArrayInputStream(png(gray)), item))
+
+        assertThat(pixels).isEqualTo(IntArray(256) { 0xFF000000.toInt() or it * 0x010101 })
+    }
+
+    @Test
+    fun `palette images keep their colors`() {
+        val red = byteArrayOf(0x10, 0x7F, 0xFF.toByte(), 0)
+        val green = byteArrayOf(0x20, 0x00, 0x80.toByte(), 0)
+        val blue = byteArrayOf(0x30, 0x55, 0x01, 0)
+        val palette = BufferedImage(
+            4, 1, BufferedImage.TYPE_BYTE_INDEXED,
+            IndexColorModel(2, 4, red, green, blue)
+        )
+        palette.raster.setSamples(0, 0, 4, 1, 0, intArrayOf(0, 1, 2, 3))
+        val expected = palette.getRGB(0, 0, 4, 1, null, 0, 4)
+
+        val pixels = pixels(JavaImage(ByteArrayInputStream(png(palette)), item))
+
+        assertThat(pixels).isEqualTo(expected)
+    }
+
+    @Test
+    fun `transforms of gray images keep their colors`() {
+        val gray = BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY)
+        gray.raster.setSample(0, 0, 0, 100)
+
+        val sepia = JavaImage(ByteArrayInputStream(png(gray)), item)
+            .applyTransform(Transform.Type.SEPIA_TRANSFORM, item)
+        val pixel = pixels(sepia as JavaImage)[0]
+
+        // Sepia makes a gray pixel more red than blue.
+        assertThat(pixel shr 16 and 0xFF).isGreaterThan(pixel and 0xFF)
+    }
+
+    private fun png(image: BufferedImage): ByteArray =
+        ByteArrayOutputStream().also { ImageIO.write(image, "png", it) }.toByteArray()
+
+    private fun pixels(image: JavaImage): IntArray {
+        val bytes = ByteArrayOutputStream().also { image.writeImage(it) }.toByteArray()
+        val decoded = ImageIO.read(ByteArrayInputStream(bytes))
+        return decoded.getRGB(0, 0, decoded.width, decoded.height, null, 0, decoded.width)
+    }
+}
@@ -0,0 +1,220 @@
+package edu.vanderbilt.imagecrawler.web
+
+import edu.vanderbilt.imagecrawler.crawlers.ImageCrawler
+import edu.vanderbilt.imagecrawler.utils.Image
+import io.mockk.every
+import io.mockk.mockk
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Interceptor
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.MultipartBody
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.RequestBody.Companion.toRequestBody
+import okhttp3.Response
+import okhttp3.ResponseBody.Companion.toResponseBody
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.groups.Tuple.tuple
+import org.junit.Test
+import reactor.core.publisher.Flux
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.net.URL
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * These tests ensure that [RemoteDataSource] only tells the server
+ * about a deadline that the caller set, that it can cancel the calls
+ * it makes, and that it handles partial and batched responses.
+ */
+class RemoteDataSourceTests {
+    @Test
+    fun `no deadline header is sent without a deadline`() {
+        val request = send(RemoteDataSource.buildHttpClient(null))
+
+        assertThat(request.header(RemoteDataSource.DEADLINE_HEADER)).isNull()
+    }
+
+    @Test
+    fun `the deadline is sent when the caller sets one`() {
+        val client = RemoteDataSource.buildHttpClient(Duration.ofSeconds(5))
+        val request = send(client)
+
+        assertThat(request.header(RemoteDataSource.DEADLINE_HEADER)).isEqualTo("5000")
+        assertThat(client.callTimeoutMillis).isEqualTo(5000)
+    }
+
+    @Test
+    fun `cancelAll cancels calls in flight`() {
+        val started = CountDownLatch(1)
+        val client = RemoteDataSource.buildHttpClient(null).newBuilder()
+            .addInterceptor(Interceptor { chain ->
+                // Hold the call until it's cancelled.
+                started.countDown()
+                while (!chain.call().isCanceled()) {
+                    Thread.sleep(10)
+                }
+                throw IOException("Canceled")
+            })
+            .build()
+        val source = RemoteDataSource("http://localhost/", client)
+
+        val failure = CompletableFuture<IOException>()
+        val call = client.newCall(Request.Builder().url("http://localhost/").build())
+        call.enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                failure.complete(e)
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                response.close()
+            }
+        })
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue()
+
+        source.cancelAll()
+
+        assertThat(failure.get(5, TimeUnit.SECONDS)).isNotNull()
+        assertThat(call.isCanceled()).isTrue()
+    }
+
+    @Test
+    fun `transforms still missing after the last retry are emitted`() {
+        val requests = mutableListOf<Request>()
+        val responses = ArrayDeque(
+            listOf(
+                """[{"imageName":"a.png","transformName":"SepiaTransform","encodedBytes":"AQID"},
+                   {"imageName":"a.png","transformName":"TintTransform","status":"TIMED_OUT"}]""",
+                """[{"imageName":"a.png","transformName":"TintTransform","status":"TIMED_OUT"}]"""
+            )
+        )
+        val client = RemoteDataSource.buildHttpClient(null).newBuilder()
+            .addInterceptor(Interceptor { chain ->
+                requests.add(chain.request())
+                respond(chain, responses.removeFirst())
+            })
+            .build()
+        val source = RemoteDataSource("http://localhost/", client)
+        val image = MultipartBody.Part.createFormData(
+            "image", "a.png", byteArrayOf(1, 2, 3).toRequestBody()
+        )
+
+        val images = source
+            .applyReactorTransforms(
+                listOf("SepiaTransform", "TintTransform"), image, Duration.ofMillis(100), 1
+            )
+            .collectList()
+            .block()!!
+
+        assertThat(images).extracting("transformName", "status")
+            .containsExactly(
+                tuple("SepiaTransform", null),
+                tuple("TintTransform", TransformedImage.TIMED_OUT)
+            )
+        assertThat(images[0].bytes).containsExactly(1, 2, 3)
+
+        // Only the missing transform was requested again.
+        assertThat(requests).hasSize(2)
+        assertThat(requests[1].url.queryParameterValues("transforms"))
+            .containsExactly("TintTransform")
+    }
+
+    @Test
+    fun `batched images are matched to their results by tag`() {
+        var sent: Request? = null
+        val client = RemoteDataSource.buildHttpClient(null).newBuilder()
+            .addInterceptor(Interceptor { chain ->
+                sent = chain.request()
+                respond(
+                    chain,
+                    """{"imageName":"1-a.png","transformName":"SepiaTransform","encodedBytes":"BAUG"}
+                      |{"imageName":"0-a.png","transformName":"SepiaTransform","encodedBytes":"AQID"}
+                      |{"imageName":"0-a.png","transformName":"TintTransform","status":"TIMED_OUT"}
+                      |{"imageName":"2-a.png","transformName":"SepiaTransform","encodedBytes":"BwgJ"}
+                      |""".trimMargin()
+                )
+            })
+            .build()
+        val source = RemoteDataSource("http://localhost/", client)
+
+        // Images on different pages can share a file name.
+        val first = image("http://first/a.png")
+        val second = image("http://second/a.png")
+        val crawler: ImageCrawler = mockk()
+        val created = mutableListOf<Pair<String, List<Byte>>>()
+        every { crawler.mapUriToInputStream(any()) } answers {
+            ByteArrayInputStream(byteArrayOf(0))
+        }
+        every { crawler.createImage(any<String>(), "SepiaTransform", any()) } answers {
+            created.add(firstArg<String>() to thirdArg<InputStream>().readBytes().toList())
+            mockk()
+        }
+
+        val images = source
+            .applyReactorTransformsBatched(
+                crawler, listOf("SepiaTransform", "TintTransform"),
+                Flux.just(first, second), 2, Duration.ofSeconds(5)
+            )
+            .collectList()
+            .block()!!
+
+        // Missing and unknown results are dropped.
+        assertThat(images).hasSize(2)
+        assertThat(created).containsExactly(
+            "http://second/a.png" to listOf<Byte>(4, 5, 6),
+            "http://first/a.png" to listOf<Byte>(1, 2, 3)
+        )
+
+        // Both images went in one request, each under its own tag.
+        val parts = (sent!!.body as MultipartBody).parts
+        assertThat(parts.map { it.headers!!["Content-Disposition"] }).containsExactly(
+            "form-data; name=\"images\"; filename=\"0-a.png\"",
+            "form-data; name=\"images\"; filename=\"1-a.png\""
+        )
+    }
+
+    /**
+     * Returns an [Image] from [url] named after its last path segment.
+     */
+    private fun image(url: String): Image = mockk {
+        every { sourceUrl } returns URL(url)
+        every { fileName } returns url.substringAfterLast('/')
+    }
+
+    /**
+     * Makes a call through [client] that is answered without touching
+     * the network, and returns the request as the server would see it.
+     */
+    private fun send(client: OkHttpClient): Request {
+        var sent: Request? = null
+        client.newBuilder()
+            .addInterceptor(Interceptor { chain ->
+                sent = chain.request()
+                respond(chain, "")
+            })
+            .build()
+            .newCall(Request.Builder().url("http://localhost/").build())
+            .execute()
+            .close()
+        return sent!!
+    }
+
+    /**
+     * Answers the request of [chain] with [json] without touching the
+     * network.
+     */
+    private fun respond(chain: Interceptor.Chain, json: String): Response =
+        Response.Builder()
+            .request(chain.request())
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .message("OK")
+            .body(json.toResponseBody("application/json".toMediaType()))
+            .build()
+}
@@ -0,0 +1,97 @@
+package edu.vanderbilt.imagecrawler.web
+
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.MultipartBody
+import okhttp3.ResponseBody
+import okhttp3.ResponseBody.Companion.toResponseBody
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.assertj.core.groups.Tuple.tuple
+import org.junit.Test
+import retrofit2.Retrofit
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.lang.reflect.ParameterizedType
+import java.lang.reflect.Type
+
+/**
+ * These tests ensure that [TransformedImageFramesConverterFactory]
+ * only decodes binary frames for the methods that ask for them.
+ */
+class TransformedImageFramesConverterFactoryTests {
+    private val factory = TransformedImageFramesConverterFactory()
+    private val retrofit = Retrofit.Builder().baseUrl("http://localhost/").build()
+
+    private val binaryMethod = RemoteDataSource.TransformApi::class.java.getMethod(
+        "applyReactorTransformsBinary", List::class.java, MultipartBody.Part::class.java
+    )
+
+    /** The List<TransformedImage> inside the method's Mono. */
+    private val listType: Type =
+        (binaryMethod.genericReturnType as ParameterizedType).actualTypeArguments[0]
+
+    @Test
+    fun `frames are decoded into images and missing entries`() {
+        val body = frames {
+            writeUTF("foobar.png")
+            writeUTF("SepiaTransform")
+            writeInt(3)
+            write(byteArrayOf(1, 2, 3))
+
+            writeUTF("foobar.png")
+            writeUTF("TintTransform")
+            writeInt(-1)
+            writeUTF("TIMED_OUT")
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        val images = factory
+            .responseBodyConverter(listType, binaryMethod.annotations, retrofit)!!
+            .convert(body) as List<TransformedImage>
+
+        assertThat(images).extracting("sourceName", "transformName")
+            .containsExactly(
+                tuple("foobar.png", "SepiaTransform"),
+                tuple("foobar.png", "TintTransform")
+            )
+        assertThat(images[0].bytes).containsExactly(1, 2, 3)
+        assertThat(images[0].status).isNull()
+        assertThat(images[1].status).isEqualTo("TIMED_OUT")
+    }
+
+    @Test
+    fun `negative lengths other than missing are rejected`() {
+        val body = frames {
+            writeUTF("foobar.png")
+            writeUTF("SepiaTransform")
+            writeInt(-2)
+        }
+
+        assertThatThrownBy {
+            factory.responseBodyConverter(listType, binaryMethod.annotations, retrofit)!!
+                .convert(body)
+        }.isInstanceOf(IOException::class.java)
+    }
+
+    @Test
+    fun `other types and methods are left to other converters`() {
+        val streamMethod = RemoteDataSource.TransformApi::class.java.getMethod(
+            "applyTransformsStream", List::class.java, MultipartBody.Part::class.java
+        )
+
+        assertThat(
+            factory.responseBodyConverter(String::class.java, binaryMethod.annotations, retrofit)
+        ).isNull()
+        assertThat(
+            factory.responseBodyConverter(listType, streamMethod.annotations, retrofit)
+        ).isNull()
+    }
+
+    private fun frames(write: DataOutputStream.() -> Unit): ResponseBody {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use(write)
+        return bytes.toByteArray()
+            .toResponseBody(RemoteDataSource.TransformApi.TRANSFORMED_IMAGE_FRAMES.toMediaType())
+    }
+}
@@ -0,0 +1,311 @@
+package server.common;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * A content-addressed store of uploaded images in a directory that the
+ * gateway and the transform microservices running on the same host
+ * share, e.g., a directory on {@code /dev/shm}.
+ * <p>
+ * The gateway puts each upload into the store once and sends the
+ * microservices its key instead of the image bytes, so a request for N
+ * transforms no longer sends the image over the wire N times.  Each
+ * blob is named by the SHA-256 digest of its content and written
+ * atomically, so a microservice either reads the complete image or
+ * finds nothing and asks for the bytes inline.
+ * <p>
+ * The gateway counts the requests using each blob and deletes it when
+ * the last one releases it.  The store is disabled, and every method
+ * falls back to inline bytes, when {@code image.blob-store.dir} is
+ * empty or the directory can't be created.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the gateway and the transform
+ * microservices.
+ */
+@Component
+public class BlobStore {
+    /**
+     * The form of a valid key, which also keeps a key received in a
+     * request from naming a file outside the store.
+     */
+    private static final Pattern KEY = Pattern.compile("[0-9a-f]{64}");
+
+    /**
+     * The number of locks that serialize storing and deleting blobs
+     * with the same key.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The shared store directory, where an empty value disables the
+     * store.
+     */
+    @Value("${image.blob-store.dir:}")
+    String dir;
+
+    /**
+     * The store directory, which stays null while the store is
+     * disabled.
+     */
+    private Path root;
+
+    /**
+     * The number of requests using each blob put by this process.
+     */
+    private final Map<String, Integer> references = new ConcurrentHashMap<>();
+
+    /**
+     * The locks held while a blob is stored or deleted, chosen by its
+     * key, so the file I/O never runs inside a {@link
+     * ConcurrentHashMap} update and blocks unrelated keys.
+     */
+    private final Object[] locks = IntStream
+        .range(0, LOCK_STRIPES)
+        .mapToObj(i -> new Object())
+        .toArray();
+
+    /**
+     * Creates the store directory once the properties are injected.
+     */
+    @PostConstruct
+    void start() {
+        if (dir != null && !dir.isBlank()) {
+            try {
+                root = Files.createDirectories(Paths.get(dir));
+            } catch (IOException e) {
+                // Leave the store disabled and send images inline.
+                root = null;
+            }
+        }
+    }
+
+    /**
+     * @return True if the store is enabled
+     */
+    public boolean isEnabled() {
+        return root != null;
+    }
+
+    /**
+     * Puts {@code bytes} into the store, or adds a reference to them
+     * if they're already stored.
+     *
+     * @param bytes The image bytes
+     * @return The key of the blob, or null if the store is disabled or
+     *         unavailable and the bytes must be sent inline
+     */
+    public String put(byte[] bytes) {
+        if (root == null) {
+            return null;
+        }
+
+        String key = key(bytes);
+        return reference(key, target -> {
+            Path temp = Files.createTempFile(root, key, ".tmp");
+            try {
+                Files.write(temp, bytes);
+                moveAtomically(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        });
+    }
+
+    /**
+     * Returns the key that {@code bytes} are stored under, which also
+     * identifies them while the store is disabled.
+     *
+     * @param bytes The image bytes
+     * @return The lower-case hex SHA-256 digest of {@code bytes}
+     */
+    public static String key(byte[] bytes) {
+        return toKey(digest().digest(bytes));
+    }
+
+    /**
+     * Moves {@code file} into the store, or adds a reference to an
+     * identical blob that's already stored and leaves {@code file}
+     * for the caller to delete.
+     *
+     * @param file A file holding the image bytes
+     * @return The key of the blob, or null if the store is disabled or
+     *         unavailable and {@code file} must be sent inline
+     */
+    public String put(Path file) {
+        if (root == null) {
+            return null;
+        }
+
+        MessageDigest digest = digest();
+        try (InputStream input = new DigestInputStream(Files.newInputStream(file),
+                                                       digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            return null;
+        }
+
+        return reference(toKey(digest.digest()), target -> {
+            try {
+                moveAtomically(file, target);
+            } catch (AtomicMoveNotSupportedException e) {
+                // The spool file is on another file system, so copy it
+                // next to the target first.
+                Path temp = Files.createTempFile(root, null, ".tmp");
+                try {
+                    Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+                    moveAtomically(temp, target);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the path of the blob named by {@code key}, which the
+     * gateway can send inline when a microservice can't read it.
+     *
+     * @param key A key returned by {@link #put}
+     * @return The path of the blob
+     */
+    public Path path(String key) {
+        return root.resolve(key);
+    }
+
+    /**
+     * Releases a reference returned by {@link #put} and deletes the
+     * blob when no request uses it any more.
+     *
+     * @param key A key returned by {@link #put}, or null
+     */
+    public void release(String key) {
+        if (key == null) {
+            return;
+        }
+
+        synchronized (lock(key)) {
+            if (references.computeIfPresent(key, (k, count) ->
+                                            count > 1 ? count - 1 : null) == null) {
+                try {
+                    Files.deleteIfExists(root.resolve(key));
+                } catch (IOException e) {
+                    // Leave the file for the operating system to clean up.
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the blob named by {@code key}.
+     *
+     * @param key A key received from the gateway
+     * @return The image bytes, or null if the key is invalid or the
+     *         blob can't be read from this host
+     */
+    public byte[] get(String key) {
+        if (root == null || key == null || !KEY.matcher(key).matches()) {
+            return null;
+        }
+
+        try {
+            return Files.readAllBytes(root.resolve(key));
+        } catch (IOException e) {
+            // Missing blobs are put by a gateway on another host.
+            return null;
+        }
+    }
+
+    /**
+     * Writes a blob to a target path.
+     */
+    @FunctionalInterface
+    private interface Writer {
+        void write(Path target) throws IOException;
+    }
+
+    /**
+     * Adds a reference to the blob named by {@code key}, calling
+     * {@code writer} to store it if this is the first reference.
+     * Updates for the same key are serialized, so a blob is never
+     * deleted while it's being stored again, and a request for a blob
+     * that's being stored waits until it's complete.
+     *
+     * @return The key, or null if the blob couldn't be stored
+     */
+    private String reference(String key, Writer writer) {
+        synchronized (lock(key)) {
+            if (references.merge(key, 1, Integer::sum) > 1) {
+                return key;
+            }
+
+            try {
+                Path target = root.resolve(key);
+                if (!Files.exists(target)) {
+                    writer.write(target);
+                }
+                return key;
+            } catch (IOException e) {
+                references.remove(key);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return The lock that guards the blob named by {@code key}
+     */
+    private Object lock(String key) {
+        return locks[Math.floorMod(key.hashCode(), locks.length)];
+    }
+
+    /**
+     * Renames {@code source} to {@code target} in one step so readers
+     * never see a partial blob.
+     */
+    private static void moveAtomically(Path source, Path target)
+        throws IOException {
+        Files.move(source,
+                   target,
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return A new SHA-256 {@link MessageDigest}
+     */
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The lower-case hex form of a SHA-256 digest
+     */
+    private static String toKey(byte[] digest) {
+        return String.format("%064x", new BigInteger(1, digest));
+    }
+}
@@ -1,6 +1,7 @@
 package server.common;
 
 import org.springframework.boot.web.servlet.MultipartConfigFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
@@ -56,6 +57,38 @@ public class Components {
         return new RestTemplate();
     }
 
+    /**
+     * This factory method returns the {@link ImageEncoder} selected by
+     * the {@code image.encoder} property.
+     *
+     * @param type             The encoder implementation
+     * @param parallelism      Number of {@link ParallelPngEncoder}
+     *                         threads (0 uses all available processors)
+     * @param compressionLevel The deflate compression level (0-9)
+     * @param filter           The PNG row filter heuristic
+     * @param chunkSize        Uncompressed bytes deflated per task
+     * @param reduceColors     True to write gray and palette images
+     *                         when the pixels allow it
+     * @return The {@link ImageEncoder} used for transformed images
+     */
+    @Bean
+    ImageEncoder imageEncoder
+        (@Value("${image.encoder:IMAGE_IO}") ImageEncoder.Type type,
+         @Value("${image.png.parallelism:0}") int parallelism,
+         @Value("${image.png.compression-level:6}") int compressionLevel,
+         @Value("${image.png.filter:ADAPTIVE}") ParallelPngEncoder.Filter filter,
+         @Value("${image.png.chunk-size:131072}") int chunkSize,
+         @Value("${image.reduce-colors:false}") boolean reduceColors) {
+        ImageEncoder encoder = type == ImageEncoder.Type.PARALLEL_PNG
+            ? new ParallelPngEncoder(parallelism,
+                                     compressionLevel,
+                                     filter,
+                                     chunkSize)
+            : ImageEncoder.IMAGE_IO;
+
+        return reduceColors ? encoder.reducingColors() : encoder;
+    }
+
     /**
      * Adds the ability to accept large size multipart requests into
      * the web container.
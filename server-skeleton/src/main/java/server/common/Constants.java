@@ -42,6 +42,20 @@ public class Constants {
         public static final String GRAYSCALE_TRANSFORM = "GrayScaleTransform";
         public static final String SEPIA_TRANSFORM = "SepiaTransform";
         public static final String TINT_TRANSFORM = "TintTransform";
+
+        /**
+         * A generic color matrix transform that isn't a separate
+         * microservice, but is applied by every transform
+         * microservice using a caller-supplied matrix.
+         */
+        public static final String COLOR_MATRIX_TRANSFORM = "ColorMatrixTransform";
+
+        /**
+         * Separates the stages of a transform chain that a transform
+         * microservice applies in one fused pass, e.g.,
+         * "GrayScaleTransform>TintTransform".
+         */
+        public static final String CHAIN_SEPARATOR = ">";
     }
 
     /**
@@ -49,7 +63,72 @@ public class Constants {
      */
     public static class EndPoint {
         public static final String APPLY_TRANSFORMS = "apply-transforms";
+        public static final String APPLY_TRANSFORMS_STREAM = "apply-transforms-stream";
+        public static final String APPLY_TRANSFORMS_BATCH = "apply-transforms-batch";
         public static final String APPLY_TRANSFORM = "apply-transform";
+        public static final String APPLY_MULTI_TRANSFORM = "apply-multi-transform";
+        public static final String APPLY_TRANSFORM_BATCH = "apply-transform-batch";
+        public static final String METRICS = "metrics";
+    }
+
+    /**
+     * HTTP request parameters of the gateway endpoints.
+     */
+    public static class Params {
+        /**
+         * The most milliseconds the client wants to wait for {@link
+         * EndPoint#APPLY_TRANSFORMS}, after which the gateway returns
+         * the images that are done and a status entry for each one
+         * that isn't.
+         */
+        public static final String MAX_LATENCY = "maxLatencyMs";
+    }
+
+    /**
+     * HTTP request headers shared by the gateway and the
+     * microservices.
+     */
+    public static class Headers {
+        /**
+         * The key the gateway routes an image by, so requests for the
+         * same image reach the same transform microservice instance
+         * and hit its caches.  Clients may set it, e.g., to a stable
+         * image id; otherwise the gateway derives it from the image
+         * content.
+         */
+        public static final String ROUTING_KEY = "X-Routing-Key";
+
+        /**
+         * Identifies each call from the gateway to a microservice, so
+         * the gateway's load balancer can track it.
+         */
+        public static final String REQUEST_ID = "X-Request-Id";
+
+        /**
+         * The {@link #REQUEST_ID} of the call that a hedged call
+         * duplicates, so it's sent to a different instance.
+         */
+        public static final String HEDGE_OF = "X-Hedge-Of";
+
+        /**
+         * The milliseconds left before the client gives up on a
+         * request, which each hop forwards with the time it has used
+         * taken off.  See {@link server.common.Deadline}.
+         */
+        public static final String DEADLINE = "X-Deadline-Millis";
+    }
+
+    /**
+     * Eureka instance metadata keys that microservices register with.
+     */
+    public static class Metadata {
+        /**
+         * The comma-separated names of the transforms, besides its
+         * own, that a transform microservice instance applies in one
+         * {@link EndPoint#APPLY_MULTI_TRANSFORM} call, so the gateway
+         * only sends it requests that it can serve.
+         */
+        public static final String TRANSFORMS = "transforms";
     }
 
     /**
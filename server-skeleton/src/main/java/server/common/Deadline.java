@@ -0,0 +1,190 @@
+package server.common;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which a client needs the response to a request, after
+ * which any work left on it is wasted.
+ * <p>
+ * The client sends the time it's willing to wait in the {@link
+ * Constants.Headers#DEADLINE} header, and each hop turns it into a
+ * local deadline when the request arrives and forwards what's left of
+ * it on every call it makes, so clocks on different hosts never need
+ * to agree.  The transform microservices check the deadline between
+ * the stages of a transform and drop requests that have expired.
+ * <p>
+ * A deadline made by {@link #cancellable} also expires as soon as
+ * it's {@link #cancel cancelled}, e.g., when the caller disconnects,
+ * so the same checks stop work that nobody is waiting for anymore.
+ */
+public final class Deadline {
+    /**
+     * A deadline that never expires, used for requests without the
+     * header.
+     */
+    public static final Deadline NONE = new Deadline(0, false);
+
+    /**
+     * The {@link System#nanoTime} value at which the deadline expires.
+     */
+    private final long nanos;
+
+    /**
+     * False if the deadline only expires when it's cancelled.
+     */
+    private final boolean timed;
+
+    /**
+     * True once the request has been cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Completed when the request is cancelled, or null until someone
+     * waits for that.
+     */
+    private volatile CompletableFuture<Void> cancellation;
+
+    private Deadline(long nanos, boolean timed) {
+        this.nanos = nanos;
+        this.timed = timed;
+    }
+
+    /**
+     * Returns the deadline of a request that arrives now.
+     *
+     * @param millis The value of the {@link Constants.Headers#DEADLINE}
+     *               header, i.e., the milliseconds left, or null if
+     *               the request has no deadline
+     * @return The {@link Deadline}, or {@link #NONE}
+     */
+    public static Deadline ofMillis(Long millis) {
+        if (millis == null) {
+            return NONE;
+        }
+        return timed(millis);
+    }
+
+    /**
+     * Returns the deadline of a request that arrives now, which can
+     * also be {@link #cancel cancelled} before it expires.
+     *
+     * @param millis The value of the {@link Constants.Headers#DEADLINE}
+     *               header, or null if the request only expires when
+     *               it's cancelled
+     * @return A new {@link Deadline}, which is never {@link #NONE}
+     */
+    public static Deadline cancellable(Long millis) {
+        if (millis == null) {
+            return new Deadline(0, false);
+        }
+        return timed(millis);
+    }
+
+    private static Deadline timed(long millis) {
+        return new Deadline(System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis)),
+                            true);
+    }
+
+    /**
+     * @return True if this is {@link #NONE}
+     */
+    public boolean isNone() {
+        return this == NONE;
+    }
+
+    /**
+     * @return True if the deadline has a time limit, rather than only
+     *         expiring when it's cancelled, if ever
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * @return True if the deadline has passed or was cancelled
+     */
+    public boolean isExpired() {
+        return cancelled || timed && System.nanoTime() - nanos >= 0;
+    }
+
+    /**
+     * Expires the deadline at once because the caller is gone.  This
+     * has no effect on {@link #NONE}.
+     */
+    public void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+            CompletableFuture<Void> cancellation = this.cancellation;
+            if (cancellation != null) {
+                cancellation.complete(null);
+            }
+        }
+    }
+
+    /**
+     * @return A future that completes when the deadline is {@link
+     *         #cancel cancelled}, so a caller can wait for it instead
+     *         of polling {@link #isCancelled}
+     */
+    public CompletableFuture<Void> cancellation() {
+        CompletableFuture<Void> cancellation = this.cancellation;
+        if (cancellation == null) {
+            synchronized (this) {
+                cancellation = this.cancellation;
+                if (cancellation == null) {
+                    cancellation = new CompletableFuture<>();
+                    this.cancellation = cancellation;
+                }
+            }
+            // Complete it if the cancel() missed it.
+            if (cancelled) {
+                cancellation.complete(null);
+            }
+        }
+        return cancellation;
+    }
+
+    /**
+     * @return True if the deadline was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return The time left, which is zero once the deadline has
+     *         passed, or null if it has no time limit
+     */
+    public Duration remaining() {
+        if (!timed) {
+            return null;
+        }
+        return Duration.ofNanos(Math.max(0, nanos - System.nanoTime()));
+    }
+
+    /**
+     * Throws an {@link ExpiredException} if the deadline has passed.
+     */
+    public void check() {
+        if (isExpired()) {
+            throw new ExpiredException();
+        }
+    }
+
+    /**
+     * Signals that a request was dropped because its deadline passed,
+     * which is answered with 504 in case the client is still waiting.
+     */
+    public static class ExpiredException extends ResponseStatusException {
+        public ExpiredException() {
+            super(HttpStatus.GATEWAY_TIMEOUT, "Request deadline exceeded");
+        }
+    }
+}
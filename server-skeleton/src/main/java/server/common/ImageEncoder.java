@@ -0,0 +1,68 @@
+package server.common;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Encodes a {@link BufferedImage} into the bytes of a standard PNG
+ * image that {@link javax.imageio.ImageIO#read} can decode.
+ */
+@FunctionalInterface
+public interface ImageEncoder extends AutoCloseable {
+    /**
+     * Supported encoder implementations.
+     */
+    enum Type {
+        /**
+         * Single-threaded {@link javax.imageio.ImageIO} encoder.
+         */
+        IMAGE_IO,
+
+        /**
+         * Multi-threaded {@link ParallelPngEncoder}.
+         */
+        PARALLEL_PNG
+    }
+
+    /**
+     * The default encoder, which uses {@link javax.imageio.ImageIO}.
+     */
+    ImageEncoder IMAGE_IO = image -> ImageUtils.toByteArray(image, "png");
+
+    /**
+     * Encodes {@code image} as a PNG.
+     *
+     * @param image The {@link BufferedImage} to encode
+     * @return The PNG image bytes
+     */
+    byte[] encode(BufferedImage image);
+
+    /**
+     * Returns an encoder that first converts each image to the
+     * smallest equivalent gray or palette image found by
+     * {@link ImageUtils#reduceColors}.
+     *
+     * @return An {@link ImageEncoder} that reduces colors
+     */
+    default ImageEncoder reducingColors() {
+        ImageEncoder encoder = this;
+
+        return new ImageEncoder() {
+            @Override
+            public byte[] encode(BufferedImage image) {
+                return encoder.encode(ImageUtils.reduceColors(image));
+            }
+
+            @Override
+            public void close() {
+                encoder.close();
+            }
+        };
+    }
+
+    /**
+     * Releases any resources held by the encoder.
+     */
+    @Override
+    default void close() {
+    }
+}
@@ -4,6 +4,8 @@ import server.common.model.TransformedImage;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
 import java.io.*;
 
 /**
@@ -11,11 +13,123 @@ import java.io.*;
  * data types to and from {@link BufferedImage}.
  */
 public final class ImageUtils {
+    /**
+     * Largest number of colors stored in a palette image.
+     */
+    private static final int MAX_PALETTE_COLORS = 256;
+
+    /**
+     * Number of slots in the hash table used to count colors, which
+     * is a power of two comfortably larger than the palette.
+     */
+    private static final int COLOR_SLOTS = 1024;
+
     /**
      * A Java utility class needs a private constructor.
      */
     private ImageUtils() {}
 
+    /**
+     * Returns an image with the same pixels as {@code bi} that needs
+     * fewer bytes per pixel when it's encoded.  If every pixel is an
+     * opaque gray the result is a {@code TYPE_BYTE_GRAY} image, else
+     * if there are at most 256 distinct colors the result is a
+     * {@code TYPE_BYTE_INDEXED} image, otherwise {@code bi} itself is
+     * returned.
+     *
+     * @param bi The {@link BufferedImage} input
+     * @return A gray, palette, or the original {@link BufferedImage}
+     */
+    public static BufferedImage reduceColors(BufferedImage bi) {
+        if (bi.getType() == BufferedImage.TYPE_BYTE_GRAY
+            || bi.getColorModel() instanceof IndexColorModel) {
+            return bi;
+        }
+
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int[] pixels = bi.getRGB(0, 0, width, height, null, 0, width);
+
+        // Open addressing table mapping each color to its palette
+        // index plus one, so that zero marks an empty slot.
+        int[] slotColors = new int[COLOR_SLOTS];
+        int[] slotIndices = new int[COLOR_SLOTS];
+        int[] palette = new int[MAX_PALETTE_COLORS];
+        byte[] indices = new byte[pixels.length];
+        int colors = 0;
+        boolean gray = true;
+
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+
+            if (gray
+                && ((pixel >>> 24) != 0xFF
+                    || ((pixel >> 16) & 0xFF) != (pixel & 0xFF)
+                    || ((pixel >> 8) & 0xFF) != (pixel & 0xFF))) {
+                gray = false;
+            }
+
+            if (colors <= MAX_PALETTE_COLORS) {
+                int slot = (pixel * 0x9E3779B9) >>> 22;
+                while (slotIndices[slot] != 0 && slotColors[slot] != pixel) {
+                    slot = (slot + 1) & (COLOR_SLOTS - 1);
+                }
+
+                if (slotIndices[slot] == 0) {
+                    if (colors == MAX_PALETTE_COLORS) {
+                        // Too many colors for a palette.
+                        colors++;
+                    } else {
+                        slotColors[slot] = pixel;
+                        slotIndices[slot] = colors + 1;
+                        palette[colors++] = pixel;
+                    }
+                }
+
+                if (colors <= MAX_PALETTE_COLORS) {
+                    indices[i] = (byte) (slotIndices[slot] - 1);
+                }
+            } else if (!gray) {
+                return bi;
+            }
+        }
+
+        if (gray) {
+            // Store the gray levels directly, since setRGB() would
+            // gamma correct them for the linear gray color space.
+            BufferedImage result = new BufferedImage
+                (width, height, BufferedImage.TYPE_BYTE_GRAY);
+            byte[] data = ((DataBufferByte) result.getRaster()
+                           .getDataBuffer()).getData();
+            for (int i = 0; i < pixels.length; i++) {
+                data[i] = (byte) pixels[i];
+            }
+            return result;
+        } else if (colors <= MAX_PALETTE_COLORS) {
+            byte[] reds = new byte[colors];
+            byte[] greens = new byte[colors];
+            byte[] blues = new byte[colors];
+            byte[] alphas = new byte[colors];
+            for (int i = 0; i < colors; i++) {
+                reds[i] = (byte) (palette[i] >> 16);
+                greens[i] = (byte) (palette[i] >> 8);
+                blues[i] = (byte) palette[i];
+                alphas[i] = (byte) (palette[i] >>> 24);
+            }
+
+            BufferedImage result = new BufferedImage
+                (width, height, BufferedImage.TYPE_BYTE_INDEXED,
+                 new IndexColorModel(8, colors, reds, greens, blues, alphas));
+            System.arraycopy(indices, 0,
+                             ((DataBufferByte) result.getRaster()
+                              .getDataBuffer()).getData(), 0,
+                             indices.length);
+            return result;
+        } else {
+            return bi;
+        }
+    }
+
     /**
      * Converts a BufferedImage to a formatted byte array.
      *
@@ -0,0 +1,541 @@
+package server.common;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link ImageEncoder} that writes standard 8-bit PNG images using
+ * several threads.  {@code TYPE_BYTE_GRAY} images are written as
+ * grayscale PNGs, images with an {@link IndexColorModel} as palette
+ * PNGs, and all other images as RGB or RGBA PNGs.
+ * <p>
+ * The image rows are split into chunks.  First the rows of every
+ * chunk are filtered in parallel.  Then every chunk is deflated in
+ * parallel, pigz-style: each chunk's compressor is primed with the
+ * last 32KB of the previous chunk as its dictionary, and every chunk
+ * but the last ends with a sync flush.  The compressed chunks are
+ * then simply concatenated into one zlib stream, whose Adler-32
+ * checksum is combined from the checksums of the chunks.
+ */
+public class ParallelPngEncoder implements ImageEncoder {
+    /**
+     * Row filter heuristics defined by the PNG specification.
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+
+        /**
+         * Picks the filter with the smallest sum of absolute
+         * differences for each row, as recommended by the PNG
+         * specification.
+         */
+        ADAPTIVE
+    }
+
+    /**
+     * PNG color types and their number of bytes per pixel.
+     */
+    private enum ColorType {
+        GRAY(0, 1), RGB(2, 3), PALETTE(3, 1), RGBA(6, 4);
+
+        final int code;
+        final int bytesPerPixel;
+
+        ColorType(int code, int bytesPerPixel) {
+            this.code = code;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        /**
+         * Returns the color type used to write {@code image}.
+         */
+        static ColorType of(BufferedImage image) {
+            if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                return GRAY;
+            } else if (image.getColorModel() instanceof IndexColorModel
+                       && ((IndexColorModel) image.getColorModel()).getMapSize() <= 256) {
+                return PALETTE;
+            } else {
+                return image.getColorModel().hasAlpha() ? RGBA : RGB;
+            }
+        }
+    }
+
+    /**
+     * The PNG file signature.
+     */
+    private static final byte[] SIGNATURE =
+        {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    /**
+     * The deflate window size, which is also the largest useful
+     * dictionary.
+     */
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    /**
+     * Modulus used by the Adler-32 checksum.
+     */
+    private static final long ADLER_BASE = 65521;
+
+    /**
+     * The pool used to filter and deflate the chunks.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The deflate compression level (0-9).
+     */
+    private final int compressionLevel;
+
+    /**
+     * The row filter heuristic.
+     */
+    private final Filter filter;
+
+    /**
+     * Approximate number of uncompressed bytes in each chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * Constructor initializes the fields.
+     *
+     * @param parallelism      Number of threads, where a value less
+     *                         than 1 uses all available processors
+     * @param compressionLevel The deflate compression level (0-9)
+     * @param filter           The row filter heuristic
+     * @param chunkSize        Approximate number of uncompressed bytes
+     *                         in each chunk, which is at least 32KB
+     */
+    public ParallelPngEncoder(int parallelism,
+                              int compressionLevel,
+                              Filter filter,
+                              int chunkSize) {
+        if (compressionLevel < Deflater.NO_COMPRESSION
+            || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException
+                ("Invalid compression level: " + compressionLevel);
+        }
+
+        this.pool = new ForkJoinPool(parallelism < 1
+                                     ? Runtime.getRuntime().availableProcessors()
+                                     : parallelism);
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.chunkSize = Math.max(chunkSize, WINDOW_SIZE);
+    }
+
+    /**
+     * Encodes {@code image} as a PNG using the encoder's thread pool.
+     *
+     * @param image The {@link BufferedImage} to encode
+     * @return The PNG image bytes
+     */
+    @Override
+    public byte[] encode(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ColorType colorType = ColorType.of(image);
+        int rowBytes = width * colorType.bytesPerPixel;
+
+        // The PNG specification recommends not filtering palette rows.
+        Filter rowFilter = colorType == ColorType.PALETTE ? Filter.NONE : filter;
+        int rowsPerChunk = Math.max(1, chunkSize / (rowBytes + 1));
+        int chunks = (height + rowsPerChunk - 1) / rowsPerChunk;
+
+        // Filter all the chunks in parallel.
+        byte[][] filtered = invokeAll(chunks, chunk -> filterRows
+            (image,
+             chunk * rowsPerChunk,
+             Math.min(height, (chunk + 1) * rowsPerChunk),
+             colorType,
+             rowFilter));
+
+        // Deflate all the chunks in parallel, priming each chunk with
+        // the tail of the chunk before it.
+        byte[][] deflated = invokeAll(chunks, chunk -> deflate
+            (filtered[chunk],
+             chunk == 0 ? null : filtered[chunk - 1],
+             chunk == chunks - 1));
+
+        // Combine the checksums of the uncompressed chunks.
+        long adler = 1;
+        for (byte[] data : filtered) {
+            Adler32 checksum = new Adler32();
+            checksum.update(data);
+            adler = combineAdler32(adler, checksum.getValue(), data.length);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(SIGNATURE);
+        writeChunk(out, "IHDR", header(width, height, colorType));
+        if (colorType == ColorType.PALETTE) {
+            writePalette(out, (IndexColorModel) image.getColorModel());
+        }
+
+        // The zlib stream spans all the IDAT chunks.
+        writeChunk(out, "IDAT", zlibHeader());
+        for (byte[] data : deflated) {
+            writeChunk(out, "IDAT", data);
+        }
+        writeChunk(out, "IDAT", intBytes((int) adler));
+
+        writeChunk(out, "IEND", new byte[0]);
+        return out.toByteArray();
+    }
+
+    /**
+     * Shuts down the encoder's thread pool.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Returns the filtered bytes of rows {@code [fromRow, toRow)}, each
+     * of which starts with its filter type.
+     */
+    private byte[] filterRows(BufferedImage image,
+                              int fromRow,
+                              int toRow,
+                              ColorType colorType,
+                              Filter rowFilter) {
+        int width = image.getWidth();
+        int bytesPerPixel = colorType.bytesPerPixel;
+        int rowBytes = width * bytesPerPixel;
+        byte[] result = new byte[(toRow - fromRow) * (rowBytes + 1)];
+        int[] pixels = new int[width];
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = rowFilter == Filter.ADAPTIVE
+            ? new byte[Filter.ADAPTIVE.ordinal()][rowBytes]
+            : new byte[1][rowBytes];
+
+        // The first row is filtered against the row above it.
+        if (fromRow > 0) {
+            rowBytes(image, fromRow - 1, pixels, previous, colorType);
+        }
+
+        for (int y = fromRow, offset = 0; y < toRow; y++) {
+            rowBytes(image, y, pixels, current, colorType);
+
+            if (rowFilter == Filter.ADAPTIVE) {
+                // Keep the candidate with the smallest absolute sum.
+                int best = 0;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = 0; type < candidates.length; type++) {
+                    long sum = filterRow(type, current, previous,
+                                         bytesPerPixel, candidates[type]);
+                    if (sum < bestSum) {
+                        best = type;
+                        bestSum = sum;
+                    }
+                }
+                result[offset] = (byte) best;
+                System.arraycopy(candidates[best], 0,
+                                 result, offset + 1, rowBytes);
+            } else {
+                filterRow(rowFilter.ordinal(), current, previous,
+                          bytesPerPixel, candidates[0]);
+                result[offset] = (byte) rowFilter.ordinal();
+                System.arraycopy(candidates[0], 0,
+                                 result, offset + 1, rowBytes);
+            }
+
+            offset += rowBytes + 1;
+
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return result;
+    }
+
+    /**
+     * Applies the PNG filter {@code type} to the {@code current} row
+     * and returns the sum of the absolute values of the result.
+     */
+    private static long filterRow(int type,
+                                  byte[] current,
+                                  byte[] previous,
+                                  int bytesPerPixel,
+                                  byte[] out) {
+        long sum = 0;
+
+        for (int i = 0; i < current.length; i++) {
+            int raw = current[i] & 0xFF;
+            int left = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+            int up = previous[i] & 0xFF;
+            int upLeft = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+            int value;
+
+            switch (type) {
+            case 1:
+                value = raw - left;
+                break;
+            case 2:
+                value = raw - up;
+                break;
+            case 3:
+                value = raw - ((left + up) >>> 1);
+                break;
+            case 4:
+                value = raw - paeth(left, up, upLeft);
+                break;
+            default:
+                value = raw;
+            }
+
+            out[i] = (byte) value;
+            sum += Math.abs((int) (byte) value);
+        }
+
+        return sum;
+    }
+
+    /**
+     * The Paeth predictor defined by the PNG specification.
+     */
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int leftDistance = Math.abs(estimate - left);
+        int upDistance = Math.abs(estimate - up);
+        int upLeftDistance = Math.abs(estimate - upLeft);
+
+        if (leftDistance <= upDistance && leftDistance <= upLeftDistance) {
+            return left;
+        } else if (upDistance <= upLeftDistance) {
+            return up;
+        } else {
+            return upLeft;
+        }
+    }
+
+    /**
+     * Stores the unfiltered bytes of row {@code y} in {@code out}.
+     * Gray levels and palette indices are copied from the raster,
+     * while other images are stored as non-premultiplied RGB(A).
+     */
+    private static void rowBytes(BufferedImage image,
+                                 int y,
+                                 int[] pixels,
+                                 byte[] out,
+                                 ColorType colorType) {
+        if (colorType.bytesPerPixel == 1) {
+            // Raw samples avoid the gamma conversion that getRGB()
+            // applies to TYPE_BYTE_GRAY images.
+            image.getRaster().getSamples(0, y, pixels.length, 1, 0, pixels);
+            for (int x = 0; x < pixels.length; x++) {
+                out[x] = (byte) pixels[x];
+            }
+            return;
+        }
+
+        image.getRGB(0, y, pixels.length, 1, pixels, 0, pixels.length);
+
+        for (int x = 0, i = 0; x < pixels.length; x++) {
+            int pixel = pixels[x];
+            out[i++] = (byte) (pixel >> 16);
+            out[i++] = (byte) (pixel >> 8);
+            out[i++] = (byte) pixel;
+            if (colorType == ColorType.RGBA) {
+                out[i++] = (byte) (pixel >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Returns the raw deflate data for one chunk, using the last 32KB
+     * of the {@code previous} chunk (if any) as its dictionary.  All
+     * chunks but the {@code last} end with a sync flush so that they
+     * can be concatenated.
+     */
+    private byte[] deflate(byte[] data, byte[] previous, boolean last) {
+        Deflater deflater = new Deflater(compressionLevel, true);
+
+        try {
+            if (previous != null) {
+                int length = Math.min(WINDOW_SIZE, previous.length);
+                deflater.setDictionary(previous,
+                                       previous.length - length,
+                                       length);
+            }
+
+            deflater.setInput(data);
+
+            ByteArrayOutputStream out =
+                new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    out.write(buffer, 0, count);
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length,
+                                             Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the two byte zlib header for the compression level.
+     */
+    private byte[] zlibHeader() {
+        int cmf = 0x78;
+        int level = compressionLevel < 2 ? 0
+            : compressionLevel < 6 ? 1
+            : compressionLevel == 6 ? 2
+            : 3;
+        int flg = level << 6;
+        flg += (31 - (cmf * 256 + flg) % 31) % 31;
+        return new byte[] {(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Returns the IHDR chunk data for an 8-bit image.
+     */
+    private static byte[] header(int width, int height, ColorType colorType) {
+        byte[] header = new byte[13];
+        System.arraycopy(intBytes(width), 0, header, 0, 4);
+        System.arraycopy(intBytes(height), 0, header, 4, 4);
+        header[8] = 8;
+        header[9] = (byte) colorType.code;
+        return header;
+    }
+
+    /**
+     * Writes the PLTE chunk and, if any entry isn't opaque, the tRNS
+     * chunk for {@code colorModel}.
+     */
+    private static void writePalette(ByteArrayOutputStream out,
+                                     IndexColorModel colorModel) {
+        int size = colorModel.getMapSize();
+        byte[] palette = new byte[size * 3];
+        byte[] alphas = new byte[size];
+        int transparent = 0;
+
+        for (int i = 0; i < size; i++) {
+            int rgb = colorModel.getRGB(i);
+            palette[i * 3] = (byte) (rgb >> 16);
+            palette[i * 3 + 1] = (byte) (rgb >> 8);
+            palette[i * 3 + 2] = (byte) rgb;
+            alphas[i] = (byte) (rgb >>> 24);
+            if (alphas[i] != (byte) 0xFF) {
+                transparent = i + 1;
+            }
+        }
+
+        writeChunk(out, "PLTE", palette);
+        if (transparent > 0) {
+            writeChunk(out, "tRNS", Arrays.copyOf(alphas, transparent));
+        }
+    }
+
+    /**
+     * Writes a PNG chunk with its length, type, data, and CRC.
+     */
+    private static void writeChunk(ByteArrayOutputStream out,
+                                   String type,
+                                   byte[] data) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        out.writeBytes(intBytes(data.length));
+        out.writeBytes(typeBytes);
+        out.writeBytes(data);
+        out.writeBytes(intBytes((int) crc.getValue()));
+    }
+
+    /**
+     * Returns the big-endian bytes of {@code value}.
+     */
+    private static byte[] intBytes(int value) {
+        return new byte[] {
+            (byte) (value >>> 24),
+            (byte) (value >>> 16),
+            (byte) (value >>> 8),
+            (byte) value};
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two concatenated blocks given
+     * the checksum of each block and the length of the second one,
+     * using the same math as zlib's {@code adler32_combine()}.
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF)
+            + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * A task that produces the bytes for one chunk.
+     */
+    @FunctionalInterface
+    private interface ChunkTask {
+        byte[] apply(int chunk) throws Exception;
+    }
+
+    /**
+     * Runs {@code task} for each of the {@code chunks} in the pool and
+     * returns the results in chunk order.
+     */
+    private byte[][] invokeAll(int chunks, ChunkTask task) {
+        List<Callable<byte[]>> callables = new ArrayList<>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int index = chunk;
+            callables.add(() -> task.apply(index));
+        }
+
+        try {
+            List<Future<byte[]>> futures = pool.invokeAll(callables);
+            byte[][] results = new byte[chunks][];
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                results[chunk] = futures.get(chunk).get();
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Rethrow as unchecked exception.
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package server.common;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import server.common.model.TransformedImage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An {@link org.springframework.http.converter.HttpMessageConverter}
+ * that writes a {@link TransformedImage} or a {@link Collection} of
+ * them as a stream of binary frames instead of base64 encoded JSON.
+ * <p>
+ * Clients opt in by sending an {@code Accept} header with {@link
+ * #MEDIA_TYPE_VALUE}, and JSON stays the default otherwise.  Each
+ * frame is written with {@link DataOutputStream} as
+ * <pre>
+ *   imageName     (writeUTF: 2 byte length + modified UTF-8)
+ *   transformName (writeUTF: 2 byte length + modified UTF-8)
+ *   imageLength   (writeInt: 4 byte big-endian length)
+ *   imageBytes    (imageLength raw image bytes)
+ * </pre>
+ * and the frames simply follow each other until the end of the body.
+ * Only collections declared to hold {@link TransformedImage} objects
+ * are written and read, so other collections are left to other
+ * converters.
+ * A transform missing from a partial response is written as a frame
+ * whose {@code imageLength} is -1, followed by its status (writeUTF)
+ * instead of the image bytes.
+ */
+public class TransformedImageFramesConverter
+    extends AbstractGenericHttpMessageConverter<Object> {
+    /**
+     * The media type of a binary frame stream.
+     */
+    public static final String MEDIA_TYPE_VALUE =
+        "application/x-transformed-images";
+
+    /**
+     * The {@link MediaType} of a binary frame stream.
+     */
+    public static final MediaType MEDIA_TYPE =
+        MediaType.valueOf(MEDIA_TYPE_VALUE);
+
+    /**
+     * The image length that marks a frame of a missing image.
+     */
+    private static final int MISSING = -1;
+
+    /**
+     * Constructor registers the frame stream media type.
+     */
+    public TransformedImageFramesConverter() {
+        super(MEDIA_TYPE);
+    }
+
+    /**
+     * Only a single {@link TransformedImage} is supported when the
+     * element type of a collection isn't known.
+     */
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return TransformedImage.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return isTransformedImages(type) && canRead(mediaType);
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        return (type == null ? supports(clazz) : isTransformedImages(type))
+            && canWrite(mediaType);
+    }
+
+    @Override
+    public Object read(Type type,
+                       Class<?> contextClass,
+                       HttpInputMessage inputMessage)
+        throws IOException {
+        return readInternal(ResolvableType.forType(type).toClass(), inputMessage);
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz,
+                                  HttpInputMessage inputMessage)
+        throws IOException {
+        List<TransformedImage> images = readFrames(inputMessage);
+
+        if (!TransformedImage.class.isAssignableFrom(clazz)) {
+            return images;
+        } else if (images.size() == 1) {
+            return images.get(0);
+        } else {
+            throw new HttpMessageNotReadableException
+                ("Expected one frame but got " + images.size(),
+                 inputMessage);
+        }
+    }
+
+    @Override
+    protected void writeInternal(Object object,
+                                 Type type,
+                                 HttpOutputMessage outputMessage)
+        throws IOException {
+        DataOutputStream out = new DataOutputStream(outputMessage.getBody());
+
+        if (object instanceof TransformedImage) {
+            writeFrame(out, (TransformedImage) object);
+        } else {
+            for (Object element : (Collection<?>) object) {
+                if (!(element instanceof TransformedImage)) {
+                    throw new HttpMessageNotWritableException
+                        ("Can't write " + element + " as a frame");
+                }
+                writeFrame(out, (TransformedImage) element);
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * @return True if {@code type} is {@link TransformedImage} or a
+     *         {@link Collection} of them
+     */
+    private static boolean isTransformedImages(Type type) {
+        ResolvableType resolved = ResolvableType.forType(type);
+        Class<?> clazz = resolved.toClass();
+
+        return TransformedImage.class.isAssignableFrom(clazz)
+            || (Collection.class.isAssignableFrom(clazz)
+                && TransformedImage.class.isAssignableFrom
+                       (resolved.asCollection().getGeneric(0).toClass()));
+    }
+
+    /**
+     * Writes one {@link TransformedImage} frame.
+     */
+    private static void writeFrame(DataOutputStream out,
+                                   TransformedImage image)
+        throws IOException {
+        out.writeUTF(image.getImageName());
+        out.writeUTF(image.getTransformName());
+
+        if (image.getStatus() != null) {
+            out.writeInt(MISSING);
+            out.writeUTF(image.getStatus());
+            return;
+        }
+
+        byte[] bytes = image.getBytes();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads frames until the end of the body.
+     */
+    private static List<TransformedImage> readFrames(HttpInputMessage inputMessage)
+        throws IOException {
+        DataInputStream in = new DataInputStream(inputMessage.getBody());
+        List<TransformedImage> images = new ArrayList<>();
+
+        while (true) {
+            String imageName;
+            try {
+                imageName = in.readUTF();
+            } catch (EOFException e) {
+                // No more frames.
+                return images;
+            }
+
+            String transformName = in.readUTF();
+            int length = in.readInt();
+            if (length == MISSING) {
+                images.add(TransformedImage.missing(imageName,
+                                                    transformName,
+                                                    in.readUTF()));
+                continue;
+            } else if (length < 0) {
+                throw new HttpMessageNotReadableException
+                    ("Invalid frame length " + length, inputMessage);
+            }
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            images.add(new TransformedImage(imageName, transformName, bytes));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package server.common;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+/**
+ * Spring MVC configuration shared by the gateway and the transform
+ * microservices.
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+    /**
+     * Adds the {@link TransformedImageFramesConverter} after the
+     * default converters, so that it's only used when a client asks
+     * for binary frames and JSON remains the default.
+     *
+     * @param converters The configured message converters
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(new TransformedImageFramesConverter());
+    }
+}
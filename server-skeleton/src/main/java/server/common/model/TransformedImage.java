@@ -1,6 +1,7 @@
 package server.common.model;
 
-import server.common.ImageUtils;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import server.common.ImageEncoder;
 
 import java.awt.image.BufferedImage;
 import java.util.Base64;
@@ -9,8 +10,23 @@ import java.util.Objects;
 /**
  * The Data Transfer Object (DTO) used to return a {@link TransformedImage}
  * back to client application.
+ * <p>
+ * A partial response also holds an entry without an image for each
+ * transform that didn't finish in time, whose {@link #getStatus()}
+ * says why.
  */
 public class TransformedImage {
+    /**
+     * The status of a transform that was cancelled because it didn't
+     * finish within the client's latency bound.
+     */
+    public static final String TIMED_OUT = "TIMED_OUT";
+
+    /**
+     * The status of a transform whose microservice call failed.
+     */
+    public static final String FAILED = "FAILED";
+
     /**
      * Source image name.
      */
@@ -26,6 +42,12 @@ public class TransformedImage {
      */
     private String encodedBytes;
 
+    /**
+     * Why the image is missing, or null if it's there.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String status;
+
     /**
      * Default constructor is required for Jackson.
      */
@@ -50,12 +72,32 @@ public class TransformedImage {
         if (this == o) return true;
         if (!(o instanceof TransformedImage)) return false;
         TransformedImage that = (TransformedImage) o;
-        return imageName.equals(that.imageName) && transformName.equals(that.transformName) && encodedBytes.equals(that.encodedBytes);
+        return imageName.equals(that.imageName) && transformName.equals(that.transformName) && Objects.equals(encodedBytes, that.encodedBytes) && Objects.equals(status, that.status);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(imageName, transformName, encodedBytes);
+        return Objects.hash(imageName, transformName, encodedBytes, status);
+    }
+
+    /**
+     * Returns the entry of a transform whose image is missing from a
+     * partial response.
+     *
+     * @param imageName     Source image name.
+     * @param transformName Transform name.
+     * @param status        Why the image is missing, e.g., {@link
+     *                      #TIMED_OUT}.
+     * @return A {@link TransformedImage} without an image.
+     */
+    public static TransformedImage missing(String imageName,
+                                           String transformName,
+                                           String status) {
+        TransformedImage image = new TransformedImage();
+        image.imageName = imageName;
+        image.transformName = transformName;
+        image.status = status;
+        return image;
     }
 
     /**
@@ -79,11 +121,27 @@ public class TransformedImage {
      * @param bufferedImage Java {@link BufferedImage}
      */
     public TransformedImage(String imageName, String transformName, BufferedImage bufferedImage) {
+        this(imageName, transformName, bufferedImage, ImageEncoder.IMAGE_IO);
+    }
+
+    /**
+     * Constructor for a {@link BufferedImage} encoded by the given
+     * {@link ImageEncoder}.
+     *
+     * @param imageName     Source image name.
+     * @param transformName Transform name.
+     * @param bufferedImage Java {@link BufferedImage}
+     * @param encoder       Encodes the image as a PNG.
+     */
+    public TransformedImage(String imageName,
+                            String transformName,
+                            BufferedImage bufferedImage,
+                            ImageEncoder encoder) {
         this.imageName = imageName;
         this.transformName = transformName;
         this.encodedBytes =
                 Base64.getEncoder().encodeToString(
-                        ImageUtils.toByteArray(bufferedImage, "png"));
+                        encoder.encode(bufferedImage));
     }
 
     /**
@@ -134,6 +192,22 @@ public class TransformedImage {
         this.encodedBytes = encodedBytes;
     }
 
+    /**
+     * @return Why the image is missing, or null if it's there.
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Sets why the image is missing.
+     *
+     * @param status The status, or null if the image is there.
+     */
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
     /**
      * @return Decoded image bytes.
      */
@@ -161,6 +235,7 @@ public class TransformedImage {
                 "imageName='" + imageName + '\'' +
                 "transformName='" + transformName + '\'' +
                 ", encodedBytes='" + encodedBytes + '\'' +
+                (status != null ? ", status='" + status + '\'' : "") +
                 '}';
     }
 }
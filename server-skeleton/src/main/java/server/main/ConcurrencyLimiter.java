@@ -0,0 +1,305 @@
+package server.main;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent calls the gateway makes to each
+ * transform microservice, so that a burst of requests is shed with a
+ * fast 503 instead of queueing in the microservices until it times
+ * out.
+ * <p>
+ * Each microservice's limit adapts to its latency like TCP congestion
+ * control, i.e., additive increase, multiplicative decrease (AIMD).
+ * While calls complete within {@code main.limiter.tolerance} times the
+ * lowest recent latency and the limit is in use, it grows by about one
+ * per round trip.  When latency rises above that, which means calls
+ * are queueing, or a call fails, it shrinks by {@code
+ * main.limiter.backoff} at most once per round trip.  The lowest
+ * latency is re-measured over every window of calls, so it follows
+ * lasting changes such as larger images.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the {@link MainService}.
+ */
+@Component
+public class ConcurrencyLimiter {
+    /**
+     * The number of calls over which the lowest latency is measured.
+     */
+    private static final int WINDOW_SIZE = 250;
+
+    /**
+     * If false, calls are never limited.
+     */
+    @Value("${main.limiter.enabled:false}")
+    boolean enabled;
+
+    /**
+     * The limit of a microservice before any call completes.
+     */
+    @Value("${main.limiter.initial-limit:20}")
+    int initialLimit = 20;
+
+    /**
+     * The bounds of every limit.
+     */
+    @Value("${main.limiter.min-limit:1}")
+    int minLimit = 1;
+    @Value("${main.limiter.max-limit:200}")
+    int maxLimit = 200;
+
+    /**
+     * How many times the lowest latency a call can take before the
+     * microservice counts as queueing.
+     */
+    @Value("${main.limiter.tolerance:2.0}")
+    double tolerance = 2.0;
+
+    /**
+     * The factor a limit is multiplied by when it shrinks.
+     */
+    @Value("${main.limiter.backoff:0.9}")
+    double backoff = 0.9;
+
+    /**
+     * How long a rejected client is asked to wait before retrying.
+     */
+    @Value("${main.limiter.retry-after:1s}")
+    Duration retryAfter = Duration.ofSeconds(1);
+
+    /**
+     * The limit of each microservice.
+     */
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a {@link Flux} that subscribes to {@code call} if {@code
+     * service} is below its limit, or else fails at once with a {@link
+     * OverloadedException}.  The call counts against the limit until
+     * it terminates or is cancelled.
+     *
+     * @param service The microservice called
+     * @param call    The call to the microservice
+     * @return A {@link Flux} that emits the call's elements
+     */
+    public <T> Flux<T> limit(String service, Flux<T> call) {
+        if (!enabled) {
+            return call;
+        }
+
+        return Flux.defer(() -> {
+                Limit limit = limits.computeIfAbsent(service.toLowerCase(),
+                                                     key -> new Limit(initialLimit));
+                if (!limit.tryAcquire()) {
+                    return Flux.error(new OverloadedException(service, retryAfter));
+                }
+
+                long start = System.nanoTime();
+                AtomicBoolean released = new AtomicBoolean();
+
+                // Release before the signal propagates, so a fallback
+                // call made downstream doesn't count twice.
+                return call
+                    .doOnComplete(() -> {
+                            if (released.compareAndSet(false, true)) {
+                                limit.release(System.nanoTime() - start, false);
+                            }
+                        })
+                    .doOnError(e -> {
+                            if (released.compareAndSet(false, true)) {
+                                limit.release(System.nanoTime() - start, isDrop(e));
+                            }
+                        })
+                    .doOnCancel(() -> {
+                            if (released.compareAndSet(false, true)) {
+                                limit.release(0, false);
+                            }
+                        });
+            });
+    }
+
+    /**
+     * @return The limit, calls in flight, lowest latency, and counts of
+     *         each microservice as a {@link Map}
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        limits.forEach((service, limit) -> metrics.put(service, limit.metrics()));
+        return metrics;
+    }
+
+    /**
+     * @return True if {@code e} shows the microservice is overloaded
+     *         or unreachable, rather than rejecting the request
+     */
+    private static boolean isDrop(Throwable e) {
+        return !(e instanceof WebClientResponseException)
+            || ((WebClientResponseException) e).getStatusCode().is5xxServerError();
+    }
+
+    /**
+     * The 503 response sent when a microservice is at its limit, which
+     * asks the client to retry after a delay.
+     */
+    public static class OverloadedException extends ResponseStatusException {
+        /**
+         * How long the client should wait before retrying.
+         */
+        private final Duration retryAfter;
+
+        OverloadedException(String service, Duration retryAfter) {
+            super(HttpStatus.SERVICE_UNAVAILABLE, service + " is overloaded");
+            this.retryAfter = retryAfter;
+        }
+
+        @Override
+        public HttpHeaders getResponseHeaders() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER,
+                        Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000)));
+            return headers;
+        }
+    }
+
+    /**
+     * The adaptive limit of one microservice.
+     */
+    final class Limit {
+        /**
+         * The current limit, which grows in fractions of a call.
+         */
+        private double limit;
+
+        /**
+         * The number of calls in flight.
+         */
+        private int inFlight;
+
+        /**
+         * The lowest latency of the last complete window, or 0 before
+         * any call completes.
+         */
+        private long minRtt;
+
+        /**
+         * The lowest latency of the current window and the number of
+         * calls in it.
+         */
+        private long windowMin = Long.MAX_VALUE;
+        private int windowCount;
+
+        /**
+         * When the limit last shrank.
+         */
+        private long lastDecrease;
+
+        /**
+         * The number of calls let through and rejected.
+         */
+        private final AtomicLong accepted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        Limit(int initialLimit) {
+            this.limit = initialLimit;
+        }
+
+        /**
+         * Counts a call in flight if the limit allows it.
+         *
+         * @return True if the call may proceed
+         */
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            inFlight++;
+            accepted.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Ends a call and adapts the limit to how it went.
+         *
+         * @param rtt     The call's latency, or 0 if it was cancelled
+         *                and says nothing about the microservice
+         * @param dropped True if the call failed from overload
+         */
+        synchronized void release(long rtt, boolean dropped) {
+            int used = inFlight--;
+            if (rtt <= 0) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (!dropped) {
+                sample(rtt);
+                if (rtt <= minRtt * tolerance) {
+                    // Grow by one per limit's worth of calls, but only
+                    // while the limit is what's holding calls back.
+                    if (used * 2 >= limit) {
+                        limit = Math.min(maxLimit, limit + 1 / limit);
+                    }
+                    return;
+                }
+            }
+
+            // Shrink at most once per round trip, since the calls in
+            // flight already saw the old limit.
+            if (now - lastDecrease >= Math.max(rtt, minRtt)) {
+                limit = Math.max(minLimit, limit * backoff);
+                lastDecrease = now;
+            }
+        }
+
+        /**
+         * Adds a latency to the current window, and makes its lowest
+         * latency the new baseline once the window is full.
+         */
+        private void sample(long rtt) {
+            windowMin = Math.min(windowMin, rtt);
+            if (minRtt == 0 || rtt < minRtt) {
+                minRtt = rtt;
+            }
+            if (++windowCount == WINDOW_SIZE) {
+                minRtt = windowMin;
+                windowMin = Long.MAX_VALUE;
+                windowCount = 0;
+            }
+        }
+
+        /**
+         * @return The current limit rounded down to whole calls
+         */
+        synchronized int limit() {
+            return (int) limit;
+        }
+
+        /**
+         * @return The state of the limit as a {@link Map}
+         */
+        synchronized Map<String, Object> metrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("limit", (int) limit);
+            metrics.put("inFlight", inFlight);
+            metrics.put("minRttMillis", minRtt / 1_000_000.0);
+            metrics.put("accepted", accepted.get());
+            metrics.put("rejected", rejected.get());
+            return metrics;
+        }
+    }
+}
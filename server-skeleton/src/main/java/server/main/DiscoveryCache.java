@@ -0,0 +1,209 @@
+package server.main;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.discovery.event.HeartbeatEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import server.common.Constants.Metadata;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the registered microservices and their instances that
+ * the {@link MainService} reads on every request without calling the
+ * {@link DiscoveryClient}.
+ * <p>
+ * The snapshot is rebuilt whenever the Eureka client publishes a
+ * {@link HeartbeatEvent} after fetching a changed registry, and on a
+ * background timer in case an event is missed.  Each rebuild replaces
+ * an immutable {@link Map} held in a volatile field, so reads never
+ * lock or allocate.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the {@link MainService}.
+ */
+@Component
+public class DiscoveryCache {
+    /**
+     * This auto-wired field connects the {@link DiscoveryCache} to the
+     * {@link DiscoveryClient} used to find all registered
+     * microservices.
+     */
+    @Autowired
+    DiscoveryClient discoveryClient;
+
+    /**
+     * How often the snapshot is rebuilt without a {@link
+     * HeartbeatEvent}, where zero disables the timer.
+     */
+    @Value("${main.discovery.refresh-interval:30s}")
+    Duration refreshInterval = Duration.ZERO;
+
+    /**
+     * The lower-case service ids mapped to their instances, which
+     * stays null until the first refresh.
+     */
+    private volatile Map<String, List<ServiceInstance>> instances;
+
+    /**
+     * The value of the last {@link HeartbeatEvent}, which changes when
+     * the Eureka client fetches a changed registry.
+     */
+    private volatile Object lastHeartbeat;
+
+    /**
+     * Runs the periodic refresh, or stays null if it's disabled.
+     */
+    private ScheduledExecutorService timer;
+
+    /**
+     * Loads the first snapshot and starts the refresh timer once the
+     * properties are injected.
+     */
+    @PostConstruct
+    void start() {
+        refresh();
+
+        if (!refreshInterval.isZero()) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "discovery-cache");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            timer.scheduleWithFixedDelay(this::refresh,
+                                         refreshInterval.toMillis(),
+                                         refreshInterval.toMillis(),
+                                         TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the refresh timer when the application stops.
+     */
+    @PreDestroy
+    void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Rebuilds the snapshot when the Eureka client has fetched a
+     * changed registry.
+     *
+     * @param event The {@link HeartbeatEvent} published by the client
+     */
+    @EventListener
+    public void onHeartbeat(HeartbeatEvent event) {
+        if (!Objects.equals(event.getValue(), lastHeartbeat)) {
+            lastHeartbeat = event.getValue();
+            refresh();
+        }
+    }
+
+    /**
+     * @return The lower-case ids of all the registered microservices
+     */
+    public Set<String> services() {
+        return snapshot().keySet();
+    }
+
+    /**
+     * Returns the instances of a registered microservice.
+     *
+     * @param serviceId A service id in any case
+     * @return The instances of the service, which is empty if it isn't
+     *         registered
+     */
+    public List<ServiceInstance> instances(String serviceId) {
+        return snapshot().getOrDefault(serviceId.toLowerCase(), List.of());
+    }
+
+    /**
+     * Returns the transforms that every instance of a registered
+     * microservice applies, i.e., its own transform and those listed
+     * in the {@link Metadata#TRANSFORMS} metadata of all of its
+     * instances.
+     *
+     * @param serviceId A service id in any case
+     * @return The lower-case names of the transforms, which is empty
+     *         if the service isn't registered
+     */
+    public Set<String> transforms(String serviceId) {
+        List<ServiceInstance> instances = instances(serviceId);
+        if (instances.isEmpty()) {
+            return Set.of();
+        }
+
+        Set<String> transforms = null;
+        for (ServiceInstance instance : instances) {
+            Set<String> hosted = new HashSet<>();
+            hosted.add(serviceId.toLowerCase());
+
+            String listed = instance.getMetadata() == null
+                ? null
+                : instance.getMetadata().get(Metadata.TRANSFORMS);
+            if (listed != null) {
+                for (String transform : listed.split(",")) {
+                    if (!transform.isBlank()) {
+                        hosted.add(transform.trim().toLowerCase());
+                    }
+                }
+            }
+
+            if (transforms == null) {
+                transforms = hosted;
+            } else {
+                transforms.retainAll(hosted);
+            }
+        }
+        return transforms;
+    }
+
+    /**
+     * Queries the {@link DiscoveryClient} and replaces the snapshot.
+     * Failures keep the previous snapshot until the next refresh.
+     */
+    void refresh() {
+        try {
+            Map<String, List<ServiceInstance>> map = new HashMap<>();
+            for (String service : discoveryClient.getServices()) {
+                // Eureka service ids are case-insensitive.
+                map.put(service.toLowerCase(),
+                        List.copyOf(discoveryClient.getInstances(service)));
+            }
+            instances = Map.copyOf(map);
+        } catch (RuntimeException e) {
+            if (instances == null) {
+                instances = Map.of();
+            }
+        }
+    }
+
+    /**
+     * Returns the current snapshot, loading it on first use when the
+     * cache isn't managed by Spring, e.g., in unit tests.
+     */
+    private Map<String, List<ServiceInstance>> snapshot() {
+        Map<String, List<ServiceInstance>> snapshot = instances;
+        if (snapshot == null) {
+            refresh();
+            snapshot = instances;
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,280 @@
+package server.main;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Hedges the gateway's calls to the transform microservices, i.e., if
+ * a call hasn't responded within a percentile of the recent latency of
+ * its microservice, a duplicate call is sent and whichever responds
+ * first wins, while the other is cancelled.  This keeps one stalled
+ * instance, e.g., one in a long GC pause, from stalling the whole
+ * response.
+ * <p>
+ * Hedges are paid for from a budget that every call adds {@code
+ * main.hedge.budget} to, so no more than that fraction of the calls
+ * are ever duplicated, even when a microservice is slow everywhere
+ * and hedging can't help.  The {@link LatencyAwareLoadBalancer} sends
+ * each hedge to a different instance than the call it duplicates.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the {@link MainService}.
+ */
+@Component
+public class HedgePolicy {
+    /**
+     * The number of recent latencies kept for each microservice.
+     */
+    private static final int WINDOW_SIZE = 1000;
+
+    /**
+     * The number of latencies needed before a microservice is hedged,
+     * so the first calls don't hedge on a meaningless percentile.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * The most hedges the budget can save up for a burst.
+     */
+    private static final double MAX_TOKENS = 10;
+
+    /**
+     * If false, calls are never hedged.
+     */
+    @Value("${main.hedge.enabled:false}")
+    boolean enabled;
+
+    /**
+     * The percentile of recent latency after which a call is hedged.
+     */
+    @Value("${main.hedge.percentile:95}")
+    double percentile = 95;
+
+    /**
+     * The most a call waits before it's hedged, which applies until
+     * enough latencies are known and caps a percentile inflated by a
+     * stall.
+     */
+    @Value("${main.hedge.max-delay:1s}")
+    Duration maxDelay = Duration.ofSeconds(1);
+
+    /**
+     * The least a call waits before it's hedged, so a noisy fast
+     * microservice isn't hedged on every jitter.
+     */
+    @Value("${main.hedge.min-delay:5ms}")
+    Duration minDelay = Duration.ofMillis(5);
+
+    /**
+     * The largest fraction of calls that may be hedged.
+     */
+    @Value("${main.hedge.budget:0.05}")
+    double budget = 0.05;
+
+    /**
+     * The recent latencies of each microservice.
+     */
+    private final Map<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+
+    /**
+     * The number of hedges the budget currently allows.
+     */
+    private double tokens = MAX_TOKENS;
+
+    /**
+     * Counters reported by {@link #metrics}.
+     */
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong overBudget = new AtomicLong();
+
+    /**
+     * Returns a {@link Flux} that subscribes to {@code call} and, if
+     * it hasn't signalled within the hedge delay of {@code service}
+     * and the budget allows, also to the {@link Flux} supplied by
+     * {@code hedge}.  Whichever signals first is mirrored and the
+     * other is cancelled.
+     *
+     * @param service The microservice called
+     * @param call    The call to the microservice
+     * @param hedge   Supplies a duplicate call to another instance
+     * @return A {@link Flux} that emits the winning call's elements
+     */
+    public <T> Flux<T> hedge(String service,
+                             Flux<T> call,
+                             Supplier<Flux<T>> hedge) {
+        if (!enabled) {
+            return call;
+        }
+
+        return Flux.defer(() -> {
+                LatencyWindow window =
+                    windows.computeIfAbsent(service.toLowerCase(),
+                                            key -> new LatencyWindow());
+                calls.incrementAndGet();
+                deposit();
+
+                Flux<T> duplicate = Mono
+                    .delay(delay(window))
+                    .flatMapMany(tick -> {
+                            if (!withdraw()) {
+                                overBudget.incrementAndGet();
+                                return Flux.<T>never();
+                            }
+                            hedges.incrementAndGet();
+                            AtomicBoolean won = new AtomicBoolean();
+                            return timed(hedge.get(), window)
+                                .doOnNext(element -> {
+                                        if (won.compareAndSet(false, true)) {
+                                            hedgeWins.incrementAndGet();
+                                        }
+                                    });
+                        })
+                    // A failed hedge leaves the call to finish alone.
+                    .onErrorResume(e -> Flux.<T>never());
+
+                return Flux.firstWithSignal(timed(call, window), duplicate);
+            });
+    }
+
+    /**
+     * @return The hedge counters as a {@link Map}
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("calls", calls.get());
+        metrics.put("hedges", hedges.get());
+        metrics.put("hedgeWins", hedgeWins.get());
+        metrics.put("overBudget", overBudget.get());
+
+        Map<String, Object> delays = new LinkedHashMap<>();
+        windows.forEach((service, window) ->
+                        delays.put(service, delay(window).toMillis()));
+        metrics.put("delayMillis", delays);
+        return metrics;
+    }
+
+    /**
+     * @return How long a call to the microservice of {@code window}
+     *         waits before it's hedged
+     */
+    Duration delay(LatencyWindow window) {
+        long nanos = window.percentile(percentile);
+        if (nanos < 0) {
+            return maxDelay;
+        }
+        return Duration.ofNanos(Math.max(minDelay.toNanos(),
+                                         Math.min(maxDelay.toNanos(), nanos)));
+    }
+
+    /**
+     * Adds one call's share of the budget.
+     */
+    private synchronized void deposit() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+
+    /**
+     * Takes one hedge from the budget.
+     *
+     * @return True if the budget allowed the hedge
+     */
+    private synchronized boolean withdraw() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Returns {@code flux} recording the time until its first element
+     * or completion into {@code window}.  A call that's cancelled
+     * before then, e.g., a hedging loser, records the time it ran,
+     * which underestimates its latency rather than forgetting it.
+     */
+    private static <T> Flux<T> timed(Flux<T> flux, LatencyWindow window) {
+        return Flux.defer(() -> {
+                long start = System.nanoTime();
+                AtomicBoolean recorded = new AtomicBoolean();
+                Runnable record = () -> {
+                    if (recorded.compareAndSet(false, true)) {
+                        window.record(System.nanoTime() - start);
+                    }
+                };
+                return flux
+                    .doOnNext(element -> record.run())
+                    .doOnComplete(record)
+                    .doOnCancel(record);
+            });
+    }
+
+    /**
+     * The most recent latencies of one microservice, from which the
+     * hedge delay is computed.
+     */
+    static final class LatencyWindow {
+        /**
+         * A ring buffer of latencies in nanoseconds.
+         */
+        private final long[] samples = new long[WINDOW_SIZE];
+
+        /**
+         * The number of latencies recorded so far.
+         */
+        private long count;
+
+        /**
+         * The samples sorted when {@link #percentile} was last
+         * computed, which is reused until enough new ones arrive.
+         */
+        private long[] sorted;
+
+        /**
+         * The value of {@link #count} when {@link #sorted} was made.
+         */
+        private long sortedAt;
+
+        /**
+         * Adds a latency to the window, replacing the oldest one once
+         * it's full.
+         */
+        synchronized void record(long nanos) {
+            samples[(int) (count++ % WINDOW_SIZE)] = nanos;
+        }
+
+        /**
+         * Returns the given {@code percentile} of the window.  The
+         * samples are only sorted again after a tenth of them have
+         * been replaced, so most calls don't pay for the sort.
+         *
+         * @return The latency in nanoseconds, or -1 if the window
+         *         holds too few samples
+         */
+        synchronized long percentile(double percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            if (sorted == null || count - sortedAt >= WINDOW_SIZE / 10) {
+                sorted = Arrays.copyOf(samples, (int) Math.min(count, WINDOW_SIZE));
+                Arrays.sort(sorted);
+                sortedAt = count;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package server.main;
+
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.EmptyResponse;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.loadbalancer.core.ReactorServiceInstanceLoadBalancer;
+import reactor.core.publisher.Mono;
+import server.common.Constants.Headers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link ReactorServiceInstanceLoadBalancer} that picks which
+ * instance of a transform microservice the {@code @LoadBalanced}
+ * {@code WebClient} calls, using the load tracked by the {@link
+ * LoadBalancerStats} so that slow instances, e.g., ones with a cold
+ * JIT or a noisy neighbour, get fewer requests.
+ * <p>
+ * The instances are read from the {@link DiscoveryCache}, so picking
+ * one never blocks.
+ * <p>
+ * With {@link Strategy#CONSISTENT_HASH} the gateway routes each image
+ * by the {@link Headers#ROUTING_KEY} header it sends, so repeated
+ * requests for the same image reach the instance whose caches already
+ * hold it.  Each instance owns many points on a hash ring, so adding or
+ * removing one only moves the keys next to its points, and no instance
+ * takes more than {@code main.load-balancer.hash-load-factor} above
+ * the average share of outstanding requests, so a hot image spills
+ * over to the next instance on the ring instead of overloading its
+ * own.
+ * <p>
+ * A call hedged by the {@link HedgePolicy} is never sent to the
+ * instance of the call it duplicates.
+ */
+public class LatencyAwareLoadBalancer implements ReactorServiceInstanceLoadBalancer {
+    /**
+     * Supported ways of picking an instance.
+     */
+    public enum Strategy {
+        /**
+         * Each instance in turn, ignoring its load.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * The instance with the lowest cost, i.e., EWMA latency times
+         * outstanding requests.
+         */
+        LEAST_LOADED,
+
+        /**
+         * The lower cost of two random instances, which is nearly as
+         * good as {@link #LEAST_LOADED} but doesn't send a burst of
+         * requests to the same instance before its load is updated.
+         */
+        POWER_OF_TWO_CHOICES,
+
+        /**
+         * The instance that owns the request's routing key on a hash
+         * ring, unless it's overloaded, which falls back to {@link
+         * #POWER_OF_TWO_CHOICES} for requests without a key.
+         */
+        CONSISTENT_HASH
+    }
+
+    /**
+     * The number of points each instance owns on the hash ring, which
+     * spreads the keys evenly without making the ring slow to build.
+     */
+    private static final int POINTS_PER_INSTANCE = 100;
+
+    /**
+     * The id of the service whose instances are picked.
+     */
+    private final String serviceId;
+
+    /**
+     * Holds the registered instances of every service.
+     */
+    private final DiscoveryCache discoveryCache;
+
+    /**
+     * Tracks the load of every instance.
+     */
+    private final LoadBalancerStats stats;
+
+    /**
+     * The way instances are picked.
+     */
+    private final Strategy strategy;
+
+    /**
+     * How far above the average number of outstanding requests an
+     * instance can be before {@link Strategy#CONSISTENT_HASH} skips
+     * it, e.g., 0.25 allows 25% more.
+     */
+    private final double hashLoadFactor;
+
+    /**
+     * The hash ring built for the last set of instances.
+     */
+    volatile Ring ring;
+
+    /**
+     * The next instance picked by {@link Strategy#ROUND_ROBIN}.
+     */
+    private final AtomicInteger position =
+        new AtomicInteger(ThreadLocalRandom.current().nextInt(1000));
+
+    /**
+     * Constructor initializes the fields.
+     *
+     * @param serviceId      The id of the service whose instances are picked
+     * @param discoveryCache Holds the registered instances
+     * @param stats          Tracks the load of every instance
+     * @param strategy       The way instances are picked
+     */
+    public LatencyAwareLoadBalancer(String serviceId,
+                                    DiscoveryCache discoveryCache,
+                                    LoadBalancerStats stats,
+                                    Strategy strategy) {
+        this(serviceId, discoveryCache, stats, strategy, 0.25);
+    }
+
+    /**
+     * Constructor initializes the fields.
+     *
+     * @param serviceId      The id of the service whose instances are picked
+     * @param discoveryCache Holds the registered instances
+     * @param stats          Tracks the load of every instance
+     * @param strategy       The way instances are picked
+     * @param hashLoadFactor How far above the average load {@link
+     *                       Strategy#CONSISTENT_HASH} lets an instance go
+     */
+    public LatencyAwareLoadBalancer(String serviceId,
+                                    DiscoveryCache discoveryCache,
+                                    LoadBalancerStats stats,
+                                    Strategy strategy,
+                                    double hashLoadFactor) {
+        this.serviceId = serviceId;
+        this.discoveryCache = discoveryCache;
+        this.stats = stats;
+        this.strategy = strategy;
+        this.hashLoadFactor = hashLoadFactor;
+    }
+
+    @Override
+    public Mono<Response<ServiceInstance>> choose(Request request) {
+        return Mono.fromSupplier(() -> {
+                List<ServiceInstance> instances = discoveryCache.instances(serviceId);
+
+                String hedgeOf = LoadBalancerStats.header(request, Headers.HEDGE_OF);
+                if (hedgeOf != null) {
+                    // Send a hedged call anywhere but to the instance
+                    // that's slow to answer the call it duplicates.
+                    return choose(exclude(instances, stats.sentTo(hedgeOf)), null);
+                }
+
+                return choose(instances,
+                              LoadBalancerStats.header(request, Headers.ROUTING_KEY));
+            });
+    }
+
+    /**
+     * Picks one of the given {@code instances}.
+     *
+     * @param instances  The registered instances of the service
+     * @param routingKey The routing key of the request, or null
+     * @return The {@link Response} holding the picked instance, or an
+     *         {@link EmptyResponse} if there are none
+     */
+    Response<ServiceInstance> choose(List<ServiceInstance> instances,
+                                     String routingKey) {
+        if (instances.isEmpty()) {
+            return new EmptyResponse();
+        }
+
+        ServiceInstance instance = pick(instances, routingKey);
+        stats.get(instance).picks.incrementAndGet();
+        return new LoadBalancerStats.TimedResponse(instance);
+    }
+
+    /**
+     * Picks one of the given non-empty {@code instances} with the
+     * configured {@link Strategy}.
+     */
+    private ServiceInstance pick(List<ServiceInstance> instances,
+                                 String routingKey) {
+        int size = instances.size();
+        if (size == 1) {
+            return instances.get(0);
+        }
+
+        Strategy strategy = this.strategy;
+        if (strategy == Strategy.CONSISTENT_HASH) {
+            if (routingKey != null) {
+                return pickByHash(instances, routingKey);
+            }
+            strategy = Strategy.POWER_OF_TWO_CHOICES;
+        }
+
+        switch (strategy) {
+        case LEAST_LOADED: {
+            // Start at a random instance so ties are spread out.
+            int start = ThreadLocalRandom.current().nextInt(size);
+            ServiceInstance best = instances.get(start);
+            for (int i = 1; i < size; i++) {
+                best = cheaper(best, instances.get((start + i) % size));
+            }
+            return best;
+        }
+        case POWER_OF_TWO_CHOICES: {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if (second >= first) {
+                second++;
+            }
+            return cheaper(instances.get(first), instances.get(second));
+        }
+        default:
+            return instances.get(Math.floorMod(position.getAndIncrement(), size));
+        }
+    }
+
+    /**
+     * @return The {@code instances} other than {@code excluded}, unless
+     *         that leaves none
+     */
+    private static List<ServiceInstance> exclude(List<ServiceInstance> instances,
+                                                 ServiceInstance excluded) {
+        if (excluded == null || instances.size() < 2) {
+            return instances;
+        }
+        String key = LoadBalancerStats.key(excluded);
+        return instances
+            .stream()
+            .filter(instance -> !LoadBalancerStats.key(instance).equals(key))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Walks the hash ring clockwise from {@code routingKey} to the
+     * first instance whose outstanding requests are below its bounded
+     * share, i.e., {@code (1 + hashLoadFactor)} times the average
+     * including this request.  Some instance is always below it, so
+     * the walk ends within one lap.
+     */
+    private ServiceInstance pickByHash(List<ServiceInstance> instances,
+                                       String routingKey) {
+        Ring ring = ring(instances);
+        int total = 0;
+        for (ServiceInstance instance : instances) {
+            total += stats.get(instance).outstanding();
+        }
+        double capacity =
+            Math.ceil((1 + hashLoadFactor) * (total + 1) / instances.size());
+
+        int start = ring.indexOf(hash(routingKey));
+        ServiceInstance owner = ring.owners[start];
+        for (int i = 0; i < ring.points.length; i++) {
+            ServiceInstance instance =
+                ring.owners[(start + i) % ring.points.length];
+            if (stats.get(instance).outstanding() < capacity) {
+                if (instance == owner) {
+                    stats.hashPicks.incrementAndGet();
+                } else {
+                    stats.hashSpills.incrementAndGet();
+                }
+                return instance;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Returns the hash ring for {@code instances}, building it only if
+     * the set of instances changed since the last call.  A discovery
+     * refresh replaces the instance list even if the registry didn't
+     * change, in which case the ring's points are kept.
+     */
+    private Ring ring(List<ServiceInstance> instances) {
+        Ring ring = this.ring;
+        if (ring == null || ring.instances != instances) {
+            Map<String, ServiceInstance> byKey = new HashMap<>();
+            for (ServiceInstance instance : instances) {
+                byKey.put(LoadBalancerStats.key(instance), instance);
+            }
+            ring = ring != null && ring.byKey.keySet().equals(byKey.keySet())
+                ? new Ring(ring, instances, byKey)
+                : new Ring(instances, byKey);
+            this.ring = ring;
+        }
+        return ring;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of {@code key} followed by a mixing
+     * step, so similar keys land far apart on the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * A consistent hash ring, i.e., the sorted hashes of every
+     * instance's points and the instance owning each one.
+     */
+    static final class Ring {
+        /**
+         * The instance list the ring was built for.
+         */
+        final List<ServiceInstance> instances;
+
+        /**
+         * The instances keyed by {@link LoadBalancerStats#key}.
+         */
+        final Map<String, ServiceInstance> byKey;
+
+        /**
+         * The sorted point hashes.
+         */
+        final long[] points;
+
+        /**
+         * The instance owning each point.
+         */
+        final ServiceInstance[] owners;
+
+        Ring(List<ServiceInstance> instances,
+             Map<String, ServiceInstance> byKey) {
+            this.instances = instances;
+            this.byKey = byKey;
+
+            // Sort the points together with their owners.
+            TreeMap<Long, ServiceInstance> ring = new TreeMap<>();
+            for (ServiceInstance instance : instances) {
+                String id = instance.getHost() + ":" + instance.getPort();
+                for (int i = 0; i < POINTS_PER_INSTANCE; i++) {
+                    ring.putIfAbsent(hash(id + "#" + i), instance);
+                }
+            }
+
+            points = new long[ring.size()];
+            owners = new ServiceInstance[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, ServiceInstance> entry : ring.entrySet()) {
+                points[i] = entry.getKey();
+                owners[i++] = entry.getValue();
+            }
+        }
+
+        /**
+         * Reuses the points of a {@code ring} built for the same set
+         * of instances, but owned by the objects in {@code instances}.
+         */
+        Ring(Ring ring,
+             List<ServiceInstance> instances,
+             Map<String, ServiceInstance> byKey) {
+            this.instances = instances;
+            this.byKey = byKey;
+            points = ring.points;
+
+            // Map each old instance to its replacement once, rather
+            // than once per point.
+            Map<ServiceInstance, ServiceInstance> replacements =
+                new IdentityHashMap<>();
+            ring.byKey.forEach((key, instance) ->
+                               replacements.put(instance, byKey.get(key)));
+            owners = new ServiceInstance[ring.owners.length];
+            for (int i = 0; i < owners.length; i++) {
+                owners[i] = replacements.get(ring.owners[i]);
+            }
+        }
+
+        /**
+         * @return The index of the first point at or after {@code
+         *         hash}, wrapping around to the start of the ring
+         */
+        int indexOf(long hash) {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index == points.length ? 0 : index;
+        }
+    }
+
+    /**
+     * @return Whichever of the two instances has the lower cost, or
+     *         fewer outstanding requests if the costs are equal
+     */
+    private ServiceInstance cheaper(ServiceInstance a, ServiceInstance b) {
+        LoadBalancerStats.InstanceStats statsA = stats.get(a);
+        LoadBalancerStats.InstanceStats statsB = stats.get(b);
+        int order = Double.compare(statsA.cost(), statsB.cost());
+        if (order == 0) {
+            order = Integer.compare(statsA.outstanding(), statsB.outstanding());
+        }
+        return order <= 0 ? a : b;
+    }
+}
@@ -0,0 +1,49 @@
+package server.main;
+
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.loadbalancer.core.ReactorLoadBalancer;
+import org.springframework.cloud.loadbalancer.support.LoadBalancerClientFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+
+/**
+ * The load balancer configuration that {@link MainApplication} applies
+ * to every microservice called through the {@code @LoadBalanced}
+ * {@code WebClient}, which replaces the default round-robin balancer
+ * with a {@link LatencyAwareLoadBalancer}.
+ * <p>
+ * Spring Cloud LoadBalancer creates a child context with these beans
+ * for each service, so this class is deliberately not annotated with
+ * {@code @Configuration}, which would add its beans to the gateway's
+ * own context.
+ */
+public class LatencyAwareLoadBalancerConfiguration {
+    /**
+     * This factory method returns the {@link LatencyAwareLoadBalancer}
+     * for the service of the enclosing child context, using the
+     * strategy selected by the {@code main.load-balancer.strategy}
+     * property and the load bound set by {@code
+     * main.load-balancer.hash-load-factor}.
+     *
+     * @param environment    The child context {@link Environment}
+     * @param discoveryCache Holds the registered instances
+     * @param stats          Tracks the load of every instance
+     * @return The {@link ReactorLoadBalancer} for the service
+     */
+    @Bean
+    ReactorLoadBalancer<ServiceInstance> latencyAwareLoadBalancer
+        (Environment environment,
+         DiscoveryCache discoveryCache,
+         LoadBalancerStats stats) {
+        return new LatencyAwareLoadBalancer
+            (environment.getProperty(LoadBalancerClientFactory.PROPERTY_NAME),
+             discoveryCache,
+             stats,
+             environment.getProperty("main.load-balancer.strategy",
+                                     LatencyAwareLoadBalancer.Strategy.class,
+                                     LatencyAwareLoadBalancer.Strategy.ROUND_ROBIN),
+             environment.getProperty("main.load-balancer.hash-load-factor",
+                                     Double.class,
+                                     0.25));
+    }
+}
@@ -0,0 +1,362 @@
+package server.main;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.DefaultResponse;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerLifecycle;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.RequestDataContext;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.client.loadbalancer.ResponseData;
+import org.springframework.stereotype.Component;
+import server.common.Constants.Headers;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the load of every transform microservice instance called by
+ * the gateway, i.e., a peak-sensitive exponentially weighted moving
+ * average (EWMA) of its latency and its number of outstanding
+ * requests, which the {@link LatencyAwareLoadBalancer} uses to pick
+ * instances.
+ * <p>
+ * The {@code @LoadBalanced} {@code WebClient} calls this {@link
+ * LoadBalancerLifecycle} when each request is sent to the instance
+ * the balancer picked and when its response arrives.  Failed requests
+ * count as taking at least {@code main.load-balancer.failure-penalty}
+ * so that an instance that fails fast doesn't attract more traffic.
+ * The lifecycle isn't told when a call is cancelled, so the {@link
+ * MainService} calls {@link #cancel} for the calls it cancels, e.g.,
+ * hedging losers, using the id in their {@link Headers#REQUEST_ID}
+ * header.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the load balancers and the {@link
+ * MainService}, which exposes its metrics.
+ */
+@Component
+public class LoadBalancerStats
+    implements LoadBalancerLifecycle<RequestDataContext, ResponseData, ServiceInstance> {
+    /**
+     * How quickly old latencies are forgotten, i.e., the time it
+     * takes a latency's weight in the average to fall to 1/e.
+     */
+    @Value("${main.load-balancer.decay:10s}")
+    Duration decay = Duration.ofSeconds(10);
+
+    /**
+     * The smallest latency recorded for a failed request.
+     */
+    @Value("${main.load-balancer.failure-penalty:1s}")
+    Duration failurePenalty = Duration.ofSeconds(1);
+
+    /**
+     * The statistics of each instance, keyed by {@link #key}.
+     */
+    private final Map<String, InstanceStats> instances = new ConcurrentHashMap<>();
+
+    /**
+     * The number of consistent-hash requests sent to the instance that
+     * owns their routing key.
+     */
+    final AtomicLong hashPicks = new AtomicLong();
+
+    /**
+     * The number of consistent-hash requests that spilled over to
+     * another instance because the owner was overloaded.
+     */
+    final AtomicLong hashSpills = new AtomicLong();
+
+    /**
+     * The calls sent and not yet completed or cancelled, keyed by
+     * their {@link Headers#REQUEST_ID}.
+     */
+    private final Map<String, TimedResponse> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the statistics of {@code instance}, creating them on
+     * first use.
+     *
+     * @param instance A microservice instance
+     * @return The {@link InstanceStats} of the instance
+     */
+    public InstanceStats get(ServiceInstance instance) {
+        return instances.computeIfAbsent(key(instance),
+                                         key -> new InstanceStats(instance));
+    }
+
+    @Override
+    public boolean supports(Class requestContextClass,
+                            Class responseClass,
+                            Class serverTypeClass) {
+        return ServiceInstance.class.isAssignableFrom(serverTypeClass);
+    }
+
+    @Override
+    public void onStart(Request<RequestDataContext> request) {
+    }
+
+    @Override
+    public void onStartRequest(Request<RequestDataContext> request,
+                               Response<ServiceInstance> lbResponse) {
+        if (lbResponse instanceof TimedResponse) {
+            TimedResponse response = (TimedResponse) lbResponse;
+            response.startNanos = System.nanoTime();
+            get(response.getServer()).outstanding.incrementAndGet();
+
+            response.requestId = header(request, Headers.REQUEST_ID);
+            if (response.requestId != null) {
+                inFlight.put(response.requestId, response);
+            }
+        }
+    }
+
+    @Override
+    public void onComplete(CompletionContext<ResponseData,
+                                             ServiceInstance,
+                                             RequestDataContext> context) {
+        Response<ServiceInstance> lbResponse = context.getLoadBalancerResponse();
+        if (!(lbResponse instanceof TimedResponse)
+            || ((TimedResponse) lbResponse).startNanos == 0) {
+            // The request was never sent.
+            return;
+        }
+
+        TimedResponse response = (TimedResponse) lbResponse;
+        if (response.requestId != null
+            && inFlight.remove(response.requestId) == null) {
+            // The call was already cancelled.
+            return;
+        }
+
+        long latency = System.nanoTime() - response.startNanos;
+        boolean failed = context.status() == CompletionContext.Status.FAILED
+            || (context.getClientResponse() != null
+                && context.getClientResponse().getHttpStatus() != null
+                && context.getClientResponse().getHttpStatus().is5xxServerError());
+
+        InstanceStats stats = get(response.getServer());
+        stats.outstanding.decrementAndGet();
+        stats.record(failed ? Math.max(latency, failurePenalty.toNanos()) : latency,
+                     decay.toNanos());
+        if (failed) {
+            stats.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops counting a cancelled call as outstanding, unless it has
+     * already completed.  Its latency isn't recorded, since the call
+     * was cut short.
+     *
+     * @param requestId The {@link Headers#REQUEST_ID} of the call
+     */
+    public void cancel(String requestId) {
+        TimedResponse response = inFlight.remove(requestId);
+        if (response != null) {
+            get(response.getServer()).outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the instance that an outstanding call was sent to.
+     *
+     * @param requestId The {@link Headers#REQUEST_ID} of the call
+     * @return The instance, or null if the call isn't outstanding
+     */
+    public ServiceInstance sentTo(String requestId) {
+        TimedResponse response = inFlight.get(requestId);
+        return response == null ? null : response.getServer();
+    }
+
+    /**
+     * @return The statistics of each instance keyed by its service id
+     *         and address, and the consistent-hash counts
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> byInstance = new LinkedHashMap<>();
+        instances.forEach((key, stats) -> byInstance.put(key, stats.metrics()));
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("instances", byInstance);
+        metrics.put("hashPicks", hashPicks.get());
+        metrics.put("hashSpills", hashSpills.get());
+        return metrics;
+    }
+
+    /**
+     * @return The first value of the {@code name} header sent by the
+     *         {@code WebClient}, or null if there's none
+     */
+    static String header(Request<?> request, String name) {
+        Object context = request.getContext();
+        if (context instanceof RequestDataContext
+            && ((RequestDataContext) context).getClientRequest() != null) {
+            return ((RequestDataContext) context)
+                .getClientRequest()
+                .getHeaders()
+                .getFirst(name);
+        }
+        return null;
+    }
+
+    /**
+     * @return The key identifying {@code instance}
+     */
+    static String key(ServiceInstance instance) {
+        return instance.getServiceId().toLowerCase()
+            + "@" + instance.getHost() + ":" + instance.getPort();
+    }
+
+    /**
+     * The load balancer {@link Response} returned for each request,
+     * which records when the request is sent to the instance.
+     */
+    static final class TimedResponse extends DefaultResponse {
+        /**
+         * When the request was sent, or 0 if it hasn't been.
+         */
+        volatile long startNanos;
+
+        /**
+         * The {@link Headers#REQUEST_ID} of the call, or null if it
+         * has none.
+         */
+        volatile String requestId;
+
+        TimedResponse(ServiceInstance instance) {
+            super(instance);
+        }
+    }
+
+    /**
+     * The load of one microservice instance.
+     */
+    public static final class InstanceStats {
+        /**
+         * The number of requests sent and not yet completed.
+         */
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        /**
+         * The number of times the instance was picked.
+         */
+        final AtomicLong picks = new AtomicLong();
+
+        /**
+         * The number of failed requests.
+         */
+        final AtomicLong failures = new AtomicLong();
+
+        /**
+         * The service id of the instance.
+         */
+        private final String serviceId;
+
+        /**
+         * The peak-sensitive EWMA latency in nanoseconds, where 0
+         * means no request has completed yet.
+         */
+        private double ewmaNanos;
+
+        /**
+         * When {@link #ewmaNanos} was last updated.
+         */
+        private long updatedNanos;
+
+        /**
+         * The decay time constant in nanoseconds.
+         */
+        private long decay = 1;
+
+        InstanceStats(ServiceInstance instance) {
+            this.serviceId = instance.getServiceId();
+        }
+
+        /**
+         * Adds a request {@code latency} to the average, where older
+         * latencies decay with time constant {@code decay}.  A latency
+         * above the average replaces it, so a stalled instance is
+         * avoided at once, while recovery is gradual.
+         */
+        synchronized void record(long latency, long decay) {
+            long now = System.nanoTime();
+            if (ewmaNanos == 0 || latency > ewmaNanos) {
+                ewmaNanos = latency;
+            } else {
+                double weight = Math.exp(-(double) (now - updatedNanos) / decay);
+                ewmaNanos = ewmaNanos * weight + latency * (1 - weight);
+            }
+            updatedNanos = now;
+            this.decay = decay;
+        }
+
+        /**
+         * Returns the EWMA latency, which decays towards 0 while no
+         * request completes, so an instance that was avoided after a
+         * stall is eventually probed again.
+         *
+         * @return The EWMA latency in nanoseconds, or 0 if no request
+         *         has completed yet
+         */
+        public synchronized double ewmaNanos() {
+            return decayed(System.nanoTime(), decay);
+        }
+
+        /**
+         * @return The EWMA latency decayed to time {@code now}
+         */
+        private double decayed(long now, long decay) {
+            if (ewmaNanos == 0) {
+                return 0;
+            }
+            // Keep a small floor so a measured instance never looks
+            // unmeasured.
+            return Math.max(1, ewmaNanos * Math.exp(-(double) (now - updatedNanos) / decay));
+        }
+
+        /**
+         * @return The number of outstanding requests
+         */
+        public int outstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * Returns the expected cost of sending the instance another
+         * request, i.e., its average latency multiplied by the number
+         * of requests that would be outstanding.
+         *
+         * @return The cost, which is lower for a better choice
+         */
+        public double cost() {
+            double ewma = ewmaNanos();
+            int outstanding = outstanding();
+            if (ewma == 0) {
+                // Probe an unmeasured instance with one request at a
+                // time until its latency is known.
+                return outstanding == 0 ? 0 : Double.MAX_VALUE;
+            }
+            return ewma * (outstanding + 1);
+        }
+
+        /**
+         * @return The statistics as a {@link Map}
+         */
+        Map<String, Object> metrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("serviceId", serviceId);
+            metrics.put("picks", picks.get());
+            metrics.put("outstanding", outstanding());
+            metrics.put("failures", failures.get());
+            metrics.put("ewmaMillis", ewmaNanos() / 1_000_000);
+            return metrics;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package server.main;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.cloud.loadbalancer.annotation.LoadBalancerClients;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.PropertySource;
 
@@ -31,10 +32,13 @@ import server.common.model.TransformedImage;
  * annotation tells Spring the packages to scan for annotated
  * components (i.e., tagged with {@code @Component}). The
  * {@code @PropertySource} annotation is used to provide a properties
- * file to the Spring Environment.
+ * file to the Spring Environment.  The {@code @LoadBalancerClients}
+ * annotation makes the {@code @LoadBalanced} {@code WebClient} pick
+ * microservice instances with a {@link LatencyAwareLoadBalancer}.
  */
 @SpringBootApplication
 @EnableDiscoveryClient(autoRegister = false)
+@LoadBalancerClients(defaultConfiguration = LatencyAwareLoadBalancerConfiguration.class)
 @ComponentScan(basePackageClasses = {
         Components.class,
         MainController.class,
@@ -1,16 +1,31 @@
 package server.main;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import server.common.model.TransformedImage;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static server.common.Constants.EndPoint.APPLY_TRANSFORMS;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS_BATCH;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS_STREAM;
+import static server.common.Constants.EndPoint.METRICS;
+import static server.common.Constants.Headers.DEADLINE;
+import static server.common.Constants.Headers.ROUTING_KEY;
+import static server.common.Constants.Params.MAX_LATENCY;
 
 /**
  * This Spring controller is the main entry point for remote clients.
@@ -31,9 +46,14 @@ import static server.common.Constants.EndPoint.APPLY_TRANSFORMS;
  * requests onto methods in the {@link MainController}.  GET requests
  * invoked from any HTTP web client (e.g., a web browser or Android
  * app) or command-line utility (e.g., Curl or Postman).
+ * <p>
+ * This controller is used when the gateway runs on the default
+ * servlet stack, while {@link ReactiveMainController} replaces it
+ * when {@code spring.main.web-application-type=reactive}.
  */
 @RestController
 @ResponseBody
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class MainController {
     /**
      * This auto-wired field connects the {@link MainController} to
@@ -42,30 +62,231 @@ public class MainController {
     @Autowired
     MainService imageService;
 
+    /**
+     * Apply the given {@link List} of {@code transforms} to the given
+     * image and return the JSON array of {@link TransformedImage}
+     * objects, which is proxied from the microservice responses
+     * without decoding it.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param image      The contents of the image as a {@link MultipartFile}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @param maxLatency The most milliseconds to wait for the
+     *                   transforms, after which the images done are
+     *                   returned with a status entry for each missing
+     *                   one, or null to wait for all of them
+     * @return The JSON array of {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_TRANSFORMS,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+                 produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> proxyTransforms
+        (@RequestParam List<String> transforms,
+         @RequestPart MultipartFile image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline,
+         @RequestParam(value = MAX_LATENCY, required = false) Long maxLatency) throws IOException {
+        return stream(imageService
+                      .proxyTransforms(transforms,
+                                       image.getOriginalFilename(),
+                                       image.getBytes(),
+                                       MediaType.APPLICATION_JSON)
+                      .contextWrite(MainService.routingKey(routingKey))
+                      .contextWrite(MainService.deadline(deadline))
+                      .contextWrite(MainService.maxLatency(maxLatency)),
+                      MediaType.APPLICATION_JSON);
+    }
+
     /**
      * Apply the given {@link List} of {@code transforms} to the given
      * image and return a {@link Flux} that emits the {@link
-     * TransformedImage} objects.
+     * TransformedImage} objects.  This method serves the media types
+     * other than JSON, such as the binary frames of {@link
+     * server.common.TransformedImageFramesConverter}.
      *
      * @param transforms A {@link List} of transforms to apply
      * @param image      The contents of the image as a {@link MultipartFile}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @param maxLatency The most milliseconds to wait for the
+     *                   transforms, after which the images done are
+     *                   returned with a status entry for each missing
+     *                   one, or null to wait for all of them
      * @return A {@link Mono} that emits a list of {@link TransformedImage}
      * objects
      */
-    // TODO -- you fill in here by adding the appropriate annotations
-    // to create a Spring WebFlux endpoint method.
+    @PostMapping(value = APPLY_TRANSFORMS,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public Mono<List<TransformedImage>> applyTransforms
-        (List<String> transforms,
-         MultipartFile image) throws IOException {
+        (@RequestParam List<String> transforms,
+         @RequestPart MultipartFile image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline,
+         @RequestParam(value = MAX_LATENCY, required = false) Long maxLatency) throws IOException {
         // Apply all transforms and return a Mono list.
         return imageService
             // Call service get a Flux stream of transformed images.
             .applyTransforms(transforms,
                              image.getOriginalFilename(),
                              image.getBytes())
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline))
+            .contextWrite(MainService.maxLatency(maxLatency))
 
             // Downgrade Flux<T> to a Mono<List<T>> for REST
             // compatibility.
             .collectList();
     }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to the given
+     * image and stream each {@link TransformedImage} back to the
+     * client as soon as its microservice responds, either as
+     * newline-delimited JSON or as server-sent events depending on
+     * the {@code Accept} header.  Newline-delimited JSON is proxied
+     * from the microservice responses by {@link
+     * #proxyTransformsStream}, so this method serves the server-sent
+     * events.
+     * <p>
+     * Unlike {@link #applyTransforms}, the first image arrives after
+     * the fastest transform rather than the slowest, and the gateway
+     * doesn't hold all the results in memory.  When {@code
+     * main.decode-once} is enabled the transforms come back from one
+     * microservice call, so they arrive together.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param image      The contents of the image as a {@link MultipartFile}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage}
+     * objects as they become available
+     */
+    @PostMapping(value = APPLY_TRANSFORMS_STREAM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransformsStream
+        (@RequestParam List<String> transforms,
+         @RequestPart MultipartFile image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) throws IOException {
+        // Return the Flux directly so each image is written as soon
+        // as it's emitted.
+        return imageService
+            .applyTransforms(transforms,
+                             image.getOriginalFilename(),
+                             image.getBytes())
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline));
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to the given
+     * image and stream each {@link TransformedImage} back to the
+     * client as a line of JSON as soon as its microservice responds,
+     * without decoding it.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param image      The contents of the image as a {@link MultipartFile}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @return The newline-delimited JSON {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_TRANSFORMS_STREAM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+                 produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> proxyTransformsStream
+        (@RequestParam List<String> transforms,
+         @RequestPart MultipartFile image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) throws IOException {
+        return stream(imageService
+                      .proxyTransforms(transforms,
+                                       image.getOriginalFilename(),
+                                       image.getBytes(),
+                                       MediaType.APPLICATION_NDJSON)
+                      .contextWrite(MainService.routingKey(routingKey))
+                      .contextWrite(MainService.deadline(deadline)),
+                      MediaType.APPLICATION_NDJSON);
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to a batch of
+     * images and stream each {@link TransformedImage} back to the
+     * client, tagged by image name, as soon as its microservice
+     * finishes it.  Each microservice is called once for the whole
+     * batch.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param images     The images, whose file names must be unique, or
+     *                   else the request is answered with 400
+     * @param routingKey An optional key to route the batch by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage}
+     * objects as they become available
+     */
+    @PostMapping(value = APPLY_TRANSFORMS_BATCH,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransformsBatch
+        (@RequestParam List<String> transforms,
+         @RequestPart("images") List<MultipartFile> images,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) throws IOException {
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        for (MultipartFile image : images) {
+            MainService.addToBatch(batch,
+                                   image.getOriginalFilename(),
+                                   image.getBytes());
+        }
+
+        return imageService
+            .applyTransformsBatch(transforms, batch)
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline));
+    }
+
+    /**
+     * Returns the gateway statistics, such as the load of each
+     * microservice instance picked by the load balancer.
+     *
+     * @return A {@link Map} of statistics keyed by name
+     */
+    @GetMapping(METRICS)
+    public Map<String, Object> metrics() {
+        return imageService.metrics();
+    }
+
+    /**
+     * Returns a response that writes each buffer of {@code body} to
+     * the client as soon as it's received, on a Spring MVC async
+     * thread.
+     */
+    private static ResponseEntity<StreamingResponseBody> stream
+        (Flux<DataBuffer> body,
+         MediaType mediaType) {
+        return ResponseEntity
+            .ok()
+            .contentType(mediaType)
+            .body(outputStream -> body
+                  .doOnNext(buffer -> {
+                          // Closing the stream releases the buffer.
+                          try (InputStream inputStream =
+                               buffer.asInputStream(true)) {
+                              inputStream.transferTo(outputStream);
+                              outputStream.flush();
+                          } catch (IOException e) {
+                              throw new UncheckedIOException(e);
+                          }
+                      })
+                  .blockLast());
+    }
 }
@@ -1,17 +1,60 @@
 package server.main;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.client.discovery.DiscoveryClient;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+import server.common.BlobStore;
+import server.common.Constants.Headers;
+import server.common.Constants.Params;
+import server.common.Deadline;
 import server.common.model.TransformedImage;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+import static server.common.Constants.EndPoint.APPLY_MULTI_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM_BATCH;
 
 /**
  * This class defines implementation methods that are called by the
@@ -21,7 +64,9 @@ import java.util.Objects;
  * <p>
  * A {@link DiscoveryClient} is used to redirect calls to the
  * appropriate microservices, which can run in processes that are
- * deployed to other computers in a cluster.
+ * deployed to other computers in a cluster.  The registered
+ * microservices are read from a {@link DiscoveryCache} so requests
+ * never wait for the registry.
  * <p>
  * This class is annotated as a Spring {@code @Service}, which enables
  * the auto-detection and wiring of dependent implementation classes
@@ -29,6 +74,15 @@ import java.util.Objects;
  */
 @Service
 public class MainService {
+    /**
+     * Bytes that frame the microservice bodies proxied by {@link
+     * #proxyTransforms}.
+     */
+    private static final byte[] OPEN_ARRAY = {'['};
+    private static final byte[] CLOSE_ARRAY = {']'};
+    private static final byte[] COMMA = {','};
+    private static final byte[] NEWLINE = {'\n'};
+
     /**
      * This auto-wired field connects the {@link MainService} to
      * a {@link WebClient} used to redirect all HTTP requests to
@@ -38,18 +92,127 @@ public class MainService {
     WebClient webClient;
 
     /**
-     * This auto-wired field connects the {@link MainService} to
-     * the {@link DiscoveryClient} used to find all registered
+     * This auto-wired field connects the {@link MainService} to the
+     * {@link DiscoveryCache} holding all registered microservices.
+     */
+    @Autowired
+    DiscoveryCache discoveryCache;
+
+    /**
+     * This auto-wired field connects the {@link MainService} to the
+     * {@link LoadBalancerStats} that track the load of each
+     * microservice instance.
+     */
+    @Autowired
+    LoadBalancerStats loadBalancerStats = new LoadBalancerStats();
+
+    /**
+     * This auto-wired field connects the {@link MainService} to the
+     * {@link BlobStore} that lets the microservices read an uploaded
+     * image from the local host instead of receiving it inline.
+     */
+    @Autowired
+    BlobStore blobStore = new BlobStore();
+
+    /**
+     * This auto-wired field connects the {@link MainService} to the
+     * {@link HedgePolicy} that duplicates slow microservice calls.
+     */
+    @Autowired
+    HedgePolicy hedgePolicy = new HedgePolicy();
+
+    /**
+     * This auto-wired field connects the {@link MainService} to the
+     * {@link ConcurrencyLimiter} that sheds calls to overloaded
      * microservices.
      */
     @Autowired
-    DiscoveryClient discoveryClient;
+    ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter();
+
+    /**
+     * This auto-wired field connects the {@link MainService} to the
+     * {@link ObjectMapper} that writes partial responses as JSON.
+     */
+    @Autowired
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Numbers the microservice calls for {@link #newRequestId}.
+     */
+    private final AtomicLong requestIds = new AtomicLong();
+
+    /**
+     * The number of microservice calls that weren't sent because the
+     * client's deadline had passed, and that were abandoned when it
+     * passed while they ran.
+     */
+    private final AtomicLong expiredCalls = new AtomicLong();
+    private final AtomicLong timedOutCalls = new AtomicLong();
+
+    /**
+     * The number of microservice calls cancelled before they finished,
+     * e.g., because the client disconnected or a hedge won, each of
+     * which closed its connection so the microservice stops the work.
+     */
+    private final AtomicLong cancelledCalls = new AtomicLong();
+
+    /**
+     * The number of responses that missed some transforms because
+     * they didn't finish within the client's latency bound or failed.
+     */
+    private final AtomicLong partialResponses = new AtomicLong();
+
+    /**
+     * The microservice calls in flight that identical calls can share,
+     * keyed by path and image content.
+     */
+    private final Map<String, Mono<TransformedImage>> inFlight =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The number of microservice calls that weren't sent because an
+     * identical call was already in flight.
+     */
+    private final AtomicLong coalescedCalls = new AtomicLong();
 
     /**
      * Tests can set this value for mocking a back-end server.
      */
     String baseUrl = "http://";
 
+    /**
+     * If true, a request for several transforms is sent as a single
+     * call to one transform microservice, which decodes the image
+     * once and applies all of them.  The call only goes to a
+     * microservice whose instances all list the other transforms in
+     * their {@link server.common.Constants.Metadata#TRANSFORMS}
+     * metadata, and otherwise each transform is sent to its own
+     * microservice.
+     */
+    @Value("${main.decode-once:false}")
+    boolean decodeOnce;
+
+    /**
+     * If true, a call to a transform microservice for the same
+     * transform of the same image content as a call already in flight
+     * shares that call's result instead of being sent, e.g., when
+     * several crawlers hit a popular image at once.  Only calls whose
+     * responses the gateway decodes are coalesced, i.e., those of
+     * {@link #applyTransforms}, since the raw bodies that {@link
+     * #proxyTransforms} writes can only be read once.
+     */
+    @Value("${main.coalesce.enabled:false}")
+    boolean coalesce;
+
+    /**
+     * The strategy of the {@link LatencyAwareLoadBalancer}, since the
+     * image content is only checksummed into a routing key for {@link
+     * LatencyAwareLoadBalancer.Strategy#CONSISTENT_HASH}.
+     */
+    @Value("${main.load-balancer.strategy:ROUND_ROBIN}")
+    LatencyAwareLoadBalancer.Strategy strategy =
+        LatencyAwareLoadBalancer.Strategy.ROUND_ROBIN;
+
     /**
      * Apply the given {@link List} of {@code transforms} to the given
      * image and return a {@link Flux} that emits the {@link
@@ -64,46 +227,985 @@ public class MainService {
     public Flux<TransformedImage> applyTransforms(List<String> transforms,
                                                   String fileName,
                                                   byte[] imageBytes) {
-        // Create a multi-value map containing the image filename and bytes.
-        MultiValueMap<String, Object> map = new LinkedMultiValueMap<>();
-        map.add("filename", fileName);
+        return withImage(fileName,
+                         imageBytes,
+                         true,
+                         upload -> applyTransforms(transforms, upload));
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to an image
+     * uploaded to the reactive gateway and return a {@link Flux} that
+     * emits the {@link TransformedImage} objects.
+     *
+     * @param transforms A list of transforms to apply.
+     * @param image      The uploaded image.
+     * @return A list of transformed images.
+     */
+    public Flux<TransformedImage> applyTransforms(List<String> transforms,
+                                                  FilePart image) {
+        return withImage(image,
+                         true,
+                         upload -> applyTransforms(transforms, upload));
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to a batch of
+     * {@code images} and return a {@link Flux} that emits the {@link
+     * TransformedImage} objects, tagged by image name, as soon as
+     * each microservice finishes them.
+     * <p>
+     * The whole batch is sent in one call to each transform
+     * microservice rather than one call per image, so a page of
+     * thumbnails costs a few requests instead of hundreds.
+     *
+     * @param transforms A list of transforms to apply.
+     * @param images     The image content bytes keyed by image name,
+     *                   which must be unique within the batch.
+     * @return The transformed images of the whole batch.
+     */
+    public Flux<TransformedImage> applyTransformsBatch(List<String> transforms,
+                                                       Map<String, byte[]> images) {
+        List<Resource> resources = new ArrayList<>(images.size());
+        images.forEach((fileName, imageBytes) ->
+                       resources.add(resource(fileName, imageBytes)));
 
+        return Flux.deferContextual(context -> {
+                Upload upload =
+                    new Upload(resources,
+                               routingKey(context, () -> {
+                                       // Checksum the whole batch.
+                                       CRC32C crc = new CRC32C();
+                                       long size = 0;
+                                       for (byte[] imageBytes : images.values()) {
+                                           crc.update(imageBytes);
+                                           size += imageBytes.length;
+                                       }
+                                       return contentKey(crc, size);
+                                   }),
+                               context.getOrDefault(Headers.DEADLINE,
+                                                    Deadline.NONE));
+
+                return Flux
+                    .fromIterable(getAvailableTransforms(transforms))
+
+                    // Send the whole batch to each microservice, which
+                    // streams back each image as soon as it's done.
+                    .flatMap(transform -> post(transform + "/" + APPLY_TRANSFORM_BATCH
+                                               + "?transform=" + transform,
+                                               upload,
+                                               MediaType.APPLICATION_NDJSON,
+                                               TransformedImage.class));
+            });
+    }
+
+    /**
+     * Adds an image to a batch for {@link #applyTransformsBatch},
+     * keyed by its file name, which tags its results and so must be
+     * unique within the batch.
+     *
+     * @param batch      The batch being built
+     * @param fileName   The image file name
+     * @param imageBytes The image content bytes
+     * @throws ResponseStatusException With 400 if the file name is
+     *                                 missing or already in the batch
+     */
+    static void addToBatch(Map<String, byte[]> batch,
+                           String fileName,
+                           byte[] imageBytes) {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new ResponseStatusException
+                (HttpStatus.BAD_REQUEST, "Every batch image needs a file name");
+        }
+        if (batch.putIfAbsent(fileName, imageBytes) != null) {
+            throw new ResponseStatusException
+                (HttpStatus.BAD_REQUEST, "Duplicate batch image " + fileName);
+        }
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to the given
+     * image and return the microservice responses as a {@link Flux} of
+     * {@link DataBuffer} objects framed as one {@code mediaType} body.
+     * <p>
+     * Unlike {@link #applyTransforms}, the gateway never decodes the
+     * {@link TransformedImage} JSON and encodes it again, since it
+     * doesn't change anything in it.  A JSON array is written as each
+     * microservice body is received, so the gateway only holds a few
+     * buffers of each image at a time.  Newline-delimited JSON is
+     * written one whole image at a time, in the order the transforms
+     * finish, so images are never interleaved.
+     * <p>
+     * The microservice calls aren't coalesced, even when {@link
+     * #coalesce} is on, since a raw body can only be read once.
+     *
+     * @param transforms A list of transforms to apply.
+     * @param fileName   Image file name.
+     * @param imageBytes Image content bytes.
+     * @param mediaType  {@link MediaType#APPLICATION_JSON} or {@link
+     *                   MediaType#APPLICATION_NDJSON}.
+     * @return The response body buffers.
+     */
+    public Flux<DataBuffer> proxyTransforms(List<String> transforms,
+                                            String fileName,
+                                            byte[] imageBytes,
+                                            MediaType mediaType) {
+        // The raw bodies can't be shared, so the calls aren't
+        // coalesced and the image isn't hashed for them.
+        return withImage(fileName,
+                         imageBytes,
+                         false,
+                         upload -> proxyTransforms(transforms, upload, mediaType));
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to an image
+     * uploaded to the reactive gateway and return the microservice
+     * responses as a {@link Flux} of {@link DataBuffer} objects framed
+     * as one {@code mediaType} body.
+     *
+     * @param transforms A list of transforms to apply.
+     * @param image      The uploaded image.
+     * @param mediaType  {@link MediaType#APPLICATION_JSON} or {@link
+     *                   MediaType#APPLICATION_NDJSON}.
+     * @return The response body buffers.
+     */
+    public Flux<DataBuffer> proxyTransforms(List<String> transforms,
+                                            FilePart image,
+                                            MediaType mediaType) {
+        return withImage(image,
+                         false,
+                         upload -> proxyTransforms(transforms, upload, mediaType));
+    }
+
+    /**
+     * Returns the gateway statistics, such as the load of each
+     * microservice instance picked by the load balancer.
+     *
+     * @return A {@link Map} of statistics keyed by name
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("loadBalancer", loadBalancerStats.metrics());
+        metrics.put("hedge", hedgePolicy.metrics());
+        metrics.put("limiter", concurrencyLimiter.metrics());
+
+        Map<String, Object> deadlines = new LinkedHashMap<>();
+        deadlines.put("expiredCalls", expiredCalls.get());
+        deadlines.put("timedOutCalls", timedOutCalls.get());
+        metrics.put("deadline", deadlines);
+        metrics.put("cancelledCalls", cancelledCalls.get());
+        metrics.put("partialResponses", partialResponses.get());
+
+        Map<String, Object> coalesced = new LinkedHashMap<>();
+        coalesced.put("enabled", coalesce);
+        coalesced.put("inFlight", inFlight.size());
+        coalesced.put("coalescedCalls", coalescedCalls.get());
+        metrics.put("coalesce", coalesced);
+        return metrics;
+    }
+
+    /**
+     * Returns a function that adds a client-supplied {@code
+     * routingKey} to the Reactor context of a request, so the image is
+     * routed by that key instead of its content.
+     *
+     * @param routingKey The value of the {@link Headers#ROUTING_KEY}
+     *                   request header, or null
+     * @return A function for {@code contextWrite()}
+     */
+    public static Function<Context, Context> routingKey(String routingKey) {
+        return context -> routingKey == null
+            ? context
+            : context.put(Headers.ROUTING_KEY, routingKey);
+    }
+
+    /**
+     * Returns a function that adds the client's {@link Deadline} to
+     * the Reactor context of a request, so each microservice call
+     * forwards the time that's left of it.  The deadline starts when
+     * this method is called, i.e., when the request arrives.
+     *
+     * @param deadline The value of the {@link Headers#DEADLINE}
+     *                 request header, or null
+     * @return A function for {@code contextWrite()}
+     */
+    public static Function<Context, Context> deadline(Long deadline) {
+        Deadline expiry = Deadline.ofMillis(deadline);
+        return context -> expiry.isNone()
+            ? context
+            : context.put(Headers.DEADLINE, expiry);
+    }
+
+    /**
+     * Returns a function that adds the client's latency bound to the
+     * Reactor context of a request, so the gateway returns the images
+     * done within it and a status entry for each one that isn't.
+     *
+     * @param maxLatency The value of the {@link Params#MAX_LATENCY}
+     *                   request parameter, or null
+     * @return A function for {@code contextWrite()}
+     */
+    public static Function<Context, Context> maxLatency(Long maxLatency) {
+        return context -> maxLatency == null
+            ? context
+            : context.put(Params.MAX_LATENCY,
+                          Duration.ofMillis(Math.max(0, maxLatency)));
+    }
+
+    /**
+     * Puts {@code imageBytes} into the {@link BlobStore} once for all
+     * the microservice requests made by {@code send}, and releases it
+     * however the returned {@link Flux} ends.
+     *
+     * @param coalescible True if identical calls made by {@code send}
+     *                    may be coalesced, since they're decoded
+     * @param send        Sends the microservice requests for an {@link
+     *                    Upload}
+     */
+    private <T> Flux<T> withImage(String fileName,
+                                  byte[] imageBytes,
+                                  boolean coalescible,
+                                  Function<Upload, Flux<T>> send) {
+        Resource byteArrayResource = resource(fileName, imageBytes);
+
+        return Flux.deferContextual(context -> {
+                String routingKey = routingKey(context, () -> {
+                        CRC32C crc = new CRC32C();
+                        crc.update(imageBytes);
+                        return contentKey(crc, imageBytes.length);
+                    });
+                Deadline deadline = context.getOrDefault(Headers.DEADLINE,
+                                                         Deadline.NONE);
+
+                return Flux
+                    // Store the image once for all the microservices
+                    // and release it however the Flux ends.
+                    .using(() -> Optional.ofNullable(blobStore.put(imageBytes)),
+                           blob -> send.apply(new Upload(fileName,
+                                                         byteArrayResource,
+                                                         blob.orElse(null),
+                                                         coalescible
+                                                         ? coalesceKey(blob, imageBytes)
+                                                         : null,
+                                                         routingKey,
+                                                         deadline,
+                                                         context.getOrDefault(Params.MAX_LATENCY,
+                                                                              null))),
+                           blob -> blob.ifPresent(blobStore::release));
+            });
+    }
+
+    /**
+     * Streams an uploaded {@code image} to a temporary spool file
+     * instead of buffering it on the heap, and then moves it into the
+     * {@link BlobStore} if it's enabled, for all the microservice
+     * requests made by {@code send}.  Requests that must send the
+     * image inline stream it back out of that file, which is deleted
+     * once the returned {@link Flux} terminates or is cancelled.
+     *
+     * @param coalescible True if identical calls made by {@code send}
+     *                    may be coalesced, since they're decoded
+     * @param send        Sends the microservice requests for an {@link
+     *                    Upload}
+     */
+    private <T> Flux<T> withImage(FilePart image,
+                                  boolean coalescible,
+                                  Function<Upload, Flux<T>> send) {
+        String fileName = image.filename();
+
+        // Checksum the content while it's spooled for the routing key.
+        CRC32C crc = new CRC32C();
+        AtomicLong size = new AtomicLong();
+
+        return Flux.deferContextual(context -> Mono
+            // Creating the spool file blocks, so keep it off the event
+            // loop.
+            .fromCallable(() -> Files.createTempFile("upload-", null))
+            .subscribeOn(Schedulers.boundedElastic())
+
+            .flatMapMany(path -> DataBufferUtils
+                         // Stream the upload into the spool file.
+                         .write(image
+                                .content()
+                                .doOnNext(buffer -> {
+                                        if (routesByContent(context)) {
+                                            crc.update(buffer.asByteBuffer());
+                                            size.addAndGet(buffer.readableByteCount());
+                                        }
+                                    }),
+                                path)
+
+                         // Move the spool file into the blob store,
+                         // which blocks while it's hashed.
+                         .then(Mono
+                               .fromCallable(() -> Optional
+                                             .ofNullable(blobStore.put(path)))
+                               .subscribeOn(Schedulers.boundedElastic()))
+
+                         // Send the stored or spooled image to the
+                         // microservices.
+                         .flatMapMany(blob -> send
+                                      .apply(new Upload
+                                             (fileName,
+                                              new FileSystemResource
+                                              (blob.map(blobStore::path).orElse(path)) {
+                                                  @Override
+                                                  public String getFilename() {
+                                                      return fileName;
+                                                  }
+                                              },
+                                              blob.orElse(null),
+                                              // Spooled images are only coalesced
+                                              // by their blob key.
+                                              coalesce && coalescible
+                                              ? blob.orElse(null)
+                                              : null,
+                                              routingKey(context,
+                                                         () -> contentKey(crc, size.get())),
+                                              context.getOrDefault(Headers.DEADLINE,
+                                                                   Deadline.NONE),
+                                              context.getOrDefault(Params.MAX_LATENCY,
+                                                                   null)))
+                                      .doFinally(signal -> blob
+                                                 .ifPresent(blobStore::release)))
+
+                         // Remove the spool file however the Flux ends.
+                         .doFinally(signal -> delete(path))));
+    }
+
+    /**
+     * @return The key that identical microservice calls for {@code
+     *         imageBytes} are coalesced by, i.e., its {@link BlobStore}
+     *         key, or null if calls aren't coalesced
+     */
+    private String coalesceKey(Optional<String> blob, byte[] imageBytes) {
+        if (!coalesce) {
+            return null;
+        }
+        // The blob key is the digest of the image, so reuse it.
+        return blob.orElseGet(() -> BlobStore.key(imageBytes));
+    }
+
+    /**
+     * Returns a {@link Resource} holding {@code imageBytes} that can
+     * be sent as a multipart file named {@code fileName}.
+     */
+    private static Resource resource(String fileName, byte[] imageBytes) {
         // Byte arrays in multi value maps require overriding
         // getFileName() in a ByteArrayResource and adding that
         // resource into the value map.
-        ByteArrayResource byteArrayResource =
-            new ByteArrayResource(imageBytes) {
-                @Override
-                public String getFilename() {
-                    return fileName;
-                }
-            };
-        map.add("image", byteArrayResource);
+        return new ByteArrayResource(imageBytes) {
+            @Override
+            public String getFilename() {
+                return fileName;
+            }
+        };
+    }
 
-        // Get the list of all transform microservices.
-        // TODO -- you fill in here, replacing return null
-        // with the proper code.
+    /**
+     * Returns the client-supplied routing key in {@code context}, or
+     * else the key computed by {@code contentKey} if the load balancer
+     * routes by content, or else null.
+     */
+    private String routingKey(ContextView context,
+                              Supplier<String> contentKey) {
+        if (context.hasKey(Headers.ROUTING_KEY)) {
+            return context.get(Headers.ROUTING_KEY);
+        }
+        return routesByContent(context) ? contentKey.get() : null;
+    }
+
+    /**
+     * @return True if the load balancer routes the image of a request
+     *         without a client-supplied routing key by its content
+     */
+    private boolean routesByContent(ContextView context) {
+        return strategy == LatencyAwareLoadBalancer.Strategy.CONSISTENT_HASH
+            && !context.hasKey(Headers.ROUTING_KEY);
+    }
+
+    /**
+     * Returns the routing key of image content with the given
+     * checksum and size, so identical images go to the same instance.
+     */
+    private static String contentKey(CRC32C crc, long size) {
+        return Long.toHexString(crc.getValue()) + "-" + size;
+    }
+
+    /**
+     * Sends the image to the microservices that match the given
+     * {@code transforms}.
+     * <p>
+     * If the image was put into the {@link BlobStore}, each request
+     * only carries its blob key.  A microservice that can't read the
+     * blob, e.g., because it runs on another host, responds with 404
+     * and the request is repeated with the image inline.
+     */
+    private Flux<TransformedImage> applyTransforms(List<String> transforms,
+                                                   Upload upload) {
+        // Only call microservices that match passed transforms.
+        List<String> available = getAvailableTransforms(transforms);
+
+        if (upload.maxLatency != null) {
+            return applyTransformsWithin(available, upload);
+        }
+
+        String multiTransformPath = multiTransformPath(available);
+        if (multiTransformPath != null) {
+            // Send all the transforms to one microservice that
+            // applies them all so the image is only decoded once.
+            return post(multiTransformPath,
+                        upload,
+                        MediaType.APPLICATION_JSON,
+                        TransformedImage.class);
+        }
 
         // Return a Flux stream of transformed images.
-        return null;
+        return Flux
             // Create a Flux from the list of transforms.
-
-            // Only call microservices that match passed transforms.
+            .fromIterable(available)
 
             // POST the request to the service via the WebClient and
             // extract the body from the returned ResponseEntity.
+            .flatMap(transform -> postCoalesced(transform + "/" + APPLY_TRANSFORM
+                                                + "?transform=" + transform,
+                                                upload));
+    }
+
+    /**
+     * Sends the image to the microservices for the given {@code
+     * transforms} like {@link #applyTransforms}, but only waits for
+     * them until the upload's latency bound passes.  The images done
+     * by then are emitted as they arrive and the calls still running
+     * are cancelled.  Then an entry without an image is emitted for
+     * each missing transform, whose status says if it timed out or
+     * failed, so a failed call no longer fails the whole response.
+     */
+    private Flux<TransformedImage> applyTransformsWithin(List<String> transforms,
+                                                         Upload upload) {
+        return Flux.defer(() -> {
+                // The transforms still missing and why, which stays
+                // TIMED_OUT unless their call fails first.
+                Map<String, String> missing = new ConcurrentHashMap<>();
+                transforms.forEach(transform ->
+                                   missing.put(transform, TransformedImage.TIMED_OUT));
+
+                Flux<TransformedImage> images;
+                String multiTransformPath = multiTransformPath(transforms);
+                if (multiTransformPath != null) {
+                    images = post(multiTransformPath,
+                                  upload,
+                                  MediaType.APPLICATION_JSON,
+                                  TransformedImage.class)
+                        .onErrorResume(e -> {
+                                missing.replaceAll((transform, status) -> status(e));
+                                return Flux.empty();
+                            });
+                } else {
+                    images = Flux
+                        .fromIterable(transforms)
+                        .flatMap(transform -> postCoalesced(transform + "/" + APPLY_TRANSFORM
+                                                            + "?transform=" + transform,
+                                                            upload)
+                                 .onErrorResume(e -> {
+                                         missing.replace(transform, status(e));
+                                         return Flux.empty();
+                                     }));
+                }
+
+                return images
+                    // Cancel the calls still running once time is up.
+                    .take(upload.maxLatency)
+                    .doOnNext(image -> missing.remove(image.getTransformName()))
+                    .concatWith(Flux.defer(() -> {
+                                if (!missing.isEmpty()) {
+                                    partialResponses.incrementAndGet();
+                                }
+                                return Flux
+                                    .fromIterable(transforms)
+                                    .filter(missing::containsKey)
+                                    .map(transform -> TransformedImage
+                                         .missing(upload.fileName,
+                                                  transform,
+                                                  missing.get(transform)));
+                            }));
+            });
+    }
+
+    /**
+     * @return The status of a transform whose call failed with {@code
+     *         e}, which counts as timed out if the client's deadline
+     *         passed
+     */
+    private static String status(Throwable e) {
+        return e instanceof Deadline.ExpiredException
+            ? TransformedImage.TIMED_OUT
+            : TransformedImage.FAILED;
     }
 
     /**
-     * Uses the Eureka discovery client to finds all matching image
-     * transforming microservices.
+     * Sends the image to the microservices that match the given
+     * {@code transforms} like {@link #applyTransforms}, but frames
+     * their raw response bodies as one {@code mediaType} body.
+     * <p>
+     * A response with a latency bound is written from the decoded
+     * images of {@link #applyTransformsWithin} instead, since the
+     * gateway has to know which ones are missing.
+     */
+    private Flux<DataBuffer> proxyTransforms(List<String> transforms,
+                                             Upload upload,
+                                             MediaType mediaType) {
+        boolean ndjson = MediaType.APPLICATION_NDJSON.equals(mediaType);
+
+        // Only call microservices that match passed transforms.
+        List<String> available = getAvailableTransforms(transforms);
+
+        if (upload.maxLatency != null) {
+            Flux<DataBuffer> images = applyTransformsWithin(available, upload)
+                .index()
+                .concatMap(image -> {
+                        Flux<DataBuffer> json = json(image.getT2()).flux();
+                        if (ndjson) {
+                            return json.concatWith(buffer(NEWLINE));
+                        }
+                        return image.getT1() == 0
+                            ? json
+                            : buffer(COMMA).concatWith(json);
+                    });
+            return ndjson ? images : jsonArray(images);
+        }
+
+        String multiTransformPath = multiTransformPath(available);
+        if (multiTransformPath != null) {
+            // The microservice already frames all the images as a JSON
+            // array or as newline-delimited JSON.
+            return post(multiTransformPath,
+                        upload,
+                        mediaType,
+                        DataBuffer.class)
+                .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+        }
+
+        if (ndjson) {
+            return Flux
+                .fromIterable(available)
+
+                // Request all the images at once but stream their
+                // bodies one after another, each followed by a newline
+                // once it completes.
+                .flatMapSequential(transform -> proxyTransform(transform, upload)
+                                   .concatWith(buffer(NEWLINE)))
+
+                // Release any buffers dropped by a cancelled request.
+                .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+        }
+
+        Flux<DataBuffer> images = Flux
+            .fromIterable(available)
+            .index()
+
+            // Request all the images at once but write their bodies one
+            // after another, separated by commas.  Backpressure stops
+            // reading a body that isn't being written yet.
+            .flatMapSequential(transform -> {
+                    Flux<DataBuffer> body = proxyTransform(transform.getT2(), upload);
+                    return transform.getT1() == 0
+                        ? body
+                        : buffer(COMMA).concatWith(body);
+                });
+
+        return jsonArray(images)
+
+            // Release any buffers dropped by a cancelled request.
+            .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * POSTs the {@code upload} to the microservice for {@code
+     * transform} and returns its raw JSON response body.
+     */
+    private Flux<DataBuffer> proxyTransform(String transform, Upload upload) {
+        return post(transform + "/" + APPLY_TRANSFORM + "?transform=" + transform,
+                    upload,
+                    MediaType.APPLICATION_JSON,
+                    DataBuffer.class);
+    }
+
+    /**
+     * POSTs the {@code upload} to a transform microservice {@code path}
+     * like {@link #post(String, Upload, MediaType, Class)}, unless an
+     * identical call, i.e., to the same path for the same image
+     * content, is already in flight, in which case its result is
+     * shared.  The shared call is only cancelled once every request
+     * sharing it is cancelled.  If it fails, a request that joined it
+     * sends its own call instead, unless its own deadline has passed,
+     * since the failure may be due to the request that sent it.
+     */
+    private Flux<TransformedImage> postCoalesced(String path, Upload upload) {
+        if (!coalesce || upload.coalesceKey == null) {
+            return post(path, upload, MediaType.APPLICATION_JSON, TransformedImage.class);
+        }
+
+        return Flux.defer(() -> {
+                String key = path + "#" + upload.coalesceKey;
+                AtomicReference<Mono<TransformedImage>> sent = new AtomicReference<>();
+                Mono<TransformedImage> shared = inFlight
+                    .computeIfAbsent(key, k -> {
+                            Mono<TransformedImage> call =
+                                post(path, upload, MediaType.APPLICATION_JSON,
+                                     TransformedImage.class)
+                                // Let the call complete rather than cancel it
+                                // after its only image.
+                                .singleOrEmpty()
+                                .doFinally(signal -> inFlight.remove(k, sent.get()))
+                                .share();
+                            sent.set(call);
+                            return call;
+                        });
+
+                if (shared == sent.get()) {
+                    return shared.flux();
+                }
+
+                coalescedCalls.incrementAndGet();
+                return shared
+                    .flux()
+                    // The image may have another name in this request.
+                    .map(image -> named(upload.fileName, image))
+                    .onErrorResume(e -> upload.deadline.isExpired()
+                                   ? Flux.error(e)
+                                   : post(path, upload, MediaType.APPLICATION_JSON,
+                                          TransformedImage.class));
+            });
+    }
+
+    /**
+     * Returns {@code image} under the given {@code fileName}, copying
+     * it if it was transformed under another name.
+     */
+    private static TransformedImage named(String fileName,
+                                          TransformedImage image) {
+        if (Objects.equals(fileName, image.getImageName())) {
+            return image;
+        }
+        return new TransformedImage(fileName,
+                                    image.getTransformName(),
+                                    image.getEncodedBytes());
+    }
+
+    /**
+     * POSTs the {@code upload} to a microservice {@code path}, sending
+     * either its blob key or, if it has none or the microservice can't
+     * read the blob, its content, and returns the response body as
+     * {@code elementType} elements.  The routing key header lets the
+     * {@link LatencyAwareLoadBalancer} send the same image to the same
+     * instance, and the {@link HedgePolicy} may duplicate the call to
+     * another instance if it's slow to respond.
+     */
+    private <T> Flux<T> post(String path,
+                             Upload upload,
+                             MediaType accept,
+                             Class<T> elementType) {
+        String requestId = newRequestId();
+        return hedgePolicy
+            .hedge(service(path),
+                   post(path, upload, upload.blob, accept, elementType,
+                        requestId, null),
+                   () -> post(path, upload, upload.blob, accept, elementType,
+                              newRequestId(), requestId));
+    }
+
+    /**
+     * POSTs the {@code upload} to a microservice {@code path} by its
+     * {@code blob} key, or inline if that's null.
      *
-     * @return A {@link List} of all registered image transforming
-     * microservices.
+     * @param requestId Identifies the call to the load balancer
+     * @param hedgeOf   The id of the call this one hedges, or null
+     */
+    private <T> Flux<T> post(String path,
+                             Upload upload,
+                             String blob,
+                             MediaType accept,
+                             Class<T> elementType,
+                             String requestId,
+                             String hedgeOf) {
+        Deadline deadline = upload.deadline;
+
+        // Forward the time that's left when the call is sent rather
+        // than when it's assembled, which may be much earlier.
+        Flux<T> body = Flux.defer(() -> {
+                Flux<T> call = webClient
+                    .post()
+                    .uri(blob == null ? baseUrl + path : baseUrl + path + "&blob=" + blob)
+                    .contentType(MediaType.MULTIPART_FORM_DATA)
+                    .accept(accept)
+                    .headers(headers -> {
+                            if (upload.routingKey != null) {
+                                headers.set(Headers.ROUTING_KEY, upload.routingKey);
+                            }
+                            headers.set(Headers.REQUEST_ID, requestId);
+                            if (hedgeOf != null) {
+                                headers.set(Headers.HEDGE_OF, hedgeOf);
+                            }
+                            if (!deadline.isNone()) {
+                                // Forward the time that's left.
+                                headers.set(Headers.DEADLINE,
+                                            Long.toString(deadline.remaining().toMillis()));
+                            }
+                        })
+                    .body(BodyInserters.fromMultipartData(upload.parts(blob)))
+                    .retrieve()
+                    .bodyToFlux(elementType)
+
+                    // A cancelled call, e.g., a hedging loser or one whose
+                    // client disconnected, never completes, so stop counting
+                    // it as outstanding.
+                    .doOnCancel(() -> {
+                            cancelledCalls.incrementAndGet();
+                            loadBalancerStats.cancel(requestId);
+                        });
+
+                if (!deadline.isNone()) {
+                    // Stop waiting for the microservice once the client has
+                    // given up.
+                    call = call.timeout(deadline.remaining(),
+                                        Flux.defer(() -> {
+                                                timedOutCalls.incrementAndGet();
+                                                return Flux.error(new Deadline.ExpiredException());
+                                            }));
+                }
+                return call;
+            });
+
+        // Fail fast with a 503 if the microservice is at its limit.
+        Flux<T> limited = concurrencyLimiter.limit(service(path), body);
+
+        body = Flux.defer(() -> {
+                if (deadline.isExpired()) {
+                    // The client has given up, so don't start more work.
+                    expiredCalls.incrementAndGet();
+                    return Flux.error(new Deadline.ExpiredException());
+                }
+                return limited;
+            });
+
+        if (blob == null) {
+            return body;
+        }
+
+        return body
+            // Send the image inline if the microservice can't read
+            // the blob.
+            .onErrorResume(WebClientResponseException.NotFound.class,
+                           e -> post(path, upload, null, accept, elementType,
+                                     newRequestId(), hedgeOf));
+    }
+
+    /**
+     * @return The microservice called by a request {@code path}
+     */
+    private static String service(String path) {
+        return path.substring(0, path.indexOf('/'));
+    }
+
+    /**
+     * @return A new id for a microservice call, which is unique
+     *         within this gateway
+     */
+    private String newRequestId() {
+        return Long.toString(requestIds.incrementAndGet(), 36);
+    }
+
+    /**
+     * Frames the comma-separated {@code images} as a JSON array whose
+     * opening bracket is only written along with the first image.  An
+     * error before then, e.g., a rejection by the concurrency limiter,
+     * is thus propagated before the response is committed and can
+     * still be answered with its own status.
+     */
+    private static Flux<DataBuffer> jsonArray(Flux<DataBuffer> images) {
+        return images
+            .switchOnFirst((first, bodies) -> first.isOnError()
+                           ? bodies
+                           : Flux.concat(buffer(OPEN_ARRAY),
+                                         bodies,
+                                         buffer(CLOSE_ARRAY)));
+    }
+
+    /**
+     * Returns a {@link Mono} that emits a new buffer holding the given
+     * framing {@code bytes}.
+     */
+    private static Mono<DataBuffer> buffer(byte[] bytes) {
+        return Mono.fromSupplier(() -> DefaultDataBufferFactory
+                                 .sharedInstance
+                                 .wrap(bytes));
+    }
+
+    /**
+     * Returns a {@link Mono} that emits a new buffer holding {@code
+     * image} as JSON.
      */
-    private List<String> getTransformMicroServices() {
-        // TODO -- you fill in here, replacing return null
-        // with the proper code.
+    private Mono<DataBuffer> json(TransformedImage image) {
+        return Mono.fromCallable(() -> DefaultDataBufferFactory
+                                 .sharedInstance
+                                 .wrap(objectMapper.writeValueAsBytes(image)));
+    }
+
+    /**
+     * Deletes a spool file, ignoring any failure since it's in the
+     * temporary directory anyway.
+     */
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Leave the file for the operating system to clean up.
+        }
+    }
+
+    /**
+     * Returns the path of a call that applies all of {@code transforms}
+     * to an image decoded only once, sent to the first of their
+     * microservices that applies every one of them, or null if
+     * decode-once is off or none of them does.
+     */
+    private String multiTransformPath(List<String> transforms) {
+        if (!decodeOnce || transforms.size() < 2) {
+            return null;
+        }
+
+        Set<String> wanted = transforms
+            .stream()
+            .map(String::toLowerCase)
+            .collect(Collectors.toSet());
+
+        for (String transform : transforms) {
+            if (discoveryCache.transforms(transform).containsAll(wanted)) {
+                return UriComponentsBuilder
+                    .fromPath(transform + "/" + APPLY_MULTI_TRANSFORM)
+                    .queryParam("transforms", transforms)
+                    .build()
+                    .toUriString();
+            }
+        }
         return null;
     }
+
+    /**
+     * Returns the given {@code transforms} that match a registered
+     * transform microservice in the {@link DiscoveryCache}.
+     */
+    private List<String> getAvailableTransforms(List<String> transforms) {
+        // Get the set of all registered microservices.
+        Set<String> services = discoveryCache.services();
+
+        return transforms
+            .stream()
+            .filter(transform -> services.contains(transform.toLowerCase()))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * An image, or a batch of images, to send to the microservices.
+     */
+    private static final class Upload {
+        /**
+         * The image file name, or null for a batch.
+         */
+        final String fileName;
+
+        /**
+         * The image content to send inline, or null for a batch.
+         */
+        final Resource resource;
+
+        /**
+         * The images of a batch, which are always sent inline, or
+         * null for a single image.
+         */
+        final List<Resource> images;
+
+        /**
+         * The {@link BlobStore} key of the image, or null if it must
+         * be sent inline.
+         */
+        final String blob;
+
+        /**
+         * The key of the image content that identical microservice
+         * calls are coalesced by, or null if they aren't.
+         */
+        final String coalesceKey;
+
+        /**
+         * The key that the {@link LatencyAwareLoadBalancer} routes
+         * the image by, or null if it doesn't route by key.
+         */
+        final String routingKey;
+
+        /**
+         * The client's deadline, or {@link Deadline#NONE}.
+         */
+        final Deadline deadline;
+
+        /**
+         * The client's latency bound, or null if it waits for all
+         * the transforms.
+         */
+        final Duration maxLatency;
+
+        Upload(String fileName,
+               Resource resource,
+               String blob,
+               String coalesceKey,
+               String routingKey,
+               Deadline deadline,
+               Duration maxLatency) {
+            this.fileName = fileName;
+            this.resource = resource;
+            this.images = null;
+            this.blob = blob;
+            this.coalesceKey = coalesceKey;
+            this.routingKey = routingKey;
+            this.deadline = deadline;
+            this.maxLatency = maxLatency;
+        }
+
+        Upload(List<Resource> images,
+               String routingKey,
+               Deadline deadline) {
+            this.fileName = null;
+            this.resource = null;
+            this.images = images;
+            this.blob = null;
+            this.coalesceKey = null;
+            this.routingKey = routingKey;
+            this.deadline = deadline;
+            this.maxLatency = null;
+        }
+
+        /**
+         * Returns the multipart body of a request that sends the image
+         * by its {@code blob} key, or inline if that's null, or that
+         * sends all the images of a batch.
+         */
+        MultiValueMap<String, Object> parts(String blob) {
+            MultiValueMap<String, Object> map = new LinkedMultiValueMap<>();
+
+            if (images != null) {
+                images.forEach(image -> map.add("images", image));
+                return map;
+            }
+
+            // Create a multi-value map containing the image filename and bytes.
+            map.add("filename", fileName);
+
+            if (blob == null) {
+                map.add("image", resource);
+            }
+            return map;
+        }
+    }
 }
@@ -0,0 +1,257 @@
+package server.main;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuples;
+import server.common.model.TransformedImage;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS_BATCH;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS_STREAM;
+import static server.common.Constants.EndPoint.METRICS;
+import static server.common.Constants.Headers.DEADLINE;
+import static server.common.Constants.Headers.ROUTING_KEY;
+import static server.common.Constants.Params.MAX_LATENCY;
+
+/**
+ * This Spring WebFlux controller replaces the {@link MainController}
+ * when the gateway runs on Netty, i.e., when it's started with {@code
+ * spring.main.web-application-type=reactive}.
+ * <p>
+ * Uploads arrive as a {@link FilePart} whose content is streamed to
+ * a spool file rather than buffered on the heap, and no request ever
+ * holds a thread while it waits for the transform microservices, so
+ * one gateway instance can serve far more concurrent uploads.
+ */
+@RestController
+@ResponseBody
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveMainController {
+    /**
+     * This auto-wired field connects the {@link ReactiveMainController}
+     * to the {@link MainService}.
+     */
+    @Autowired
+    MainService imageService;
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to the
+     * uploaded image and return the JSON array of {@link
+     * TransformedImage} objects, which is proxied from the
+     * microservice responses without decoding it.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param image      The uploaded image as a {@link FilePart}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @param maxLatency The most milliseconds to wait for the
+     *                   transforms, after which the images done are
+     *                   returned with a status entry for each missing
+     *                   one, or null to wait for all of them
+     * @return The JSON array of {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_TRANSFORMS,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+                 produces = MediaType.APPLICATION_JSON_VALUE)
+    public Flux<DataBuffer> proxyTransforms
+        (@RequestParam List<String> transforms,
+         @RequestPart("image") FilePart image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline,
+         @RequestParam(value = MAX_LATENCY, required = false) Long maxLatency) {
+        return imageService
+            .proxyTransforms(transforms, image, MediaType.APPLICATION_JSON)
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline))
+            .contextWrite(MainService.maxLatency(maxLatency));
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to the
+     * uploaded image and return a {@link Mono} that emits a list of
+     * the {@link TransformedImage} objects for media types other than
+     * JSON.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param image      The uploaded image as a {@link FilePart}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @param maxLatency The most milliseconds to wait for the
+     *                   transforms, after which the images done are
+     *                   returned with a status entry for each missing
+     *                   one, or null to wait for all of them
+     * @return A {@link Mono} that emits a list of {@link TransformedImage}
+     * objects
+     */
+    @PostMapping(value = APPLY_TRANSFORMS,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<List<TransformedImage>> applyTransforms
+        (@RequestParam List<String> transforms,
+         @RequestPart("image") FilePart image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline,
+         @RequestParam(value = MAX_LATENCY, required = false) Long maxLatency) {
+        return imageService
+            // Call service get a Flux stream of transformed images.
+            .applyTransforms(transforms, image)
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline))
+            .contextWrite(MainService.maxLatency(maxLatency))
+
+            // Downgrade Flux<T> to a Mono<List<T>> for REST
+            // compatibility.
+            .collectList();
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to the
+     * uploaded image and stream each {@link TransformedImage} back to
+     * the client as soon as its microservice responds, as server-sent
+     * events.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param image      The uploaded image as a {@link FilePart}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage}
+     * objects as they become available
+     */
+    @PostMapping(value = APPLY_TRANSFORMS_STREAM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransformsStream
+        (@RequestParam List<String> transforms,
+         @RequestPart("image") FilePart image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        return imageService
+            .applyTransforms(transforms, image)
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline));
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to the
+     * uploaded image and stream each {@link TransformedImage} back to
+     * the client as a line of JSON as soon as its microservice
+     * responds, without decoding it.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param image      The uploaded image as a {@link FilePart}
+     * @param routingKey An optional key to route the image by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @return The newline-delimited JSON {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_TRANSFORMS_STREAM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+                 produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<DataBuffer> proxyTransformsStream
+        (@RequestParam List<String> transforms,
+         @RequestPart("image") FilePart image,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        return imageService
+            .proxyTransforms(transforms, image, MediaType.APPLICATION_NDJSON)
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline));
+    }
+
+    /**
+     * Apply the given {@link List} of {@code transforms} to a batch of
+     * uploaded images and stream each {@link TransformedImage} back to
+     * the client, tagged by image name, as soon as its microservice
+     * finishes it.  Each microservice is called once for the whole
+     * batch.
+     *
+     * @param transforms A {@link List} of transforms to apply
+     * @param images     The uploaded images as {@link FilePart} parts,
+     *                   whose file names must be unique, or else the
+     *                   request is answered with 400
+     * @param routingKey An optional key to route the batch by instead
+     *                   of its content
+     * @param deadline   The milliseconds left before the client gives
+     *                   up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage}
+     * objects as they become available
+     */
+    @PostMapping(value = APPLY_TRANSFORMS_BATCH,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransformsBatch
+        (@RequestParam List<String> transforms,
+         @RequestPart("images") Flux<FilePart> images,
+         @RequestHeader(value = ROUTING_KEY, required = false) String routingKey,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        return images
+            // Read the parts in order, since each must be consumed
+            // before the next one arrives.
+            .concatMap(image -> DataBufferUtils
+                       .join(image.content())
+                       .map(buffer -> {
+                               try {
+                                   byte[] bytes = new byte[buffer.readableByteCount()];
+                                   buffer.read(bytes);
+                                   return Tuples.of(image.filename(), bytes);
+                               } finally {
+                                   DataBufferUtils.release(buffer);
+                               }
+                           }))
+            .collect(LinkedHashMap<String, byte[]>::new,
+                     (batch, image) -> MainService.addToBatch(batch,
+                                                              image.getT1(),
+                                                              image.getT2()))
+            .flatMapMany(batch -> imageService
+                         .applyTransformsBatch(transforms, batch))
+            .contextWrite(MainService.routingKey(routingKey))
+            .contextWrite(MainService.deadline(deadline));
+    }
+
+    /**
+     * Answers a request with 503 when a bounded scheduler, such as
+     * the one that spools uploads to disk, rejects its work because
+     * its queue is full, so the client backs off and retries instead
+     * of treating it as a failure.
+     *
+     * @param e The rejection
+     * @return An empty 503 response that asks to retry after a second
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Void> overloaded(RejectedExecutionException e) {
+        return ResponseEntity
+            .status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .build();
+    }
+
+    /**
+     * Returns the gateway statistics, such as the load of each
+     * microservice instance picked by the load balancer.
+     *
+     * @return A {@link Map} of statistics keyed by name
+     */
+    @GetMapping(METRICS)
+    public Map<String, Object> metrics() {
+        return imageService.metrics();
+    }
+}
@@ -0,0 +1,318 @@
+package server.microservices.common;
+
+import java.util.Arrays;
+
+/**
+ * An immutable 4x5 color matrix that maps each ARGB pixel to a new
+ * ARGB pixel, where each output channel is a weighted sum of the
+ * input red, green, blue, and alpha values plus a constant offset:
+ * <pre>
+ *   R' = m[0]  * R + m[1]  * G + m[2]  * B + m[3]  * A + m[4]
+ *   G' = m[5]  * R + m[6]  * G + m[7]  * B + m[8]  * A + m[9]
+ *   B' = m[10] * R + m[11] * G + m[12] * B + m[13] * A + m[14]
+ *   A' = m[15] * R + m[16] * G + m[17] * B + m[18] * A + m[19]
+ * </pre>
+ * Results are truncated and clamped to {@code [0, 255]}.
+ * <p>
+ * Each matrix is compiled once into 256-entry fixed-point lookup
+ * tables, so its {@link PixelKernel} never multiplies per pixel.  A
+ * matrix that only scales each channel independently (such as tint)
+ * is compiled into one table per channel with the offset and clamp
+ * already applied.  The grayscale, sepia, and tint presets stay
+ * within one level of the {@link Transforms} kernels.
+ */
+public final class ColorMatrix {
+    /**
+     * Number of matrix rows (R, G, B, A).
+     */
+    private static final int ROWS = 4;
+
+    /**
+     * Number of matrix columns (R, G, B, A, offset).
+     */
+    private static final int COLUMNS = 5;
+
+    /**
+     * Number of fractional bits used by the lookup tables.
+     */
+    private static final int SHIFT = 16;
+
+    /**
+     * Small bias that keeps the rounding of table entries from
+     * pushing exact integer results down one level.
+     */
+    private static final int BIAS = 8;
+
+    /**
+     * Largest supported coefficient magnitude, which keeps the sum of
+     * the fixed-point terms from overflowing an int.
+     */
+    private static final float MAX_COEFFICIENT = 16f;
+
+    /**
+     * Largest supported offset magnitude.
+     */
+    private static final float MAX_OFFSET = 1024f;
+
+    /**
+     * A table of zeros shared by all unused matrix coefficients.
+     */
+    private static final int[] ZEROS = new int[256];
+
+    /**
+     * Grayscale preset using the weights from
+     * en.wikipedia.org/wiki/Grayscale.
+     */
+    public static final ColorMatrix GRAYSCALE = new ColorMatrix(new float[] {
+        .299f, .587f, .114f, 0, 0,
+        .299f, .587f, .114f, 0, 0,
+        .299f, .587f, .114f, 0, 0,
+        0, 0, 0, 0, 255});
+
+    /**
+     * Sepia preset that averages the channels and then warms them,
+     * using the same channel order as {@link Transforms#sepia}.
+     */
+    public static final ColorMatrix SEPIA = new ColorMatrix(new float[] {
+        1 / 3f, 1 / 3f, 1 / 3f, 0, 40,
+        1 / 3f, 1 / 3f, 1 / 3f, 0, 0,
+        1 / 3f, 1 / 3f, 1 / 3f, 0, 20,
+        0, 0, 0, 1, 0});
+
+    /**
+     * The 20 matrix values in row-major order.
+     */
+    private final float[] values;
+
+    /**
+     * Fixed-point lookup tables indexed by [row][input channel].
+     */
+    private final int[][][] tables;
+
+    /**
+     * Fixed-point offset for each row.
+     */
+    private final int[] offsets;
+
+    /**
+     * Final per-channel tables when the matrix has no cross-channel
+     * terms, or null otherwise.
+     */
+    private final int[][] channelTables;
+
+    /**
+     * Private constructor that validates and compiles the matrix.
+     */
+    private ColorMatrix(float[] values) {
+        if (values.length != ROWS * COLUMNS) {
+            throw new IllegalArgumentException
+                ("A color matrix needs " + ROWS * COLUMNS
+                 + " values but got " + values.length);
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            float limit = i % COLUMNS == COLUMNS - 1
+                ? MAX_OFFSET
+                : MAX_COEFFICIENT;
+            if (!(Math.abs(values[i]) <= limit)) {
+                throw new IllegalArgumentException
+                    ("Color matrix value " + values[i]
+                     + " at index " + i + " is out of range");
+            }
+        }
+
+        this.values = values.clone();
+        this.tables = new int[ROWS][ROWS][];
+        this.offsets = new int[ROWS];
+
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < ROWS; column++) {
+                tables[row][column] = buildTable(value(row, column));
+            }
+            offsets[row] = Math.round(value(row, ROWS) * (1 << SHIFT)) + BIAS;
+        }
+
+        channelTables = isDiagonal() ? buildChannelTables() : null;
+    }
+
+    /**
+     * Returns a color matrix built from 20 row-major values.
+     *
+     * @param values The matrix values
+     * @return A new {@link ColorMatrix}
+     */
+    public static ColorMatrix of(float... values) {
+        return new ColorMatrix(values);
+    }
+
+    /**
+     * Returns a tint preset that moves each channel towards 255 by
+     * the given fraction, matching {@link Transforms#tint}.
+     *
+     * @param redTint   Fraction to tint the red channel
+     * @param greenTint Fraction to tint the green channel
+     * @param blueTint  Fraction to tint the blue channel
+     * @return A new {@link ColorMatrix}
+     */
+    public static ColorMatrix tint(float redTint,
+                                   float greenTint,
+                                   float blueTint) {
+        return new ColorMatrix(new float[] {
+            1 - redTint, 0, 0, 0, 255 * redTint,
+            0, 1 - greenTint, 0, 0, 255 * greenTint,
+            0, 0, 1 - blueTint, 0, 255 * blueTint,
+            0, 0, 0, 1, 0});
+    }
+
+    /**
+     * Returns a {@link PixelKernel} that applies this matrix.
+     *
+     * @param hasAlpha True if transparent pixels should be skipped
+     * @return A {@link PixelKernel} for this matrix
+     */
+    public PixelKernel kernel(boolean hasAlpha) {
+        return channelTables != null
+            ? (pixels, from, to) -> applyChannels(pixels, from, to, hasAlpha)
+            : (pixels, from, to) -> applyMatrix(pixels, from, to, hasAlpha);
+    }
+
+    /**
+     * Applies per-channel lookup tables to pixels {@code [from, to)}.
+     */
+    private void applyChannels(int[] pixels,
+                               int from,
+                               int to,
+                               boolean hasAlpha) {
+        int[] reds = channelTables[0];
+        int[] greens = channelTables[1];
+        int[] blues = channelTables[2];
+        int[] alphas = channelTables[3];
+
+        for (int i = from; i < to; i++) {
+            int pixel = pixels[i];
+
+            // Skip transparent pixels
+            if (hasAlpha && (pixel >>> 24) == 0) {
+                continue;
+            }
+
+            pixels[i] = (alphas[pixel >>> 24] << 24)
+                | (reds[pixel >> 16 & 0xFF] << 16)
+                | (greens[pixel >> 8 & 0xFF] << 8)
+                | blues[pixel & 0xFF];
+        }
+    }
+
+    /**
+     * Applies the full matrix to pixels {@code [from, to)} by summing
+     * the fixed-point table entries for each output channel.
+     */
+    private void applyMatrix(int[] pixels,
+                             int from,
+                             int to,
+                             boolean hasAlpha) {
+        int[] rr = tables[0][0], rg = tables[0][1], rb = tables[0][2], ra = tables[0][3];
+        int[] gr = tables[1][0], gg = tables[1][1], gb = tables[1][2], ga = tables[1][3];
+        int[] br = tables[2][0], bg = tables[2][1], bb = tables[2][2], ba = tables[2][3];
+        int[] ar = tables[3][0], ag = tables[3][1], ab = tables[3][2], aa = tables[3][3];
+        int ro = offsets[0], go = offsets[1], bo = offsets[2], ao = offsets[3];
+
+        for (int i = from; i < to; i++) {
+            int pixel = pixels[i];
+            int a = pixel >>> 24;
+
+            // Skip transparent pixels
+            if (hasAlpha && a == 0) {
+                continue;
+            }
+
+            int r = pixel >> 16 & 0xFF;
+            int g = pixel >> 8 & 0xFF;
+            int b = pixel & 0xFF;
+
+            pixels[i] = (clamp(ar[r] + ag[g] + ab[b] + aa[a] + ao) << 24)
+                | (clamp(rr[r] + rg[g] + rb[b] + ra[a] + ro) << 16)
+                | (clamp(gr[r] + gg[g] + gb[b] + ga[a] + go) << 8)
+                | clamp(br[r] + bg[g] + bb[b] + ba[a] + bo);
+        }
+    }
+
+    /**
+     * Converts a fixed-point sum to a channel value in {@code [0, 255]}.
+     */
+    private static int clamp(int sum) {
+        int value = sum >> SHIFT;
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    /**
+     * Returns the fixed-point products of {@code coefficient} and each
+     * channel value, sharing {@link #ZEROS} for unused coefficients.
+     */
+    private static int[] buildTable(float coefficient) {
+        if (coefficient == 0) {
+            return ZEROS;
+        }
+
+        int[] table = new int[256];
+        for (int value = 0; value < table.length; value++) {
+            table[value] = (int) Math.round((double) coefficient
+                                            * value
+                                            * (1 << SHIFT));
+        }
+        return table;
+    }
+
+    /**
+     * Returns true if each output channel only depends on the same
+     * input channel.
+     */
+    private boolean isDiagonal() {
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < ROWS; column++) {
+                if (row != column && value(row, column) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Folds the offset and clamp of each row into its diagonal table.
+     */
+    private int[][] buildChannelTables() {
+        int[][] result = new int[ROWS][256];
+        for (int row = 0; row < ROWS; row++) {
+            for (int value = 0; value < 256; value++) {
+                result[row][value] =
+                    clamp(tables[row][row][value] + offsets[row]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the matrix value at {@code row} and {@code column}.
+     */
+    private float value(int row, int column) {
+        return values[row * COLUMNS + column];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ColorMatrix)) return false;
+        return Arrays.equals(values, ((ColorMatrix) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return "ColorMatrix" + Arrays.toString(values);
+    }
+}
@@ -0,0 +1,82 @@
+package server.microservices.common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32C;
+
+/**
+ * A fingerprint of the input image bytes used to key the transform
+ * caches, made of a CRC32C checksum and a 64-bit hash of the bytes
+ * together with their length.
+ */
+final class ContentHash {
+    /**
+     * Reads little-endian longs from a byte array.
+     */
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class,
+                                             ByteOrder.LITTLE_ENDIAN);
+
+    private final int length;
+    private final int crc;
+    private final long hash;
+
+    /**
+     * Constructor hashes the {@code bytes}.
+     *
+     * @param bytes The input image bytes
+     */
+    ContentHash(byte[] bytes) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(bytes);
+
+        this.length = bytes.length;
+        this.crc = (int) crc32c.getValue();
+        this.hash = hash64(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ContentHash)) return false;
+        ContentHash that = (ContentHash) o;
+        return length == that.length && crc == that.crc && hash == that.hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash);
+    }
+
+    /**
+     * Returns a 64-bit hash of {@code bytes} that reads eight bytes at
+     * a time and mixes them with multiply-rotate steps.
+     */
+    static long hash64(byte[] bytes) {
+        final long prime1 = 0x9E3779B185EBCA87L;
+        final long prime2 = 0xC2B2AE3D27D4EB4FL;
+
+        long hash = bytes.length * prime1;
+        int i = 0;
+
+        for (; i + Long.BYTES <= bytes.length; i += Long.BYTES) {
+            long value = (long) LONGS.get(bytes, i);
+            hash ^= Long.rotateLeft(value * prime2, 31) * prime1;
+            hash = Long.rotateLeft(hash, 27) * prime1 + prime2;
+        }
+
+        for (; i < bytes.length; i++) {
+            hash ^= (bytes[i] & 0xFFL) * prime1;
+            hash = Long.rotateLeft(hash, 11) * prime2;
+        }
+
+        // Final avalanche.
+        hash ^= hash >>> 33;
+        hash *= prime2;
+        hash ^= hash >>> 29;
+        hash *= prime1;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+}
@@ -0,0 +1,107 @@
+package server.microservices.common;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import server.common.ImageUtils;
+
+import javax.annotation.PostConstruct;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+/**
+ * A memory-bounded cache of decoded images that lets requests for
+ * different transforms of the same input image (such as the three
+ * requests the gateway sends for each image, or retries) skip the
+ * {@code ImageIO} decode.
+ * <p>
+ * Images are keyed by the {@link ContentHash} of their encoded bytes
+ * and weighted by their size as ARGB pixels.  Values are held softly,
+ * so the garbage collector can reclaim them under heap pressure
+ * before the weight bound is reached.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the {@link TransformService}.
+ */
+@Component
+public class DecodedImageCache {
+    /**
+     * Largest total weight of the cached images in bytes, where 0
+     * disables the cache.
+     */
+    @Value("${transform.decoded-cache.max-bytes:0}")
+    long maxBytes;
+
+    /**
+     * The Caffeine cache, which stays null while the cache is
+     * disabled.
+     */
+    private Cache<ContentHash, BufferedImage> cache;
+
+    /**
+     * Creates the Caffeine cache once the properties are injected.
+     */
+    @PostConstruct
+    void start() {
+        if (maxBytes > 0) {
+            cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .<ContentHash, BufferedImage>weigher((key, image) ->
+                    (int) Math.min(Integer.MAX_VALUE,
+                                   (long) image.getWidth() * image.getHeight() * 4))
+                .softValues()
+                .recordStats()
+                .build();
+        }
+    }
+
+    /**
+     * Returns a decoded copy of {@code imageBytes} that the caller may
+     * modify, such as by transforming it in place.
+     *
+     * @param imageBytes The encoded image bytes
+     * @return A {@link BufferedImage} owned by the caller
+     */
+    public BufferedImage decode(byte[] imageBytes) {
+        if (cache == null) {
+            return ImageUtils.toBufferedImage(imageBytes);
+        }
+
+        return copy(decodeShared(imageBytes));
+    }
+
+    /**
+     * Returns the decoded {@code imageBytes}, which may be shared with
+     * other requests and must not be modified.
+     *
+     * @param imageBytes The encoded image bytes
+     * @return A read-only {@link BufferedImage}
+     */
+    public BufferedImage decodeShared(byte[] imageBytes) {
+        if (cache == null) {
+            return ImageUtils.toBufferedImage(imageBytes);
+        }
+
+        return cache.get(new ContentHash(imageBytes),
+                         key -> ImageUtils.toBufferedImage(imageBytes));
+    }
+
+    /**
+     * @return The cache statistics, which are empty while the cache
+     *         is disabled.
+     */
+    public Map<String, Object> stats() {
+        return ResultCache.stats(cache, maxBytes);
+    }
+
+    /**
+     * Returns a copy of {@code image} with the same layout.
+     */
+    private static BufferedImage copy(BufferedImage image) {
+        return new BufferedImage(image.getColorModel(),
+                                 image.copyData(null),
+                                 image.isAlphaPremultiplied(),
+                                 null);
+    }
+}
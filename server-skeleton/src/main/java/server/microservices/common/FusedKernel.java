@@ -0,0 +1,46 @@
+package server.microservices.common;
+
+import java.util.List;
+
+/**
+ * A {@link PixelKernel} that fuses a chain of kernels into a single
+ * pass over the pixels.
+ * <p>
+ * Rather than running each stage over the whole range in turn, the
+ * range is processed in small blocks that fit in the L1 cache and
+ * every stage is applied to a block before moving on to the next
+ * one.  Since each stage only looks at one pixel at a time, this
+ * produces the same pixels as running the stages one after another,
+ * while reading and writing main memory only once.
+ */
+public class FusedKernel implements PixelKernel {
+    /**
+     * Number of pixels (16KB) run through all the stages at a time.
+     */
+    static final int BLOCK_PIXELS = 4096;
+
+    /**
+     * The stages to apply, in order.
+     */
+    private final PixelKernel[] stages;
+
+    /**
+     * Constructor initializes the stages.
+     *
+     * @param stages The kernels to apply, in order
+     */
+    public FusedKernel(List<PixelKernel> stages) {
+        this.stages = stages.toArray(new PixelKernel[0]);
+    }
+
+    @Override
+    public void apply(int[] pixels, int from, int to) {
+        for (int start = from; start < to; start += BLOCK_PIXELS) {
+            int end = Math.min(start + BLOCK_PIXELS, to);
+
+            for (PixelKernel stage : stages) {
+                stage.apply(pixels, start, end);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package server.microservices.common;
+
+/**
+ * A per-pixel transform that is applied in place to the ARGB pixels
+ * in the range {@code [from, to)} of a pixel array.
+ * <p>
+ * Because each kernel only touches the pixels in its range, callers
+ * are free to split an image into independent pieces and apply the
+ * same kernel to each piece.
+ */
+@FunctionalInterface
+public interface PixelKernel {
+    /**
+     * Transforms {@code pixels[from]} up to, but not including,
+     * {@code pixels[to]} in place.
+     *
+     * @param pixels The ARGB pixels to transform
+     * @param from   The index of the first pixel to transform
+     * @param to     The index just past the last pixel to transform
+     */
+    void apply(int[] pixels, int from, int to);
+}
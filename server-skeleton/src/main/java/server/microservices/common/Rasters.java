@@ -0,0 +1,222 @@
+package server.microservices.common;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * This Java utility class applies a {@link PixelKernel} directly to
+ * the backing store of a {@link BufferedImage}, which avoids the
+ * full-image {@code int[]} copies made by {@link
+ * BufferedImage#getRGB} and {@link BufferedImage#setRGB}.
+ * <p>
+ * Images stored as packed ARGB/RGB ints are transformed in place,
+ * with RGB ints made opaque while the kernel runs.
+ * Images stored as interleaved BGR/ABGR bytes are transformed one
+ * row at a time through a small scratch buffer that stays in cache,
+ * so the existing kernels are reused unchanged and produce the same
+ * pixels as the {@code getRGB}/{@code setRGB} path.
+ */
+public final class Rasters {
+    /**
+     * Band offsets used by {@link BufferedImage#TYPE_3BYTE_BGR}.
+     */
+    private static final int[] BGR_OFFSETS = {2, 1, 0};
+
+    /**
+     * Band offsets used by {@link BufferedImage#TYPE_4BYTE_ABGR}.
+     */
+    private static final int[] ABGR_OFFSETS = {3, 2, 1, 0};
+
+    /**
+     * A Java utility class needs a private constructor.
+     */
+    private Rasters() {}
+
+    /**
+     * Returns true if {@link #apply} can work directly on the backing
+     * store of {@code image}, or false if the caller must fall back
+     * to the {@code getRGB}/{@code setRGB} path.
+     *
+     * @param image The image to check
+     * @return True if the image layout is supported
+     */
+    public static boolean isSupported(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+
+        // Only handle standard sRGB images that aren't sub-images.
+        if (!image.getColorModel().getColorSpace().isCS_sRGB()
+            || image.isAlphaPremultiplied()
+            || raster.getSampleModelTranslateX() != 0
+            || raster.getSampleModelTranslateY() != 0
+            || raster.getDataBuffer().getNumBanks() != 1) {
+            return false;
+        }
+
+        SampleModel sampleModel = raster.getSampleModel();
+
+        switch (image.getType()) {
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_RGB:
+            return sampleModel instanceof SinglePixelPackedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferInt;
+        case BufferedImage.TYPE_3BYTE_BGR:
+            return hasByteLayout(raster, BGR_OFFSETS);
+        case BufferedImage.TYPE_4BYTE_ABGR:
+            return hasByteLayout(raster, ABGR_OFFSETS);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Applies {@code kernel} to rows {@code [fromRow, toRow)} of
+     * {@code image} in place.  The image must pass {@link
+     * #isSupported}.
+     *
+     * @param image   The image to transform
+     * @param kernel  The kernel to apply
+     * @param fromRow The first row to transform
+     * @param toRow   The row just past the last row to transform
+     */
+    public static void apply(BufferedImage image,
+                             PixelKernel kernel,
+                             int fromRow,
+                             int toRow) {
+        WritableRaster raster = image.getRaster();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        int width = image.getWidth();
+
+        switch (image.getType()) {
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_RGB: {
+            int[] data = ((DataBufferInt) dataBuffer).getData();
+            int stride = ((SinglePixelPackedSampleModel) raster
+                          .getSampleModel()).getScanlineStride();
+            int offset = dataBuffer.getOffset();
+            boolean opaque = image.getType() == BufferedImage.TYPE_INT_RGB;
+
+            if (stride == width) {
+                // The rows are contiguous, so do them in one call.
+                applyInts(data,
+                          kernel,
+                          offset + fromRow * width,
+                          offset + toRow * width,
+                          opaque);
+            } else {
+                for (int y = fromRow; y < toRow; y++) {
+                    int start = offset + y * stride;
+                    applyInts(data, kernel, start, start + width, opaque);
+                }
+            }
+            break;
+        }
+        case BufferedImage.TYPE_3BYTE_BGR:
+            applyBytes(raster, kernel, width, fromRow, toRow, false);
+            break;
+        case BufferedImage.TYPE_4BYTE_ABGR:
+            applyBytes(raster, kernel, width, fromRow, toRow, true);
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported image type: "
+                                               + image.getType());
+        }
+    }
+
+    /**
+     * Applies {@code kernel} to packed ints {@code [from, to)}.  The
+     * unused high byte of an RGB int is 0, but {@code getRGB()}
+     * reports those pixels as opaque, so it's set to 255 while the
+     * kernel runs, since a kernel may read the alpha channel, e.g., a
+     * {@link ColorMatrix} with an alpha column, and cleared again
+     * afterwards, just like {@code setRGB()} does.
+     */
+    private static void applyInts(int[] data,
+                                  PixelKernel kernel,
+                                  int from,
+                                  int to,
+                                  boolean opaque) {
+        if (opaque) {
+            for (int i = from; i < to; i++) {
+                data[i] |= 0xFF000000;
+            }
+        }
+
+        kernel.apply(data, from, to);
+
+        if (opaque) {
+            for (int i = from; i < to; i++) {
+                data[i] &= 0x00FFFFFF;
+            }
+        }
+    }
+
+    /**
+     * Applies {@code kernel} to rows of an interleaved BGR or ABGR
+     * byte raster by packing each row into a scratch ARGB buffer,
+     * transforming it, and unpacking it back into the raster.
+     */
+    private static void applyBytes(WritableRaster raster,
+                                   PixelKernel kernel,
+                                   int width,
+                                   int fromRow,
+                                   int toRow,
+                                   boolean hasAlpha) {
+        ComponentSampleModel sampleModel =
+            (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int stride = sampleModel.getScanlineStride();
+        int offset = raster.getDataBuffer().getOffset();
+        int[] row = new int[width];
+
+        for (int y = fromRow; y < toRow; y++) {
+            int start = offset + y * stride;
+
+            // Pack the row into ARGB ints, just like getRGB() does.
+            for (int x = 0, i = start; x < width; x++) {
+                int alpha = hasAlpha ? data[i++] & 0xFF : 0xFF;
+                int blue = data[i++] & 0xFF;
+                int green = data[i++] & 0xFF;
+                int red = data[i++] & 0xFF;
+                row[x] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+            }
+
+            kernel.apply(row, 0, width);
+
+            // Unpack the transformed row, just like setRGB() does.
+            for (int x = 0, i = start; x < width; x++) {
+                int pixel = row[x];
+                if (hasAlpha) {
+                    data[i++] = (byte) (pixel >>> 24);
+                }
+                data[i++] = (byte) pixel;
+                data[i++] = (byte) (pixel >> 8);
+                data[i++] = (byte) (pixel >> 16);
+            }
+        }
+    }
+
+    /**
+     * Returns true if {@code raster} stores 8-bit interleaved bands
+     * in a single byte array using the given {@code bandOffsets}.
+     */
+    private static boolean hasByteLayout(WritableRaster raster,
+                                         int[] bandOffsets) {
+        if (!(raster.getSampleModel() instanceof ComponentSampleModel)
+            || !(raster.getDataBuffer() instanceof DataBufferByte)) {
+            return false;
+        }
+
+        ComponentSampleModel sampleModel =
+            (ComponentSampleModel) raster.getSampleModel();
+
+        return sampleModel.getPixelStride() == bandOffsets.length
+            && Arrays.equals(sampleModel.getBandOffsets(), bandOffsets);
+    }
+}
@@ -0,0 +1,319 @@
+package server.microservices.common;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
+import server.common.BlobStore;
+import server.common.Deadline;
+import server.common.model.TransformedImage;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import static server.common.Constants.EndPoint.APPLY_MULTI_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM_BATCH;
+import static server.common.Constants.EndPoint.METRICS;
+import static server.common.Constants.Headers.DEADLINE;
+
+/**
+ * This Spring WebFlux controller replaces the {@link
+ * TransformController} when a transform microservice runs on Netty,
+ * i.e., when it's started with {@code
+ * spring.main.web-application-type=reactive}.
+ * <p>
+ * Uploads arrive as a {@link FilePart} whose content is joined
+ * without blocking a thread, and the CPU-bound decode, transform,
+ * and encode work runs on a bounded {@link Scheduler}.  When all of
+ * its threads are busy and its queue is full, new requests fail fast
+ * with 503 instead of piling up, so the Netty event loops are never
+ * blocked.
+ * <p>
+ * When the caller disconnects, WebFlux cancels the response, which
+ * cancels the request's {@link Deadline} so the transform stops at
+ * its next row band instead of finishing for nobody.
+ */
+@RestController
+@CrossOrigin("*")
+@ResponseBody
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveTransformController {
+    /**
+     * This auto-wired field connects the {@link
+     * ReactiveTransformController} to the {@link TransformService}.
+     */
+    @Autowired
+    TransformService service;
+
+    /**
+     * This auto-wired field connects the {@link
+     * ReactiveTransformController} to the {@link BlobStore} holding
+     * images uploaded to the gateway.
+     */
+    @Autowired
+    BlobStore blobStore;
+
+    /**
+     * Number of threads that run transforms, where a value less than
+     * 1 uses the number of available processors.
+     */
+    @Value("${transform.scheduler.threads:0}")
+    int threads;
+
+    /**
+     * Largest number of transforms waiting for a thread.
+     */
+    @Value("${transform.scheduler.queued-tasks:256}")
+    int queuedTasks;
+
+    /**
+     * The bounded scheduler that runs the CPU-bound work.
+     */
+    Scheduler scheduler;
+
+    /**
+     * The number of threads of the {@link #scheduler}.
+     */
+    int parallelism;
+
+    /**
+     * Creates the scheduler once the properties are injected.
+     */
+    @PostConstruct
+    void start() {
+        parallelism = threads < 1
+            ? Runtime.getRuntime().availableProcessors()
+            : threads;
+        scheduler = Schedulers.newBoundedElastic(parallelism,
+                                                 queuedTasks,
+                                                 "transform");
+    }
+
+    /**
+     * Disposes the scheduler when the application stops.
+     */
+    @PreDestroy
+    void stop() {
+        scheduler.dispose();
+    }
+
+    /**
+     * Request used by Eureka Control panel.
+     *
+     * @return Print something useful (e.g., the class name)
+     */
+    @GetMapping("/actuator/info")
+    String info() {
+        return getClass().getName();
+    }
+
+    /**
+     * Apply the given {@code transform} to the uploaded {@code image}
+     * and return a {@link Mono} that emits the {@link
+     * TransformedImage}.
+     *
+     * @param transform The name of the transformed image
+     * @param image     The uploaded image as a {@link FilePart}, or null
+     *                  if it's sent as a {@code blob}
+     * @param blob      The {@link BlobStore} key of the image, or null
+     *                  if it's sent inline
+     * @param filename  The image file name sent as a form field
+     * @param params    Optional transform parameters
+     * @param deadline  The milliseconds left before the caller gives
+     *                  up, or null if it waits indefinitely
+     * @return A {@link Mono} that emits the {@link TransformedImage}
+     */
+    @PostMapping(value = APPLY_TRANSFORM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<TransformedImage> applyTransform
+        (@RequestParam String transform,
+         @RequestPart(value = "image", required = false) FilePart image,
+         @RequestParam(required = false) String blob,
+         @RequestPart(value = "filename", required = false) String filename,
+         @RequestParam(required = false) List<Float> params,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        String fileName = image != null ? image.filename() : filename;
+
+        // Start the deadline when the request arrives.
+        Deadline expiry = Deadline.cancellable(deadline);
+
+        return toBytes(image, blob)
+            // Run the transform on the bounded scheduler.
+            .publishOn(scheduler)
+            .map(bytes -> service.applyTransform(fileName,
+                                                 transform,
+                                                 bytes,
+                                                 TransformController.toArray(params),
+                                                 expiry))
+            // Stop the transform if the caller goes away.
+            .doOnCancel(expiry::cancel);
+    }
+
+    /**
+     * Apply all the given {@code transforms} to the uploaded {@code
+     * image}, which is only decoded once, and return a {@link Flux}
+     * that emits one {@link TransformedImage} per transform.
+     *
+     * @param transforms The names of the transforms to apply
+     * @param image      The uploaded image as a {@link FilePart}, or
+     *                   null if it's sent as a {@code blob}
+     * @param blob       The {@link BlobStore} key of the image, or null
+     *                   if it's sent inline
+     * @param filename   The image file name sent as a form field
+     * @param deadline   The milliseconds left before the caller gives
+     *                   up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_MULTI_TRANSFORM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransforms
+        (@RequestParam List<String> transforms,
+         @RequestPart(value = "image", required = false) FilePart image,
+         @RequestParam(required = false) String blob,
+         @RequestPart(value = "filename", required = false) String filename,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        String fileName = image != null ? image.filename() : filename;
+
+        // Start the deadline when the request arrives.
+        Deadline expiry = Deadline.cancellable(deadline);
+
+        return toBytes(image, blob)
+            // Run the transforms on the bounded scheduler.
+            .publishOn(scheduler)
+            .map(bytes -> service.applyTransforms(fileName,
+                                                  transforms,
+                                                  bytes,
+                                                  expiry))
+            .flatMapIterable(results -> results)
+            // Stop the transforms if the caller goes away.
+            .doOnCancel(expiry::cancel);
+    }
+
+    /**
+     * Apply the given {@code transform} to each of the uploaded {@code
+     * images} and return a {@link Flux} that emits one {@link
+     * TransformedImage} per image, tagged by its file name, as soon
+     * as it's done.  The images are read in order, but transformed in
+     * parallel on the bounded scheduler.
+     *
+     * @param transform The name of the transform to apply
+     * @param images    The uploaded images as {@link FilePart} parts
+     * @param deadline  The milliseconds left before the caller gives
+     *                  up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_TRANSFORM_BATCH,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransformBatch
+        (@RequestParam String transform,
+         @RequestPart("images") Flux<FilePart> images,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        // Start the deadline when the request arrives.
+        Deadline expiry = Deadline.cancellable(deadline);
+
+        return images
+            // Parts must be read in the order they arrive.
+            .concatMap(image -> toBytes(image)
+                       .map(bytes -> Tuples.of(image.filename(), bytes)))
+
+            // Run each transform on the bounded scheduler, but no more
+            // at once than it has threads, so a large batch doesn't
+            // fill its queue and get rejected.
+            .flatMap(image -> Mono
+                     .fromCallable(() -> service.applyTransform(image.getT1(),
+                                                                transform,
+                                                                image.getT2(),
+                                                                null,
+                                                                expiry))
+                     .subscribeOn(scheduler),
+                     parallelism)
+
+            // Stop the transforms if the caller goes away.
+            .doOnCancel(expiry::cancel);
+    }
+
+    /**
+     * Returns the transform service statistics.
+     *
+     * @return A {@link Map} of statistics keyed by name
+     */
+    @GetMapping(METRICS)
+    public Map<String, Object> metrics() {
+        return service.metrics();
+    }
+
+    /**
+     * Answers a request with 503 when the bounded scheduler rejects
+     * its work because all of its threads are busy and its queue is
+     * full, so the gateway backs off and retries instead of treating
+     * it as a failure.
+     *
+     * @param e The rejection
+     * @return An empty 503 response that asks to retry after a second
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Void> overloaded(RejectedExecutionException e) {
+        return ResponseEntity
+            .status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .build();
+    }
+
+    /**
+     * Returns the bytes of an image sent inline or as a {@link
+     * BlobStore} key, failing with 404 if the blob can't be read on
+     * this host so the gateway sends the image inline instead, or
+     * with 400 if the request has neither.
+     */
+    private Mono<byte[]> toBytes(FilePart image, String blob) {
+        if (image != null) {
+            return toBytes(image);
+        } else if (blob == null) {
+            return Mono.error(new ResponseStatusException
+                              (HttpStatus.BAD_REQUEST,
+                               "Missing image or blob"));
+        }
+
+        return Mono
+            // Reading the blob blocks, so keep it off the event loop.
+            .fromCallable(() -> blobStore.get(blob))
+            .subscribeOn(scheduler)
+            .switchIfEmpty(Mono.error(new ResponseStatusException
+                                      (HttpStatus.NOT_FOUND,
+                                       "Image blob not found")));
+    }
+
+    /**
+     * Joins the content of {@code image} into one byte array without
+     * blocking, which the content hash and decoder need anyway.
+     */
+    private static Mono<byte[]> toBytes(FilePart image) {
+        return DataBufferUtils
+            .join(image.content())
+            .map(buffer -> {
+                try {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    return bytes;
+                } finally {
+                    DataBufferUtils.release(buffer);
+                }
+            });
+    }
+}
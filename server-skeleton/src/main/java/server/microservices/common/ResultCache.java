@@ -0,0 +1,232 @@
+package server.microservices.common;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import server.common.model.TransformedImage;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of encoded transform results that lets a repeated
+ * request for the same image bytes, transform, and parameters return
+ * without decoding the image at all.
+ * <p>
+ * Results are keyed by the {@link ContentHash} of the input image
+ * rather than its file name.  Entries are weighted by the size of
+ * their base64 encoded image, expire a fixed time after they are
+ * written, and the cache records hit and miss statistics.
+ * <p>
+ * Missed results are transformed outside the cache and then put into
+ * it, so a slow transform never holds a lock that other keys need.
+ * Concurrent misses on the same key are left to the {@link
+ * SingleFlight} to coalesce.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the {@link TransformService}.
+ */
+@Component
+public class ResultCache {
+    /**
+     * Estimated number of bytes used by each entry in addition to its
+     * encoded image.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Largest total weight of the cached results in bytes, where 0
+     * disables the cache.
+     */
+    @Value("${transform.cache.max-bytes:0}")
+    long maxBytes;
+
+    /**
+     * How long a result stays cached after it's written.
+     */
+    @Value("${transform.cache.ttl:10m}")
+    Duration ttl = Duration.ofMinutes(10);
+
+    /**
+     * The Caffeine cache, which stays null while the cache is
+     * disabled.
+     */
+    private Cache<Key, String> cache;
+
+    /**
+     * Creates the Caffeine cache once the properties are injected.
+     */
+    @PostConstruct
+    void start() {
+        if (maxBytes > 0) {
+            cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .<Key, String>weigher((key, encodedBytes) ->
+                                      encodedBytes.length() + ENTRY_OVERHEAD)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        }
+    }
+
+    /**
+     * Returns the cached result for one transform, or calls {@code
+     * transformer} and caches its result on a miss.
+     *
+     * @param fileName    Original image file name.
+     * @param transform   Transform name.
+     * @param imageBytes  Image bytes to transform.
+     * @param params      Transform parameters, or null for the defaults.
+     * @param transformer Transforms the image on a cache miss, given
+     *                    its cache {@link Key} so the image needn't be
+     *                    hashed again, or null if the cache is
+     *                    disabled.
+     * @return The transformed image.
+     */
+    public TransformedImage get(String fileName,
+                                String transform,
+                                byte[] imageBytes,
+                                float[] params,
+                                Function<Key, TransformedImage> transformer) {
+        if (cache == null) {
+            return transformer.apply(null);
+        }
+
+        Key key = new Key(new ContentHash(imageBytes), transform, params);
+        String encodedBytes = cache.getIfPresent(key);
+        if (encodedBytes != null) {
+            return new TransformedImage(fileName, transform, encodedBytes);
+        }
+
+        // Transform outside the cache, whose loader would hold a lock
+        // shared with unrelated keys meanwhile.
+        TransformedImage result = transformer.apply(key);
+        cache.put(key, result.getEncodedBytes());
+        return result;
+    }
+
+    /**
+     * Returns the cached results for several transforms of the same
+     * image, calling {@code transformer} once with just the transforms
+     * that missed and caching its results.
+     *
+     * @param fileName       Original image file name.
+     * @param transformNames Transform names.
+     * @param imageBytes     Image bytes to transform.
+     * @param transformer    Transforms the image for a list of missed
+     *                       transform names, returning the results in
+     *                       the same order.  It's also given the
+     *                       image's {@link ContentHash} so the image
+     *                       needn't be hashed again, or null if the
+     *                       cache is disabled.
+     * @return The transformed images in the same order as {@code
+     *         transformNames}.
+     */
+    public List<TransformedImage> getAll
+        (String fileName,
+         List<String> transformNames,
+         byte[] imageBytes,
+         BiFunction<ContentHash, List<String>, List<TransformedImage>> transformer) {
+        if (cache == null) {
+            return transformer.apply(null, transformNames);
+        }
+
+        ContentHash hash = new ContentHash(imageBytes);
+        TransformedImage[] results = new TransformedImage[transformNames.size()];
+        List<String> missed = new ArrayList<>();
+        List<Integer> missedIndices = new ArrayList<>();
+
+        for (int i = 0; i < results.length; i++) {
+            String transform = transformNames.get(i);
+            String encodedBytes = cache.getIfPresent(new Key(hash, transform, null));
+            if (encodedBytes != null) {
+                results[i] = new TransformedImage(fileName, transform, encodedBytes);
+            } else {
+                missed.add(transform);
+                missedIndices.add(i);
+            }
+        }
+
+        if (!missed.isEmpty()) {
+            List<TransformedImage> transformed = transformer.apply(hash, missed);
+            for (int i = 0; i < missed.size(); i++) {
+                TransformedImage result = transformed.get(i);
+                cache.put(new Key(hash, missed.get(i), null),
+                          result.getEncodedBytes());
+                results[missedIndices.get(i)] = result;
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return The cache statistics, which are empty while the cache
+     *         is disabled.
+     */
+    public Map<String, Object> stats() {
+        return stats(cache, maxBytes);
+    }
+
+    /**
+     * Returns the statistics of a size-weighted {@code cache}, or an
+     * empty {@link Map} if the cache is null.
+     */
+    static Map<String, Object> stats(Cache<?, ?> cache, long maxBytes) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        if (cache != null) {
+            CacheStats cacheStats = cache.stats();
+            stats.put("hitCount", cacheStats.hitCount());
+            stats.put("missCount", cacheStats.missCount());
+            stats.put("hitRate", cacheStats.hitRate());
+            stats.put("evictionCount", cacheStats.evictionCount());
+            stats.put("entries", cache.estimatedSize());
+            stats.put("weightedBytes", cache.policy()
+                      .eviction()
+                      .map(eviction -> eviction.weightedSize().orElse(0))
+                      .orElse(0L));
+            stats.put("maxBytes", maxBytes);
+        }
+        return stats;
+    }
+
+    /**
+     * The cache key for one transform of one input image.
+     */
+    static final class Key {
+        private final ContentHash content;
+        private final String transform;
+        private final float[] params;
+
+        Key(ContentHash content, String transform, float[] params) {
+            this.content = content;
+            this.transform = transform;
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return content.equals(that.content)
+                && transform.equals(that.transform)
+                && Arrays.equals(params, that.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(content, transform, Arrays.hashCode(params));
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package server.microservices.common;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import server.common.Deadline;
+import server.common.model.TransformedImage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical transform requests that arrive while the first
+ * of them is still running, i.e., requests for the same image bytes,
+ * transforms, and parameters, so the image is only transformed once
+ * and every caller gets the result.  This complements the {@link
+ * ResultCache}, which only helps requests that arrive after a result
+ * was cached.
+ * <p>
+ * Requests are keyed by the {@link ContentHash} of the input image
+ * rather than its file name, and each caller gets the result under
+ * its own file name.  The hash is taken from the {@link ResultCache}
+ * key when the cache already computed it, so the image is only
+ * hashed once.  A caller that joins a running transform only
+ * waits for it until its own {@link Deadline} passes or is cancelled.
+ * If the transform is dropped because the deadline of the caller that
+ * started it passed, the callers still waiting run it again instead
+ * of failing with it.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the {@link TransformService}.
+ */
+@Component
+public class SingleFlight {
+    /**
+     * If false, every request runs its own transform.
+     */
+    @Value("${transform.single-flight.enabled:false}")
+    boolean enabled;
+
+    /**
+     * The running transforms, keyed by what they compute.
+     */
+    private final Map<Object, CompletableFuture<Object>> inFlight =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The number of requests that ran a transform, that joined one
+     * already running, and that ran it again because the caller that
+     * started it ran out of time.
+     */
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * Returns the result of the identical transform already running,
+     * or else calls {@code transformer} and shares its result with
+     * any identical requests that arrive meanwhile.
+     *
+     * @param fileName    Original image file name.
+     * @param transform   Transform name.
+     * @param imageBytes  Image bytes to transform.
+     * @param params      Transform parameters, or null for the defaults.
+     * @param deadline    The request's {@link Deadline}.
+     * @param transformer Transforms the image.
+     * @return The transformed image.
+     * @throws Deadline.ExpiredException If the deadline passed.
+     */
+    public TransformedImage get(String fileName,
+                                String transform,
+                                byte[] imageBytes,
+                                float[] params,
+                                Deadline deadline,
+                                Supplier<TransformedImage> transformer) {
+        return get(fileName, transform, imageBytes, params, null, deadline, transformer);
+    }
+
+    /**
+     * Like {@link #get(String, String, byte[], float[], Deadline,
+     * Supplier)}, but reuses the request's {@link ResultCache} key
+     * instead of hashing the image again.
+     *
+     * @param fileName    Original image file name.
+     * @param transform   Transform name.
+     * @param imageBytes  Image bytes to transform.
+     * @param params      Transform parameters, or null for the defaults.
+     * @param key         The request's {@link ResultCache.Key}, or null
+     *                    if the cache didn't compute one.
+     * @param deadline    The request's {@link Deadline}.
+     * @param transformer Transforms the image.
+     * @return The transformed image.
+     * @throws Deadline.ExpiredException If the deadline passed.
+     */
+    public TransformedImage get(String fileName,
+                                String transform,
+                                byte[] imageBytes,
+                                float[] params,
+                                ResultCache.Key key,
+                                Deadline deadline,
+                                Supplier<TransformedImage> transformer) {
+        if (!enabled) {
+            return transformer.get();
+        }
+
+        if (key == null) {
+            key = new ResultCache.Key(new ContentHash(imageBytes), transform, params);
+        }
+        return named(fileName, execute(key, deadline, transformer));
+    }
+
+    /**
+     * Returns the results of the identical multi-transform already
+     * running, or else calls {@code transformer} and shares its
+     * results like {@link #get}.
+     *
+     * @param fileName       Original image file name.
+     * @param transformNames Transform names.
+     * @param imageBytes     Image bytes to transform.
+     * @param hash           The {@link ContentHash} of the image if the
+     *                       {@link ResultCache} already computed it, or
+     *                       null.
+     * @param deadline       The request's {@link Deadline}.
+     * @param transformer    Transforms the image for all the names,
+     *                       returning the results in the same order.
+     * @return The transformed images in the same order as {@code
+     *         transformNames}.
+     * @throws Deadline.ExpiredException If the deadline passed.
+     */
+    public List<TransformedImage> getAll
+        (String fileName,
+         List<String> transformNames,
+         byte[] imageBytes,
+         ContentHash hash,
+         Deadline deadline,
+         Supplier<List<TransformedImage>> transformer) {
+        if (!enabled) {
+            return transformer.get();
+        }
+
+        List<Object> key = Arrays.asList(hash != null ? hash : new ContentHash(imageBytes),
+                                         List.copyOf(transformNames));
+        List<TransformedImage> results = execute(key, deadline, transformer);
+
+        List<TransformedImage> named = new ArrayList<>(results.size());
+        for (TransformedImage result : results) {
+            named.add(named(fileName, result));
+        }
+        return named;
+    }
+
+    /**
+     * @return The coalescing counters as a {@link Map}.
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("inFlight", inFlight.size());
+        stats.put("leaders", leaders.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("retried", retried.get());
+        return stats;
+    }
+
+    /**
+     * Runs {@code task} unless an identical one is already running,
+     * in which case this waits for that one's result instead.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T execute(Object key, Deadline deadline, Supplier<T> task) {
+        while (true) {
+            CompletableFuture<Object> flight = new CompletableFuture<>();
+            CompletableFuture<Object> running = inFlight.putIfAbsent(key, flight);
+
+            if (running == null) {
+                leaders.incrementAndGet();
+                T result;
+                try {
+                    result = task.get();
+                } catch (RuntimeException | Error e) {
+                    // Remove the flight before failing it, so the
+                    // callers that retry don't join it again.
+                    inFlight.remove(key, flight);
+                    flight.completeExceptionally(e);
+                    throw e;
+                }
+                inFlight.remove(key, flight);
+                flight.complete(result);
+                return result;
+            }
+
+            coalesced.incrementAndGet();
+            try {
+                return (T) await(running, deadline);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else if (!(cause instanceof Deadline.ExpiredException)) {
+                    throw cause instanceof RuntimeException
+                        ? (RuntimeException) cause
+                        : new IllegalStateException(cause);
+                }
+                // The caller that started the transform ran out of
+                // time, but this one may not have.
+                retried.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits for the result of a running transform until this
+     * request's {@code deadline} passes or is cancelled.
+     *
+     * @throws ExecutionException        If the transform failed.
+     * @throws Deadline.ExpiredException If the deadline passed.
+     */
+    private static Object await(CompletableFuture<Object> flight,
+                                Deadline deadline) throws ExecutionException {
+        try {
+            if (deadline.isNone()) {
+                return flight.get();
+            }
+
+            // Wake up when the transform finishes or the request is
+            // cancelled, whichever comes first.
+            CompletableFuture<Object> either =
+                CompletableFuture.anyOf(flight, deadline.cancellation());
+            Duration remaining = deadline.remaining();
+            try {
+                if (remaining == null) {
+                    either.get();
+                } else {
+                    either.get(remaining.toNanos(), TimeUnit.NANOSECONDS);
+                }
+            } catch (ExecutionException | TimeoutException e) {
+                // The outcome is read below.
+            }
+
+            deadline.check();
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns {@code image} under the caller's {@code fileName}, which
+     * may differ from the name of the request that transformed it.
+     */
+    private static TransformedImage named(String fileName,
+                                          TransformedImage image) {
+        if (Objects.equals(fileName, image.getImageName())) {
+            return image;
+        }
+        return new TransformedImage(fileName,
+                                    image.getTransformName(),
+                                    image.getEncodedBytes());
+    }
+}
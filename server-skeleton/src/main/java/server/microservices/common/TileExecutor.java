@@ -0,0 +1,135 @@
+package server.microservices.common;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class splits an image into bands of rows and runs a {@link
+ * RowBandTask} on each band using a dedicated {@link ForkJoinPool}.
+ * <p>
+ * Every transform in {@link Transforms} computes each output pixel
+ * from the matching input pixel alone, so the bands are independent
+ * and the tiled result is bit-identical to a sequential pass over
+ * the whole image.
+ * <p>
+ * This class is annotated as a Spring {@code @Component}, which
+ * enables it to be auto-wired into the {@link TransformService}.
+ */
+@Component
+public class TileExecutor {
+    /**
+     * Supported ways of running a transform over an image.
+     */
+    public enum Mode {
+        /**
+         * Run the transform on the calling thread in one pass.
+         */
+        SEQUENTIAL,
+
+        /**
+         * Split the image into row bands and run them on the
+         * {@link TileExecutor} fork/join pool.
+         */
+        PARALLEL
+    }
+
+    /**
+     * Number of worker threads in the fork/join pool, where a value
+     * less than 1 uses the number of available processors.
+     */
+    @Value("${transform.parallelism:0}")
+    int parallelism;
+
+    /**
+     * Smallest number of pixels handed to a single fork/join task,
+     * which keeps small images from paying for task overhead.
+     */
+    @Value("${transform.min-tile-pixels:65536}")
+    int minTilePixels;
+
+    /**
+     * The dedicated pool used to run row band tasks, which keeps
+     * pixel work off the common fork/join pool.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * A band task that processes rows {@code [fromRow, toRow)}.
+     */
+    @FunctionalInterface
+    public interface RowBandTask {
+        void apply(int fromRow, int toRow);
+    }
+
+    /**
+     * Creates the fork/join pool once the properties are injected.
+     */
+    @PostConstruct
+    void start() {
+        pool = new ForkJoinPool(parallelism < 1
+                                ? Runtime.getRuntime().availableProcessors()
+                                : parallelism);
+    }
+
+    /**
+     * Shuts down the fork/join pool when the application stops.
+     */
+    @PreDestroy
+    void stop() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Runs {@code task} over all the rows of a {@code width} by
+     * {@code height} image and returns when every band is done.
+     *
+     * @param width  The image width in pixels
+     * @param height The image height in pixels
+     * @param task   The task to run on each row band
+     */
+    public void invoke(int width, int height, RowBandTask task) {
+        // Never make a band smaller than one row.
+        int minRows = Math.max(1, minTilePixels / Math.max(1, width));
+
+        // Small images aren't worth forking.
+        if (height <= minRows) {
+            task.apply(0, height);
+        } else {
+            pool.invoke(new RowBandAction(task, 0, height, minRows));
+        }
+    }
+
+    /**
+     * Recursively halves a range of rows until it is no larger than
+     * the minimum band size and then runs the task on it.
+     */
+    private static class RowBandAction extends RecursiveAction {
+        private final RowBandTask task;
+        private final int fromRow;
+        private final int toRow;
+        private final int minRows;
+
+        RowBandAction(RowBandTask task, int fromRow, int toRow, int minRows) {
+            this.task = task;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.minRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= minRows) {
+                task.apply(fromRow, toRow);
+            } else {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new RowBandAction(task, fromRow, middle, minRows),
+                          new RowBandAction(task, middle, toRow, minRows));
+            }
+        }
+    }
+}
@@ -1,13 +1,28 @@
 package server.microservices.common;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import server.common.BlobStore;
+import server.common.Deadline;
 import server.common.model.TransformedImage;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static server.common.Constants.EndPoint.APPLY_MULTI_TRANSFORM;
 import static server.common.Constants.EndPoint.APPLY_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM_BATCH;
+import static server.common.Constants.EndPoint.METRICS;
+import static server.common.Constants.Headers.DEADLINE;
 
 /**
  * This Spring controller demonstrates how Spring MVC can be used to
@@ -35,17 +50,34 @@ import static server.common.Constants.EndPoint.APPLY_TRANSFORM;
  * {@code @CrossOrigin} annotation marks the annotated method or type
  * as permitting cross origin requests, which is required for Eureka
  * redirection.
+ * <p>
+ * This controller is used when the microservice runs on the default
+ * servlet stack, while {@link ReactiveTransformController} replaces it
+ * when {@code spring.main.web-application-type=reactive}.  Only the
+ * reactive controller stops a transform when its caller disconnects,
+ * since a servlet request is transformed on its own thread, which
+ * isn't told about the disconnect, so here a {@link Deadline} only
+ * expires when its time is up.
  */
 @RestController
 @CrossOrigin("*")
 @ResponseBody
 @EnableDiscoveryClient
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class TransformController {
     /**
      * This auto-wired field connects the {@link TransformController} to
      * the {@link TransformService}.
      */
-    // @@ TODO - you fill in here.
+    @Autowired
+    TransformService service;
+
+    /**
+     * This auto-wired field connects the {@link TransformController} to
+     * the {@link BlobStore} holding images uploaded to the gateway.
+     */
+    @Autowired
+    BlobStore blobStore;
 
     /**
      * Request used by Eureka Control panel.
@@ -63,18 +95,166 @@ public class TransformController {
      * TransformedImage}.
      *
      * @param transform The name of the transformed image
-     * @param image     The contents of the image as a {@link MultipartFile}
+     * @param image     The contents of the image as a {@link MultipartFile},
+     *                  or null if it's sent as a {@code blob}
+     * @param blob      The {@link BlobStore} key of the image, or null
+     *                  if it's sent inline
+     * @param filename  The image file name sent as a form field
+     * @param params    Optional transform parameters, i.e., the three
+     *                  tint fractions for {@code TintTransform} or the
+     *                  20 row-major matrix values for {@code
+     *                  ColorMatrixTransform}
+     * @param deadline  The milliseconds left before the caller gives
+     *                  up, or null if it waits indefinitely
      * @return A {@link Mono} that emits the {@link TransformedImage}
      */
-    // TODO -- you fill in here by adding the appropriate annotations
-    // to create a Spring WebFlux endpoint method.
+    @PostMapping(value = APPLY_TRANSFORM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public Mono<TransformedImage> applyTransform
-        (String transform,
-         MultipartFile image) {
+        (@RequestParam String transform,
+         @RequestPart(required = false) MultipartFile image,
+         @RequestParam(required = false) String blob,
+         @RequestParam(required = false) String filename,
+         @RequestParam(required = false) List<Float> params,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        // Start the deadline when the request arrives.
+        Deadline expiry = Deadline.ofMillis(deadline);
+
         // Return a Mono that emits the TransformedImage.
-        // TODO -- replace return null with the proper code.
-        return null;
+        return Mono
             // Convert the result of calling service.applyTransform()
             // into a Mono that emits the TransformedImage.
+            .fromCallable(() -> service.applyTransform(fileName(image, filename),
+                                                       transform,
+                                                       toBytes(image, blob),
+                                                       toArray(params),
+                                                       expiry));
+    }
+
+    /**
+     * Apply all the given {@code transforms} to the given {@code
+     * image}, which is only decoded once, and return a {@link Flux}
+     * that emits one {@link TransformedImage} per transform.
+     *
+     * @param transforms The names of the transforms to apply
+     * @param image      The contents of the image as a {@link MultipartFile},
+     *                   or null if it's sent as a {@code blob}
+     * @param blob       The {@link BlobStore} key of the image, or null
+     *                   if it's sent inline
+     * @param filename   The image file name sent as a form field
+     * @param deadline   The milliseconds left before the caller gives
+     *                   up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_MULTI_TRANSFORM,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransforms
+        (@RequestParam List<String> transforms,
+         @RequestPart(required = false) MultipartFile image,
+         @RequestParam(required = false) String blob,
+         @RequestParam(required = false) String filename,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        // Start the deadline when the request arrives.
+        Deadline expiry = Deadline.ofMillis(deadline);
+
+        return Mono
+            // Decode once and apply all the transforms.
+            .fromCallable(() -> service.applyTransforms(fileName(image, filename),
+                                                        transforms,
+                                                        toBytes(image, blob),
+                                                        expiry))
+
+            // Emit each transformed image.
+            .flatMapIterable(results -> results);
+    }
+
+    /**
+     * Apply the given {@code transform} to each of the given {@code
+     * images} and return a {@link Flux} that emits one {@link
+     * TransformedImage} per image, tagged by its file name, as soon
+     * as it's done.
+     *
+     * @param transform The name of the transform to apply
+     * @param images    The contents of the images as {@link MultipartFile}
+     *                  parts
+     * @param deadline  The milliseconds left before the caller gives
+     *                  up, or null if it waits indefinitely
+     * @return A {@link Flux} that emits the {@link TransformedImage} objects
+     */
+    @PostMapping(value = APPLY_TRANSFORM_BATCH,
+                 consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Flux<TransformedImage> applyTransformBatch
+        (@RequestParam String transform,
+         @RequestPart("images") List<MultipartFile> images,
+         @RequestHeader(value = DEADLINE, required = false) Long deadline) {
+        // Start the deadline when the request arrives.
+        Deadline expiry = Deadline.ofMillis(deadline);
+
+        return Flux
+            .fromIterable(images)
+
+            // Transform the images one after another.
+            .concatMap(image -> Mono
+                       .fromCallable(() -> service.applyTransform(image.getOriginalFilename(),
+                                                                  transform,
+                                                                  image.getBytes(),
+                                                                  null,
+                                                                  expiry)));
+    }
+
+    /**
+     * Returns the transform service statistics, such as the result
+     * cache hit and miss counts.
+     *
+     * @return A {@link Map} of statistics keyed by name
+     */
+    @GetMapping(METRICS)
+    public Map<String, Object> metrics() {
+        return service.metrics();
+    }
+
+    /**
+     * Returns the bytes of an image sent inline or as a {@link
+     * BlobStore} key, failing with 404 if the blob can't be read on
+     * this host so the gateway sends the image inline instead, or
+     * with 400 if the request has neither.
+     */
+    private byte[] toBytes(MultipartFile image, String blob) throws IOException {
+        if (image != null) {
+            return image.getBytes();
+        } else if (blob == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                                              "Missing image or blob");
+        }
+
+        byte[] bytes = blobStore.get(blob);
+        if (bytes == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+                                              "Image blob not found");
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the file name of an image sent inline or as a {@link
+     * BlobStore} key.
+     */
+    private static String fileName(MultipartFile image, String filename) {
+        return image != null ? image.getOriginalFilename() : filename;
+    }
+
+    /**
+     * Converts a {@link List} of {@link Float} parameters into a
+     * primitive array, or returns null if there are none.
+     */
+    static float[] toArray(List<Float> params) {
+        if (params == null) {
+            return null;
+        }
+        float[] result = new float[params.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = params.get(i);
+        }
+        return result;
     }
 }
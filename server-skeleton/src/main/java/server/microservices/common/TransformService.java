@@ -1,12 +1,21 @@
 package server.microservices.common;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
-import server.common.ImageUtils;
+import server.common.Deadline;
+import server.common.ImageEncoder;
 import server.common.model.TransformedImage;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static server.common.Constants.Service.*;
 
@@ -21,6 +30,12 @@ import static server.common.Constants.Service.*;
  */
 @Service
 public class TransformService {
+    /**
+     * The most pixels transformed between deadline checks when the
+     * transform runs sequentially.
+     */
+    private static final int DEADLINE_BAND_PIXELS = 1 << 18;
+
     /**
      * This auto-wired field connects the {@link TransformService} to
      * the {@link Transforms}.
@@ -28,6 +43,82 @@ public class TransformService {
     @Autowired
     Transforms transforms;
 
+    /**
+     * This auto-wired field connects the {@link TransformService} to
+     * the {@link TileExecutor} used by the parallel execution mode.
+     */
+    @Autowired
+    TileExecutor tileExecutor;
+
+    /**
+     * This auto-wired field connects the {@link TransformService} to
+     * the {@link ImageEncoder} used to encode the transformed images.
+     */
+    @Autowired
+    ImageEncoder imageEncoder = ImageEncoder.IMAGE_IO;
+
+    /**
+     * This auto-wired field connects the {@link TransformService} to
+     * the {@link ResultCache} that lets repeated requests skip the
+     * transform.
+     */
+    @Autowired
+    ResultCache resultCache = new ResultCache();
+
+    /**
+     * This auto-wired field connects the {@link TransformService} to
+     * the {@link SingleFlight} that lets identical concurrent requests
+     * share one transform.
+     */
+    @Autowired
+    SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * This auto-wired field connects the {@link TransformService} to
+     * the {@link DecodedImageCache} that lets requests for the same
+     * input image skip decoding it.
+     */
+    @Autowired
+    DecodedImageCache decodedImages = new DecodedImageCache();
+
+    /**
+     * Selects whether transforms run sequentially on the calling
+     * thread or in parallel row bands on the {@link TileExecutor}.
+     */
+    @Value("${transform.execution:SEQUENTIAL}")
+    TileExecutor.Mode execution = TileExecutor.Mode.SEQUENTIAL;
+
+    /**
+     * If true, transforms work directly on the backing store of
+     * images with a layout supported by {@link Rasters} instead of
+     * copying the pixels out with {@code getRGB()} and back in with
+     * {@code setRGB()}.
+     */
+    @Value("${transform.raster-kernels:false}")
+    boolean rasterKernels;
+
+    /**
+     * If true, the grayscale, sepia, and tint transforms run through
+     * their {@link ColorMatrix} presets instead of {@link Transforms}.
+     */
+    @Value("${transform.color-matrix:false}")
+    boolean colorMatrix;
+
+    /**
+     * The number of requests dropped at each stage because their
+     * {@link Deadline} passed, i.e., the decodes, transforms, and
+     * encodes saved.
+     */
+    private final AtomicLong expiredBeforeDecode = new AtomicLong();
+    private final AtomicLong expiredDuringTransform = new AtomicLong();
+    private final AtomicLong expiredBeforeEncode = new AtomicLong();
+
+    /**
+     * The number of requests dropped because their caller went away,
+     * which are also counted in the stage they were dropped at.
+     */
+    private final AtomicLong cancelledRequests = new AtomicLong();
+
     /**
      * Applies the named transform to the passed byte array image and
      * returns the result as a {@link Mono<TransformedImage>}.
@@ -41,51 +132,561 @@ public class TransformService {
         (String fileName,
          String transform,
          byte[] imageBytes) {
-        // Convert the image bytes into a BufferedImage.
-        BufferedImage bufferedImage =
-            ImageUtils.toBufferedImage(imageBytes);
-
-        // Get BufferedImage pixels.
-        int[] pixels = bufferedImage
-            .getRGB(0, 0,
-                    bufferedImage.getWidth(),
-                    bufferedImage.getHeight(),
-                    null, 0,
-                    bufferedImage.getWidth());
-
-        // Perform the appropriate transformation on the pixels array.
+        return applyTransform(fileName, transform, imageBytes, null);
+    }
+
+    /**
+     * Applies the named transform to the passed byte array image
+     * using the given transform parameters.
+     *
+     * @param fileName   Original image file name.
+     * @param transform  Transform name to apply.
+     * @param imageBytes Image bytes to transform.
+     * @param params     Transform parameters, or null for the defaults,
+     *                   i.e., the three tint fractions for {@code
+     *                   TintTransform} or the 20 matrix values for
+     *                   {@code ColorMatrixTransform}.  A transform
+     *                   chain such as "GrayScaleTransform>TintTransform"
+     *                   is applied in one fused pass and its stages
+     *                   always use their default parameters.
+     * @return The transformed image.
+     */
+    public TransformedImage applyTransform
+        (String fileName,
+         String transform,
+         byte[] imageBytes,
+         float[] params) {
+        return applyTransform(fileName, transform, imageBytes, params,
+                              Deadline.NONE);
+    }
+
+    /**
+     * Applies the named transform to the passed byte array image
+     * using the given transform parameters, unless the request's
+     * {@code deadline} passes first.
+     * <p>
+     * A result missing from the {@link ResultCache} is transformed
+     * outside of it through the {@link SingleFlight}, so an identical
+     * request joins the running transform and still stops at its own
+     * deadline.
+     *
+     * @param fileName   Original image file name.
+     * @param transform  Transform name to apply.
+     * @param imageBytes Image bytes to transform.
+     * @param params     Transform parameters, or null for the defaults.
+     * @param deadline   The request's {@link Deadline}, which is
+     *                   checked before decoding, between row bands,
+     *                   and before encoding.
+     * @return The transformed image.
+     * @throws Deadline.ExpiredException If the deadline passed.
+     */
+    public TransformedImage applyTransform
+        (String fileName,
+         String transform,
+         byte[] imageBytes,
+         float[] params,
+         Deadline deadline) {
+        return resultCache.get(fileName, transform, imageBytes, params,
+                               key -> singleFlight.get(fileName,
+                                                       transform,
+                                                       imageBytes,
+                                                       params,
+                                                       key,
+                                                       deadline,
+                                                       () -> transformImage(fileName,
+                                                                            transform,
+                                                                            imageBytes,
+                                                                            params,
+                                                                            deadline)));
+    }
+
+    /**
+     * Decodes the image bytes, applies the named transform, and
+     * encodes the result.
+     */
+    private TransformedImage transformImage
+        (String fileName,
+         String transform,
+         byte[] imageBytes,
+         float[] params,
+         Deadline deadline) {
+        check(deadline, expiredBeforeDecode);
+
+        // Convert the image bytes into a BufferedImage that can be
+        // transformed in place.
+        BufferedImage bufferedImage = decodedImages.decode(imageBytes);
+
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        boolean hasAlpha = bufferedImage.getColorModel().hasAlpha();
+
+        if (rasterKernels && Rasters.isSupported(bufferedImage)) {
+            // Transform the pixels in place in the image's backing
+            // store, avoiding the getRGB()/setRGB() copies.
+            PixelKernel kernel = kernel(transform, hasAlpha, params);
+            forEachBand(width, height, deadline, (fromRow, toRow) ->
+                        Rasters.apply(bufferedImage, kernel, fromRow, toRow));
+        } else {
+            // Get BufferedImage pixels.
+            int[] pixels = bufferedImage
+                .getRGB(0, 0,
+                        width,
+                        height,
+                        null, 0,
+                        width);
+
+            // Perform the appropriate transformation on the pixels array.
+            if (execution == TileExecutor.Mode.PARALLEL
+                || colorMatrix
+                || deadline.isTimed()) {
+                PixelKernel kernel = kernel(transform, hasAlpha, params);
+                forEachBand(width, height, deadline, (fromRow, toRow) ->
+                            kernel.apply(pixels,
+                                         fromRow * width,
+                                         toRow * width));
+            } else {
+                transform(transform, pixels, hasAlpha, params);
+            }
+
+            // Set the output BufferedImage pixels to the transformed
+            // pixels array.
+            bufferedImage
+                .setRGB(0, 0,
+                        width,
+                        height,
+                        pixels, 0,
+                        width);
+        }
+
+        check(deadline, expiredBeforeEncode);
+
+        // Return the transformed image within a DTO wrapper.
+        return new TransformedImage(fileName,
+                                    transform,
+                                    bufferedImage,
+                                    imageEncoder);
+    }
+
+    /**
+     * Applies each of the named transforms to the passed byte array
+     * image and returns one transformed image per transform.
+     * <p>
+     * The image is decoded and its pixels are read only once.  Each
+     * block of source pixels is copied into every output while it is
+     * still in the cache and the matching transform is applied to it,
+     * so adding transforms doesn't add decodes or source reads.
+     *
+     * @param fileName       Original image file name.
+     * @param transformNames Transform names to apply.
+     * @param imageBytes     Image bytes to transform.
+     * @return A {@link List} of transformed images in the same order
+     *         as {@code transformNames}.
+     */
+    public List<TransformedImage> applyTransforms
+        (String fileName,
+         List<String> transformNames,
+         byte[] imageBytes) {
+        return applyTransforms(fileName, transformNames, imageBytes,
+                               Deadline.NONE);
+    }
+
+    /**
+     * Applies each of the named transforms to the passed byte array
+     * image like {@link #applyTransforms(String, List, byte[])}, unless
+     * the request's {@code deadline} passes first.
+     *
+     * @param fileName       Original image file name.
+     * @param transformNames Transform names to apply.
+     * @param imageBytes     Image bytes to transform.
+     * @param deadline       The request's {@link Deadline}.
+     * @return A {@link List} of transformed images in the same order
+     *         as {@code transformNames}.
+     * @throws Deadline.ExpiredException If the deadline passed.
+     */
+    public List<TransformedImage> applyTransforms
+        (String fileName,
+         List<String> transformNames,
+         byte[] imageBytes,
+         Deadline deadline) {
+        return resultCache.getAll(fileName, transformNames, imageBytes,
+                                  (hash, missed) -> singleFlight.getAll(fileName,
+                                                                        missed,
+                                                                        imageBytes,
+                                                                        hash,
+                                                                        deadline,
+                                                                        () -> transformImages(fileName,
+                                                                                              missed,
+                                                                                              imageBytes,
+                                                                                              deadline)));
+    }
+
+    /**
+     * @return Statistics about the transform service, keyed by name.
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("resultCache", resultCache.stats());
+        metrics.put("decodedImageCache", decodedImages.stats());
+        metrics.put("singleFlight", singleFlight.stats());
+
+        Map<String, Object> expired = new LinkedHashMap<>();
+        expired.put("beforeDecode", expiredBeforeDecode.get());
+        expired.put("duringTransform", expiredDuringTransform.get());
+        expired.put("beforeEncode", expiredBeforeEncode.get());
+        metrics.put("expiredRequests", expired);
+        metrics.put("cancelledRequests", cancelledRequests.get());
+        return metrics;
+    }
+
+    /**
+     * Decodes the image bytes once and applies each of the named
+     * transforms to it.
+     */
+    private List<TransformedImage> transformImages
+        (String fileName,
+         List<String> transformNames,
+         byte[] imageBytes,
+         Deadline deadline) {
+        check(deadline, expiredBeforeDecode);
+
+        // Convert the image bytes into a BufferedImage, which is only
+        // read and so can be shared.
+        BufferedImage source = decodedImages.decodeShared(imageBytes);
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+        boolean hasAlpha = source.getColorModel().hasAlpha();
+
+        // Read the source pixels once for all the transforms.
+        int[] pixels = source.getRGB(0, 0, width, height, null, 0, width);
+
+        int count = transformNames.size();
+        PixelKernel[] kernels = new PixelKernel[count];
+        int[][] outputs = new int[count][];
+        for (int i = 0; i < count; i++) {
+            kernels[i] = kernel(transformNames.get(i), hasAlpha, null);
+            outputs[i] = new int[pixels.length];
+        }
+
+        forEachBand(width, height, deadline, (fromRow, toRow) ->
+                    fanOut(pixels, outputs, kernels,
+                           fromRow * width, toRow * width));
+
+        check(deadline, expiredBeforeEncode);
+
+        // Store each output in an image with the source color model,
+        // just like the single transform path does.
+        List<TransformedImage> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            BufferedImage output = new BufferedImage
+                (source.getColorModel(),
+                 source.getColorModel()
+                     .createCompatibleWritableRaster(width, height),
+                 source.isAlphaPremultiplied(),
+                 null);
+            output.setRGB(0, 0, width, height, outputs[i], 0, width);
+
+            results.add(new TransformedImage(fileName,
+                                             transformNames.get(i),
+                                             output,
+                                             imageEncoder));
+        }
+
+        return results;
+    }
+
+    /**
+     * Copies each cache-sized block of {@code source} pixels in the
+     * range {@code [from, to)} into every output and applies the
+     * matching kernel to the copy.
+     */
+    private static void fanOut(int[] source,
+                               int[][] outputs,
+                               PixelKernel[] kernels,
+                               int from,
+                               int to) {
+        for (int start = from; start < to; start += FusedKernel.BLOCK_PIXELS) {
+            int end = Math.min(start + FusedKernel.BLOCK_PIXELS, to);
+
+            for (int i = 0; i < kernels.length; i++) {
+                System.arraycopy(source, start, outputs[i], start, end - start);
+                kernels[i].apply(outputs[i], start, end);
+            }
+        }
+    }
+
+    /**
+     * Applies the named transform to the entire {@code pixels} array
+     * on the calling thread.
+     *
+     * @param transform The transform name
+     * @param pixels    The ARGB pixels to transform in place
+     * @param hasAlpha  True if the pixels have an alpha channel
+     * @param params    The transform parameters, or null
+     */
+    private void transform(String transform,
+                           int[] pixels,
+                           boolean hasAlpha,
+                           float[] params) {
         switch (transform) {
         case GRAYSCALE_TRANSFORM:
-            transforms.grayScale(pixels,
-                                 bufferedImage.getColorModel().hasAlpha());
+            checkNoParams(transform, params);
+            transforms.grayScale(pixels, hasAlpha);
             break;
         case SEPIA_TRANSFORM:
-            transforms.sepia(pixels,
-                             bufferedImage.getColorModel().hasAlpha());
+            checkNoParams(transform, params);
+            transforms.sepia(pixels, hasAlpha);
             break;
-        case TINT_TRANSFORM:
-            transforms.tint(pixels,
-                            bufferedImage.getColorModel().hasAlpha(),
-                            0.0f, 0.0f, 0.9f);
+        case TINT_TRANSFORM: {
+            float[] tint = tintParams(params);
+            transforms.tint(pixels, hasAlpha, tint[0], tint[1], tint[2]);
             break;
+        }
         default:
-            throw new IllegalStateException("Unsupported transform type: "
-                                            + transform);
+            kernel(transform, hasAlpha, params)
+                .apply(pixels, 0, pixels.length);
         }
+    }
 
-        // Set the output BufferedImage pixels to the transformed
-        // pixels array.
-        bufferedImage
-            .setRGB(0, 0,
-                    bufferedImage.getWidth(),
-                    bufferedImage.getHeight(),
-                    pixels, 0,
-                    bufferedImage.getWidth());
+    /**
+     * Returns a {@link PixelKernel} that applies the named transform
+     * to any range of pixels.
+     *
+     * @param transform The transform name
+     * @param hasAlpha  True if the pixels have an alpha channel
+     * @param params    The transform parameters, or null
+     * @return A {@link PixelKernel} for the named transform
+     */
+    private PixelKernel kernel(String transform,
+                               boolean hasAlpha,
+                               float[] params) {
+        if (transform.contains(CHAIN_SEPARATOR)) {
+            return chainKernel(transform, hasAlpha, params);
+        }
 
-        // Return the transformed image within a DTO wrapper.
+        if (colorMatrix || COLOR_MATRIX_TRANSFORM.equals(transform)) {
+            return matrixFor(transform, params).kernel(hasAlpha);
+        }
 
-        // TODO -- you fill in here, replacing return null with
-        // the appropriate code.
-        return null;
+        switch (transform) {
+        case GRAYSCALE_TRANSFORM:
+            checkNoParams(transform, params);
+            return (pixels, from, to) ->
+                transforms.grayScale(pixels, from, to, hasAlpha);
+        case SEPIA_TRANSFORM:
+            checkNoParams(transform, params);
+            return (pixels, from, to) ->
+                transforms.sepia(pixels, from, to, hasAlpha);
+        case TINT_TRANSFORM: {
+            float[] tint = tintParams(params);
+            return (pixels, from, to) ->
+                transforms.tint(pixels, from, to, hasAlpha,
+                                tint[0], tint[1], tint[2]);
+        }
+        default:
+            throw new InvalidParamsException("Unsupported transform type: "
+                                             + transform);
+        }
+    }
+
+    /**
+     * Returns a {@link FusedKernel} that applies each stage of a
+     * transform chain in one pass over the pixels.
+     *
+     * @param chain    The transform names separated by {@code ">"}
+     * @param hasAlpha True if the pixels have an alpha channel
+     * @param params   Must be null since chain stages use their
+     *                 default parameters
+     * @return A {@link FusedKernel} for the chain
+     */
+    private PixelKernel chainKernel(String chain,
+                                    boolean hasAlpha,
+                                    float[] params) {
+        if (params != null) {
+            throw new InvalidParamsException
+                ("Transform chains do not take parameters: " + chain);
+        }
+
+        List<PixelKernel> stages = new ArrayList<>();
+        // Keep trailing empty strings so "Sepia>" is rejected too.
+        for (String stage : chain.split(CHAIN_SEPARATOR, -1)) {
+            if (stage.isEmpty()) {
+                throw new InvalidParamsException
+                    ("Empty stage in transform chain: " + chain);
+            }
+            stages.add(kernel(stage, hasAlpha, null));
+        }
+
+        return new FusedKernel(stages);
+    }
+
+    /**
+     * Returns the {@link ColorMatrix} for the named transform.
+     *
+     * @param transform The transform name
+     * @param params    The transform parameters, or null
+     * @return The matching {@link ColorMatrix}
+     */
+    private static ColorMatrix matrixFor(String transform, float[] params) {
+        switch (transform) {
+        case GRAYSCALE_TRANSFORM:
+            checkNoParams(transform, params);
+            return ColorMatrix.GRAYSCALE;
+        case SEPIA_TRANSFORM:
+            checkNoParams(transform, params);
+            return ColorMatrix.SEPIA;
+        case TINT_TRANSFORM: {
+            float[] tint = tintParams(params);
+            return ColorMatrix.tint(tint[0], tint[1], tint[2]);
+        }
+        case COLOR_MATRIX_TRANSFORM:
+            if (params == null) {
+                throw new InvalidParamsException
+                    (transform + " requires matrix parameters");
+            }
+            try {
+                return ColorMatrix.of(params);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidParamsException(e.getMessage());
+            }
+        default:
+            throw new InvalidParamsException("Unsupported transform type: "
+                                             + transform);
+        }
+    }
+
+    /**
+     * Returns the red, green, and blue tint fractions from {@code
+     * params}, or the default tint if {@code params} is null, after
+     * checking that each is between 0 and 1.
+     */
+    private static float[] tintParams(float[] params) {
+        if (params == null) {
+            return new float[] {0.0f, 0.0f, 0.9f};
+        } else if (params.length != 3) {
+            throw new InvalidParamsException
+                (TINT_TRANSFORM + " requires 3 parameters but got "
+                 + params.length);
+        }
+        for (float fraction : params) {
+            if (!(fraction >= 0.0f && fraction <= 1.0f)) {
+                throw new InvalidParamsException
+                    (TINT_TRANSFORM + " fractions must be between 0 and 1 but got "
+                     + fraction);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Ensures that no parameters were passed to a transform that
+     * doesn't take any.
+     */
+    private static void checkNoParams(String transform, float[] params) {
+        if (params != null && params.length > 0) {
+            throw new InvalidParamsException
+                (transform + " does not take parameters");
+        }
+    }
+
+    /**
+     * Drops the request if its {@code deadline} has passed or was
+     * cancelled, counting it in the {@code expired} count of the
+     * current stage.
+     */
+    private void check(Deadline deadline, AtomicLong expired) {
+        if (deadline.isExpired()) {
+            count(deadline, expired);
+            throw new Deadline.ExpiredException();
+        }
+    }
+
+    /**
+     * Counts a request dropped at the stage of {@code expired}, and
+     * as cancelled if that's why it was dropped.
+     */
+    private void count(Deadline deadline, AtomicLong expired) {
+        expired.incrementAndGet();
+        if (deadline.isCancelled()) {
+            cancelledRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs {@code task} over all rows of a {@code width} by {@code
+     * height} image, either in one call on the calling thread or in
+     * parallel row bands, depending on the execution mode.  If the
+     * request has a {@code deadline}, which may be cancelled, it's
+     * checked before each band.  A sequential pass is only split into
+     * bands so it can stop early if the deadline has a time limit,
+     * while one that can only be cancelled is checked once before the
+     * pass, so it runs as fast as a request without a deadline.
+     *
+     * @param width    The image width in pixels
+     * @param height   The image height in pixels
+     * @param deadline The request's {@link Deadline}
+     * @param task     The task to run on each row band
+     */
+    private void forEachBand(int width,
+                             int height,
+                             Deadline deadline,
+                             TileExecutor.RowBandTask task) {
+        if (deadline.isNone()) {
+            forEachBand(width, height, task);
+            return;
+        }
+
+        TileExecutor.RowBandTask checked = (fromRow, toRow) -> {
+            deadline.check();
+            task.apply(fromRow, toRow);
+        };
+
+        try {
+            if (execution == TileExecutor.Mode.PARALLEL) {
+                tileExecutor.invoke(width, height, checked);
+            } else if (!deadline.isTimed()) {
+                checked.apply(0, height);
+            } else {
+                int rows = Math.max(1, DEADLINE_BAND_PIXELS / Math.max(1, width));
+                for (int fromRow = 0; fromRow < height; fromRow += rows) {
+                    checked.apply(fromRow, Math.min(height, fromRow + rows));
+                }
+            }
+        } catch (Deadline.ExpiredException e) {
+            count(deadline, expiredDuringTransform);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs {@code task} over all rows of a {@code width} by {@code
+     * height} image, either in one call on the calling thread or in
+     * parallel row bands, depending on the execution mode.
+     *
+     * @param width  The image width in pixels
+     * @param height The image height in pixels
+     * @param task   The task to run on each row band
+     */
+    private void forEachBand(int width,
+                             int height,
+                             TileExecutor.RowBandTask task) {
+        if (execution == TileExecutor.Mode.PARALLEL) {
+            tileExecutor.invoke(width, height, task);
+        } else {
+            task.apply(0, height);
+        }
+    }
+
+    /**
+     * Signals that a request passed transform parameters that are
+     * missing, of the wrong count, or out of range, an unknown
+     * transform name, or a transform chain with an empty or unknown
+     * stage, which is answered with 400 since retrying it can't
+     * succeed.
+     */
+    public static class InvalidParamsException extends ResponseStatusException {
+        public InvalidParamsException(String reason) {
+            super(HttpStatus.BAD_REQUEST, reason);
+        }
     }
 }
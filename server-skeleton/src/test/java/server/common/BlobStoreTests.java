@@ -0,0 +1,117 @@
+package server.common;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static server.main.ImageFactory.randomImageBytes;
+
+/**
+ * These tests ensure that the {@link BlobStore} shares images by
+ * content and deletes them when the last reference is released.
+ */
+public class BlobStoreTests {
+    @TempDir
+    Path dir;
+
+    private BlobStore store;
+
+    @BeforeEach
+    void beforeEach() {
+        store = new BlobStore();
+        store.dir = dir.resolve("blobs").toString();
+        store.start();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        byte[] imageBytes = randomImageBytes();
+
+        String key = store.put(imageBytes);
+
+        assertThat(key).hasSize(64);
+        assertThat(store.get(key)).isEqualTo(imageBytes);
+    }
+
+    @Test
+    public void testReleaseDeletesLastReference() {
+        byte[] imageBytes = randomImageBytes();
+
+        String key = store.put(imageBytes);
+        assertThat(store.put(imageBytes.clone())).isEqualTo(key);
+
+        store.release(key);
+        assertThat(store.get(key)).isEqualTo(imageBytes);
+
+        store.release(key);
+        assertThat(store.get(key)).isNull();
+    }
+
+    @Test
+    public void testConcurrentReferencesAlwaysSeeTheBlob() throws Exception {
+        byte[] imageBytes = randomImageBytes();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(() -> {
+                    String key = store.put(imageBytes);
+                    try {
+                        return Arrays.equals(store.get(key), imageBytes);
+                    } finally {
+                        store.release(key);
+                    }
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS)).isTrue();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The last release deleted the blob.
+        assertThat(store.get(BlobStore.key(imageBytes))).isNull();
+    }
+
+    @Test
+    public void testPutMovesFile() throws IOException {
+        byte[] imageBytes = randomImageBytes();
+        Path file = Files.write(dir.resolve("upload"), imageBytes);
+
+        String key = store.put(file);
+
+        assertThat(file).doesNotExist();
+        assertThat(key).isEqualTo(store.put(imageBytes));
+        assertThat(store.get(key)).isEqualTo(imageBytes);
+    }
+
+    @Test
+    public void testInvalidKeysAreNotRead() {
+        assertThat(store.get("../blobs")).isNull();
+        assertThat(store.get(null)).isNull();
+    }
+
+    @Test
+    public void testDisabledStore() {
+        BlobStore disabled = new BlobStore();
+        disabled.start();
+
+        assertThat(disabled.isEnabled()).isFalse();
+        assertThat(disabled.put(randomImageBytes())).isNull();
+    }
+}
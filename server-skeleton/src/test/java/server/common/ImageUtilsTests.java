@@ -0,0 +1,91 @@
+package server.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * These tests ensure that {@link ImageUtils#reduceColors} picks the
+ * smallest image type that still holds the original pixels.
+ */
+public class ImageUtilsTests {
+    private static final int WIDTH = 123;
+    private static final int HEIGHT = 77;
+
+    @Test
+    public void testOpaqueGrayImageBecomesGray() {
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_ARGB,
+                                          (random, v) -> 0xFF000000 | v * 0x010101);
+
+        BufferedImage reduced = ImageUtils.reduceColors(image);
+
+        assertThat(reduced.getType()).isEqualTo(BufferedImage.TYPE_BYTE_GRAY);
+        // Compare the raw gray levels since getRGB() gamma corrects them.
+        int[] pixels = image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        int[] levels = reduced.getRaster()
+                .getSamples(0, 0, WIDTH, HEIGHT, 0, (int[]) null);
+        for (int i = 0; i < pixels.length; i++) {
+            assertThat(levels[i]).isEqualTo(pixels[i] & 0xFF);
+        }
+    }
+
+    @Test
+    public void testFewColorsBecomePalette() {
+        BufferedImage image = createImage(BufferedImage.TYPE_3BYTE_BGR,
+                                          (random, v) -> 0xFF000000
+                                                  | Math.min(255, v + 40) << 16
+                                                  | v << 8
+                                                  | Math.min(255, v + 20));
+
+        BufferedImage reduced = ImageUtils.reduceColors(image);
+
+        assertThat(reduced.getType()).isEqualTo(BufferedImage.TYPE_BYTE_INDEXED);
+        assertThat(pixels(reduced)).isEqualTo(pixels(image));
+        assertThat(ImageUtils.toBufferedImage(ImageUtils.toByteArray(reduced, "png"))
+                           .getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH))
+                .isEqualTo(pixels(image));
+    }
+
+    @Test
+    public void testTransparentPaletteKeepsAlpha() {
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_ARGB,
+                                          (random, v) -> (v & 1) << 31 >> 7 | v * 0x010101);
+
+        BufferedImage reduced = ImageUtils.reduceColors(image);
+
+        assertThat(reduced.getType()).isEqualTo(BufferedImage.TYPE_BYTE_INDEXED);
+        assertThat(pixels(reduced)).isEqualTo(pixels(image));
+    }
+
+    @Test
+    public void testManyColorsAreUnchanged() {
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_RGB,
+                                          (random, v) -> random.nextInt());
+
+        assertThat(ImageUtils.reduceColors(image)).isSameAs(image);
+    }
+
+    private int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+    }
+
+    private interface PixelSource {
+        int pixel(Random random, int value);
+    }
+
+    private BufferedImage createImage(int type, PixelSource source) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        Random random = new Random(type);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, source.pixel(random, (x * 7 + y * 3) & 0xFF));
+            }
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,77 @@
+package server.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * These tests ensure that {@link ParallelPngEncoder} writes PNG images
+ * that {@code ImageIO} decodes to the original pixels.
+ */
+public class ParallelPngEncoderTests {
+    private static final int WIDTH = 317;
+    private static final int HEIGHT = 241;
+
+    /**
+     * Small chunks so every image is deflated as several chunks.
+     */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    @Test
+    public void testRgbImageRoundTrips() {
+        for (ParallelPngEncoder.Filter filter : ParallelPngEncoder.Filter.values()) {
+            assertRoundTrips(BufferedImage.TYPE_3BYTE_BGR, filter, 6);
+        }
+    }
+
+    @Test
+    public void testArgbImageRoundTrips() {
+        for (ParallelPngEncoder.Filter filter : ParallelPngEncoder.Filter.values()) {
+            assertRoundTrips(BufferedImage.TYPE_INT_ARGB, filter, 6);
+        }
+    }
+
+    @Test
+    public void testAllCompressionLevelsRoundTrip() {
+        for (int level = 0; level <= 9; level++) {
+            assertRoundTrips(BufferedImage.TYPE_4BYTE_ABGR,
+                             ParallelPngEncoder.Filter.ADAPTIVE,
+                             level);
+        }
+    }
+
+    private void assertRoundTrips(int type,
+                                  ParallelPngEncoder.Filter filter,
+                                  int level) {
+        BufferedImage image = createImage(type);
+
+        try (ParallelPngEncoder encoder =
+                     new ParallelPngEncoder(4, level, filter, CHUNK_SIZE)) {
+            BufferedImage decoded =
+                    ImageUtils.toBufferedImage(encoder.encode(image));
+
+            assertThat(decoded.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH))
+                    .isEqualTo(image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+        }
+    }
+
+    private BufferedImage createImage(int type) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        Random random = new Random(type);
+
+        // Mix smooth gradients with noise so every filter gets used.
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = random.nextInt(8) == 0
+                        ? random.nextInt()
+                        : 0xFF000000 | (x & 0xFF) << 16 | (y & 0xFF) << 8 | (x + y) & 0xFF;
+                image.setRGB(x, y, pixel);
+            }
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,121 @@
+package server.common;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import server.common.model.TransformedImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static server.main.ImageFactory.randomTransformedImages;
+
+/**
+ * These tests ensure that {@link TransformedImageFramesConverter}
+ * writes raw image bytes that read back as the same images.
+ */
+public class TransformedImageFramesConverterTests {
+    private final TransformedImageFramesConverter converter =
+            new TransformedImageFramesConverter();
+
+    @Test
+    public void testListRoundTrips() throws IOException {
+        List<TransformedImage> expected = randomTransformedImages(3);
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+
+        converter.write(expected, TransformedImageFramesConverter.MEDIA_TYPE, output);
+
+        assertThat(output.getHeaders().getContentType())
+                .isEqualTo(TransformedImageFramesConverter.MEDIA_TYPE);
+        assertThat(converter.read(List.class,
+                                  new MockHttpInputMessage(output.getBodyAsBytes())))
+                .isEqualTo(expected);
+    }
+
+    @Test
+    public void testMissingImagesRoundTrip() throws IOException {
+        List<TransformedImage> expected = randomTransformedImages(1);
+        expected.add(TransformedImage.missing("foobar.png",
+                                              "SepiaTransform",
+                                              TransformedImage.TIMED_OUT));
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+
+        converter.write(expected, TransformedImageFramesConverter.MEDIA_TYPE, output);
+
+        assertThat(converter.read(List.class,
+                                  new MockHttpInputMessage(output.getBodyAsBytes())))
+                .isEqualTo(expected);
+    }
+
+    @Test
+    public void testNegativeLengthsOtherThanMissingAreRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("foobar.png");
+        out.writeUTF("SepiaTransform");
+        out.writeInt(-2);
+
+        assertThatThrownBy(() -> converter.read(List.class,
+                                                new MockHttpInputMessage(bytes.toByteArray())))
+                .isInstanceOf(HttpMessageNotReadableException.class);
+    }
+
+    @Test
+    public void testFramesAreSmallerThanBase64() throws IOException {
+        List<TransformedImage> images = randomTransformedImages(3);
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+
+        converter.write(images, TransformedImageFramesConverter.MEDIA_TYPE, output);
+
+        int encodedLength = images.stream()
+                .mapToInt(image -> image.getEncodedBytes().length())
+                .sum();
+        assertThat(output.getBodyAsBytes().length).isLessThan(encodedLength);
+    }
+
+    @Test
+    public void testOnlyWritesTransformedImages() {
+        assertThat(converter.canWrite(TransformedImage.class,
+                                      TransformedImageFramesConverter.MEDIA_TYPE))
+                .isTrue();
+        assertThat(converter.canWrite(String.class,
+                                      TransformedImageFramesConverter.MEDIA_TYPE))
+                .isFalse();
+    }
+
+    @Test
+    public void testOnlyClaimsCollectionsOfTransformedImages() {
+        Type images = ResolvableType
+                .forClassWithGenerics(List.class, TransformedImage.class)
+                .getType();
+        Type strings = ResolvableType
+                .forClassWithGenerics(List.class, String.class)
+                .getType();
+
+        assertThat(converter.canWrite(images, List.class,
+                                      TransformedImageFramesConverter.MEDIA_TYPE))
+                .isTrue();
+        assertThat(converter.canRead(images, null,
+                                     TransformedImageFramesConverter.MEDIA_TYPE))
+                .isTrue();
+        assertThat(converter.canWrite(strings, List.class,
+                                      TransformedImageFramesConverter.MEDIA_TYPE))
+                .isFalse();
+        assertThat(converter.canRead(strings, null,
+                                     TransformedImageFramesConverter.MEDIA_TYPE))
+                .isFalse();
+
+        // A raw collection's elements aren't known.
+        assertThat(converter.canWrite(ArrayList.class,
+                                      TransformedImageFramesConverter.MEDIA_TYPE))
+                .isFalse();
+    }
+}
@@ -0,0 +1,94 @@
+package server.main;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * These tests ensure that the {@link ConcurrencyLimiter} sheds calls
+ * over the limit and adapts the limit to latency.
+ */
+public class ConcurrencyLimiterTests {
+    private static final long MILLIS = Duration.ofMillis(1).toNanos();
+
+    private ConcurrencyLimiter limiter;
+
+    @BeforeEach
+    void beforeEach() {
+        limiter = new ConcurrencyLimiter();
+        limiter.enabled = true;
+        limiter.initialLimit = 2;
+    }
+
+    @Test
+    public void testCallsOverLimitAreRejected() {
+        Disposable first = limiter.limit("sepiatransform", Flux.never()).subscribe();
+        limiter.limit("sepiatransform", Flux.never()).subscribe();
+
+        StepVerifier.create(limiter.limit("sepiatransform", Flux.just("call")))
+            .expectErrorSatisfies(e -> {
+                    assertThat(e).isInstanceOf(ConcurrencyLimiter.OverloadedException.class);
+                    ConcurrencyLimiter.OverloadedException overloaded =
+                        (ConcurrencyLimiter.OverloadedException) e;
+                    assertThat(overloaded.getStatus())
+                        .isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+                    assertThat(overloaded.getResponseHeaders()
+                               .getFirst(HttpHeaders.RETRY_AFTER))
+                        .isEqualTo("1");
+                })
+            .verify();
+
+        // Other microservices have their own limits.
+        StepVerifier.create(limiter.limit("tinttransform", Flux.just("call")))
+            .expectNext("call")
+            .verifyComplete();
+
+        // Cancelling a call frees its place.
+        first.dispose();
+        StepVerifier.create(limiter.limit("sepiatransform", Flux.just("call")))
+            .expectNext("call")
+            .verifyComplete();
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsLow() {
+        ConcurrencyLimiter.Limit limit = limiter.new Limit(2);
+
+        // Keep the whole limit in use.
+        for (int round = 0; round < 10; round++) {
+            int calls = limit.limit();
+            for (int i = 0; i < calls; i++) {
+                assertThat(limit.tryAcquire()).isTrue();
+            }
+            for (int i = 0; i < calls; i++) {
+                limit.release(10 * MILLIS, false);
+            }
+        }
+
+        assertThat(limit.limit()).isGreaterThan(2);
+    }
+
+    @Test
+    public void testLimitShrinksWhenLatencyRises() {
+        ConcurrencyLimiter.Limit limit = limiter.new Limit(10);
+        for (int i = 0; i < 10; i++) {
+            limit.tryAcquire();
+        }
+
+        limit.release(10 * MILLIS, false);
+        int before = limit.limit();
+
+        // Calls queue behind each other and take far longer.
+        limit.release(100 * MILLIS, false);
+
+        assertThat(limit.limit()).isLessThan(before);
+    }
+}
@@ -0,0 +1,104 @@
+package server.main;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.discovery.event.HeartbeatEvent;
+import server.common.Constants.Metadata;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * These tests ensure that the {@link DiscoveryCache} only queries the
+ * {@link DiscoveryClient} when the registry changes.
+ */
+public class DiscoveryCacheTests {
+    private DiscoveryClient discoveryClient;
+    private DiscoveryCache cache;
+
+    @BeforeEach
+    void beforeEach() {
+        discoveryClient = mock(DiscoveryClient.class);
+        cache = new DiscoveryCache();
+        cache.discoveryClient = discoveryClient;
+    }
+
+    @Test
+    public void testReadsUseSnapshot() {
+        ServiceInstance instance = new DefaultServiceInstance
+            ("sepia-1", "SEPIATRANSFORM", "localhost", 8080, false);
+
+        when(discoveryClient.getServices())
+            .thenReturn(List.of("sepiatransform"));
+        when(discoveryClient.getInstances("sepiatransform"))
+            .thenReturn(List.of(instance));
+
+        cache.start();
+
+        assertThat(cache.services()).containsExactly("sepiatransform");
+        assertThat(cache.instances("SepiaTransform")).containsExactly(instance);
+        assertThat(cache.instances("TintTransform")).isEmpty();
+
+        // Reads never query the registry again.
+        verify(discoveryClient, times(1)).getServices();
+    }
+
+    @Test
+    public void testHeartbeatRefreshesOnChange() {
+        when(discoveryClient.getServices())
+            .thenReturn(List.of("sepiatransform"));
+
+        cache.start();
+
+        when(discoveryClient.getServices())
+            .thenReturn(List.of("sepiatransform", "tinttransform"));
+
+        cache.onHeartbeat(new HeartbeatEvent(this, 1L));
+        cache.onHeartbeat(new HeartbeatEvent(this, 1L));
+
+        assertThat(cache.services())
+            .containsExactlyInAnyOrder("sepiatransform", "tinttransform");
+        verify(discoveryClient, times(2)).getServices();
+    }
+
+    @Test
+    public void testFailedRefreshKeepsSnapshot() {
+        when(discoveryClient.getServices())
+            .thenReturn(List.of("sepiatransform"));
+
+        cache.start();
+
+        when(discoveryClient.getServices())
+            .thenThrow(new IllegalStateException("registry unavailable"));
+
+        cache.onHeartbeat(new HeartbeatEvent(this, 2L));
+
+        assertThat(cache.services()).containsExactly("sepiatransform");
+    }
+
+    @Test
+    public void testTransformsAreThoseEveryInstanceApplies() {
+        when(discoveryClient.getServices())
+            .thenReturn(List.of("sepiatransform"));
+        when(discoveryClient.getInstances("sepiatransform"))
+            .thenReturn(List.of(
+                new DefaultServiceInstance
+                    ("sepia-1", "SEPIATRANSFORM", "localhost", 8080, false,
+                     Map.of(Metadata.TRANSFORMS, "GrayScaleTransform, TintTransform")),
+                new DefaultServiceInstance
+                    ("sepia-2", "SEPIATRANSFORM", "localhost", 8081, false,
+                     Map.of(Metadata.TRANSFORMS, "TintTransform"))));
+
+        cache.start();
+
+        assertThat(cache.transforms("SepiaTransform"))
+            .containsExactlyInAnyOrder("sepiatransform", "tinttransform");
+        assertThat(cache.transforms("TintTransform")).isEmpty();
+    }
+}
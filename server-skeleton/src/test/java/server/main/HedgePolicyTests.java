@@ -0,0 +1,96 @@
+package server.main;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * These tests ensure that the {@link HedgePolicy} only duplicates slow
+ * calls and stays within its budget.
+ */
+public class HedgePolicyTests {
+    private HedgePolicy policy;
+
+    @BeforeEach
+    void beforeEach() {
+        policy = new HedgePolicy();
+        policy.enabled = true;
+        policy.maxDelay = Duration.ofMillis(20);
+    }
+
+    @Test
+    public void testSlowCallIsHedged() {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Flux<String> call = Flux.<String>never()
+            .doOnCancel(() -> cancelled.set(true));
+
+        StepVerifier.create(policy.hedge("sepiatransform",
+                                         call,
+                                         () -> Flux.just("hedge")))
+            .expectNext("hedge")
+            .verifyComplete();
+
+        assertThat(cancelled).isTrue();
+        assertThat(policy.metrics())
+            .containsEntry("hedges", 1L)
+            .containsEntry("hedgeWins", 1L);
+    }
+
+    @Test
+    public void testFastCallIsNotHedged() {
+        AtomicInteger hedges = new AtomicInteger();
+
+        StepVerifier.create(policy.hedge("sepiatransform",
+                                         Flux.just("call"),
+                                         () -> {
+                                             hedges.incrementAndGet();
+                                             return Flux.just("hedge");
+                                         }))
+            .expectNext("call")
+            .verifyComplete();
+
+        assertThat(hedges).hasValue(0);
+    }
+
+    @Test
+    public void testHedgesStayWithinBudget() {
+        policy.budget = 0;
+
+        for (int i = 0; i < 15; i++) {
+            StepVerifier.create(policy.hedge("sepiatransform",
+                                             Mono.delay(Duration.ofMillis(200))
+                                             .thenReturn("call")
+                                             .flux(),
+                                             () -> Flux.just("hedge")))
+                .expectNextCount(1)
+                .verifyComplete();
+        }
+
+        // Only the saved up burst of hedges is spent.
+        assertThat(policy.metrics())
+            .containsEntry("hedges", 10L)
+            .containsEntry("overBudget", 5L);
+    }
+
+    @Test
+    public void testDelayIsRecentLatencyPercentile() {
+        policy.maxDelay = Duration.ofSeconds(1);
+        HedgePolicy.LatencyWindow window = new HedgePolicy.LatencyWindow();
+
+        assertThat(policy.delay(window)).isEqualTo(policy.maxDelay);
+
+        for (int i = 1; i <= 100; i++) {
+            window.record(Duration.ofMillis(i).toNanos());
+        }
+
+        assertThat(policy.delay(window)).isEqualTo(Duration.ofMillis(95));
+    }
+}
@@ -0,0 +1,230 @@
+package server.main;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.DefaultRequest;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.RequestData;
+import org.springframework.cloud.client.loadbalancer.RequestDataContext;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.client.loadbalancer.ResponseData;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.LinkedMultiValueMap;
+import server.common.Constants.Headers;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * These tests ensure that the {@link LatencyAwareLoadBalancer} avoids
+ * slow and failing instances and routes keys consistently.
+ */
+public class LatencyAwareLoadBalancerTests {
+    private final ServiceInstance fast = new DefaultServiceInstance
+        ("sepia-1", "sepiatransform", "localhost", 8081, false);
+    private final ServiceInstance slow = new DefaultServiceInstance
+        ("sepia-2", "sepiatransform", "localhost", 8082, false);
+
+    private DiscoveryCache discoveryCache;
+    private LoadBalancerStats stats;
+
+    @BeforeEach
+    void beforeEach() {
+        DiscoveryClient discoveryClient = mock(DiscoveryClient.class);
+        when(discoveryClient.getServices())
+            .thenReturn(List.of("sepiatransform", "tinttransform"));
+        when(discoveryClient.getInstances("sepiatransform"))
+            .thenReturn(List.of(fast, slow));
+
+        discoveryCache = new DiscoveryCache();
+        discoveryCache.discoveryClient = discoveryClient;
+        stats = new LoadBalancerStats();
+    }
+
+    @Test
+    public void testRoundRobinAlternates() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.ROUND_ROBIN);
+
+        ServiceInstance first = choose(balancer);
+        ServiceInstance second = choose(balancer);
+
+        assertThat(second).isNotEqualTo(first);
+        assertThat(choose(balancer)).isEqualTo(first);
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesAvoidsSlowInstance() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+
+        stats.get(fast).record(1_000_000, stats.decay.toNanos());
+        stats.get(slow).record(100_000_000, stats.decay.toNanos());
+
+        // With two instances both are always compared.
+        for (int i = 0; i < 10; i++) {
+            assertThat(choose(balancer)).isEqualTo(fast);
+        }
+        assertThat(stats.get(fast).picks.get()).isEqualTo(10);
+    }
+
+    @Test
+    public void testLeastLoadedCountsOutstandingRequests() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.LEAST_LOADED);
+
+        stats.get(fast).record(10_000_000, stats.decay.toNanos());
+        stats.get(slow).record(20_000_000, stats.decay.toNanos());
+        stats.get(fast).outstanding.set(3);
+
+        assertThat(choose(balancer)).isEqualTo(slow);
+    }
+
+    @Test
+    public void testFailuresArePenalized() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.LEAST_LOADED);
+
+        stats.get(slow).record(10_000_000, stats.decay.toNanos());
+
+        Request<RequestDataContext> request = new DefaultRequest<>();
+        Response<ServiceInstance> response = balancer.choose(List.of(fast), null);
+        stats.onStartRequest(request, response);
+        stats.onComplete(new CompletionContext<ResponseData, ServiceInstance,
+                         RequestDataContext>(CompletionContext.Status.FAILED,
+                                             new IllegalStateException(),
+                                             request,
+                                             response));
+
+        assertThat(stats.get(fast).failures.get()).isEqualTo(1);
+        assertThat(stats.get(fast).outstanding()).isZero();
+        assertThat(stats.get(fast).ewmaNanos())
+            .isGreaterThan(stats.get(slow).ewmaNanos());
+        assertThat(choose(balancer)).isEqualTo(slow);
+    }
+
+    @Test
+    public void testConsistentHashIsSticky() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.CONSISTENT_HASH);
+
+        Request<RequestDataContext> request =
+            request(Headers.ROUTING_KEY, "image-1");
+
+        ServiceInstance owner = balancer.choose(request).block().getServer();
+        for (int i = 0; i < 10; i++) {
+            assertThat(balancer.choose(request).block().getServer())
+                .isEqualTo(owner);
+        }
+        assertThat(stats.hashPicks.get()).isEqualTo(11);
+        assertThat(stats.hashSpills.get()).isZero();
+    }
+
+    @Test
+    public void testConsistentHashSpillsFromOverloadedInstance() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.CONSISTENT_HASH);
+        List<ServiceInstance> instances = List.of(fast, slow);
+
+        ServiceInstance owner = balancer.choose(instances, "image-1").getServer();
+        stats.get(owner).outstanding.set(4);
+
+        assertThat(balancer.choose(instances, "image-1").getServer())
+            .isNotEqualTo(owner);
+        assertThat(stats.hashSpills.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testHashRingIsOnlyRebuiltWhenInstancesChange() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.CONSISTENT_HASH);
+
+        ServiceInstance owner =
+            balancer.choose(List.of(fast, slow), "image-1").getServer();
+        long[] points = balancer.ring.points;
+
+        // A discovery refresh returns a new list of the same instances.
+        ServiceInstance fastCopy = new DefaultServiceInstance
+            ("sepia-1", "sepiatransform", "localhost", 8081, false);
+        ServiceInstance slowCopy = new DefaultServiceInstance
+            ("sepia-2", "sepiatransform", "localhost", 8082, false);
+
+        assertThat(balancer.choose(List.of(fastCopy, slowCopy), "image-1")
+                   .getServer())
+            .isSameAs(owner == fast ? fastCopy : slowCopy);
+        assertThat(balancer.ring.points).isSameAs(points);
+
+        // A new instance moves some points.
+        ServiceInstance added = new DefaultServiceInstance
+            ("sepia-3", "sepiatransform", "localhost", 8083, false);
+        balancer.choose(List.of(fastCopy, slowCopy, added), "image-1");
+        assertThat(balancer.ring.points).isNotSameAs(points);
+    }
+
+    @Test
+    public void testHedgeAvoidsInstanceOfHedgedCall() {
+        LatencyAwareLoadBalancer balancer =
+            balancer(LatencyAwareLoadBalancer.Strategy.LEAST_LOADED);
+
+        // The slow instance looks cheaper, but it holds the call being
+        // hedged.
+        stats.get(fast).record(20_000_000, stats.decay.toNanos());
+        stats.get(slow).record(10_000_000, stats.decay.toNanos());
+
+        Request<RequestDataContext> call = request(Headers.REQUEST_ID, "1");
+        stats.onStartRequest(call, balancer.choose(List.of(slow), null));
+
+        assertThat(balancer.choose(request(Headers.HEDGE_OF, "1"))
+                   .block().getServer())
+            .isEqualTo(fast);
+
+        stats.cancel("1");
+        assertThat(stats.get(slow).outstanding()).isZero();
+        assertThat(stats.sentTo("1")).isNull();
+    }
+
+    @Test
+    public void testNoInstances() {
+        LatencyAwareLoadBalancer balancer = new LatencyAwareLoadBalancer
+            ("TintTransform",
+             discoveryCache,
+             stats,
+             LatencyAwareLoadBalancer.Strategy.POWER_OF_TWO_CHOICES);
+
+        assertThat(balancer.choose(new DefaultRequest<>()).block().hasServer())
+            .isFalse();
+    }
+
+    private LatencyAwareLoadBalancer balancer
+        (LatencyAwareLoadBalancer.Strategy strategy) {
+        return new LatencyAwareLoadBalancer("SepiaTransform",
+                                            discoveryCache,
+                                            stats,
+                                            strategy);
+    }
+
+    private Request<RequestDataContext> request(String header, String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(header, value);
+        return new DefaultRequest<>
+            (new RequestDataContext(new RequestData(HttpMethod.POST,
+                                                    URI.create("http://sepiatransform/"),
+                                                    headers,
+                                                    new LinkedMultiValueMap<>(),
+                                                    Map.of())));
+    }
+
+    private ServiceInstance choose(LatencyAwareLoadBalancer balancer) {
+        return balancer.choose(new DefaultRequest<>()).block().getServer();
+    }
+}
@@ -1,10 +1,15 @@
 package server.main;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.test.web.reactive.server.WebTestClient;
@@ -12,12 +17,17 @@ import org.springframework.web.reactive.function.BodyInserters;
 import reactor.core.publisher.Flux;
 import server.common.model.TransformedImage;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 import static org.mockito.Mockito.*;
 import static server.common.Constants.EndPoint.APPLY_TRANSFORMS;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS_BATCH;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS_STREAM;
 import static server.main.ImageFactory.randomImageBytes;
 import static server.main.ImageFactory.randomTransformedImages;
 
@@ -32,11 +42,14 @@ public class MainControllerTests {
     @Autowired
     WebTestClient webTestClient;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @MockBean
     private MainService service;
 
     @Test
-    public void testApplyTransforms() {
+    public void testApplyTransforms() throws Exception {
         byte[] imageBytes = randomImageBytes();
         List<TransformedImage> expected = randomTransformedImages(3);
         String fileName = "foobar.png";
@@ -45,9 +58,12 @@ public class MainControllerTests {
                         .map(TransformedImage::getTransformName)
                         .collect(Collectors.toUnmodifiableList());
 
+        // The service proxies the microservice JSON as is.
         when(service
-                .applyTransforms(transforms, fileName, imageBytes))
-                .thenReturn(Flux.fromIterable(expected));
+                .proxyTransforms(transforms, fileName, imageBytes,
+                        MediaType.APPLICATION_JSON))
+                .thenReturn(Flux.just(toBuffer(
+                        objectMapper.writeValueAsBytes(expected))));
 
         MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
 
@@ -71,6 +87,109 @@ public class MainControllerTests {
                         .returnResult()
                         .getResponseBody();
 
+        verify(service, times(1))
+                .proxyTransforms(transforms, fileName, imageBytes,
+                        MediaType.APPLICATION_JSON);
+
+        assertThat(result).isEqualTo(expected);
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testApplyTransformsStream() throws Exception {
+        byte[] imageBytes = randomImageBytes();
+        List<TransformedImage> expected = randomTransformedImages(3);
+        String fileName = "foobar.png";
+        List<String> transforms =
+                expected.stream()
+                        .map(TransformedImage::getTransformName)
+                        .collect(Collectors.toUnmodifiableList());
+
+        // The service proxies one line of JSON per image as is.
+        List<DataBuffer> lines = new ArrayList<>();
+        for (TransformedImage transformedImage : expected) {
+            lines.add(toBuffer(
+                    (objectMapper.writeValueAsString(transformedImage) + "\n")
+                            .getBytes(StandardCharsets.UTF_8)));
+        }
+
+        when(service
+                .proxyTransforms(transforms, fileName, imageBytes,
+                        MediaType.APPLICATION_NDJSON))
+                .thenReturn(Flux.fromIterable(lines));
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", imageBytes)
+                .filename(fileName);
+
+        List<TransformedImage> result =
+                webTestClient
+                        .post()
+                        .uri("/" + APPLY_TRANSFORMS_STREAM
+                                + "?transforms=" + transforms.get(0)
+                                + "&transforms=" + transforms.get(1)
+                                + "&transforms=" + transforms.get(2))
+                        .body(BodyInserters.fromMultipartData(
+                                multipartBodyBuilder.build()))
+                        .accept(MediaType.APPLICATION_NDJSON)
+                        .exchange()
+                        .expectStatus().isOk()
+                        .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                        .returnResult(TransformedImage.class)
+                        .getResponseBody()
+                        .collectList()
+                        .block();
+
+        verify(service, times(1))
+                .proxyTransforms(transforms, fileName, imageBytes,
+                        MediaType.APPLICATION_NDJSON);
+
+        assertThat(result).isEqualTo(expected);
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testApplyTransformsEvents() {
+        byte[] imageBytes = randomImageBytes();
+        List<TransformedImage> expected = randomTransformedImages(3);
+        String fileName = "foobar.png";
+        List<String> transforms =
+                expected.stream()
+                        .map(TransformedImage::getTransformName)
+                        .collect(Collectors.toUnmodifiableList());
+
+        when(service
+                .applyTransforms(transforms, fileName, imageBytes))
+                .thenReturn(Flux.fromIterable(expected));
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", imageBytes)
+                .filename(fileName);
+
+        List<TransformedImage> result =
+                webTestClient
+                        .post()
+                        .uri("/" + APPLY_TRANSFORMS_STREAM
+                                + "?transforms=" + transforms.get(0)
+                                + "&transforms=" + transforms.get(1)
+                                + "&transforms=" + transforms.get(2))
+                        .body(BodyInserters.fromMultipartData(
+                                multipartBodyBuilder.build()))
+                        .accept(MediaType.TEXT_EVENT_STREAM)
+                        .exchange()
+                        .expectStatus().isOk()
+                        .expectHeader().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM)
+                        .returnResult(TransformedImage.class)
+                        .getResponseBody()
+                        .collectList()
+                        .block();
+
         verify(service, times(1))
                 .applyTransforms(transforms, fileName, imageBytes);
 
@@ -78,4 +197,64 @@ public class MainControllerTests {
 
         clearInvocations(service);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOverloadedRequestAnswers503() {
+        byte[] imageBytes = randomImageBytes();
+        String fileName = "foobar.png";
+        List<String> transforms = List.of("SepiaTransform");
+
+        // The limiter rejects the call before any body is written.
+        when(service
+                .proxyTransforms(transforms, fileName, imageBytes,
+                        MediaType.APPLICATION_JSON))
+                .thenReturn(Flux.error(new ConcurrencyLimiter.OverloadedException(
+                        "SepiaTransform", Duration.ofSeconds(2))));
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", imageBytes)
+                .filename(fileName);
+
+        webTestClient
+                .post()
+                .uri("/" + APPLY_TRANSFORMS + "?transforms=" + transforms.get(0))
+                .body(BodyInserters.fromMultipartData(
+                        multipartBodyBuilder.build()))
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "2");
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testDuplicateBatchImageNamesAnswer400() {
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        // Both images would be tagged with the same name.
+        multipartBodyBuilder
+                .part("images", randomImageBytes())
+                .filename("foobar.png");
+        multipartBodyBuilder
+                .part("images", randomImageBytes())
+                .filename("foobar.png");
+
+        webTestClient
+                .post()
+                .uri("/" + APPLY_TRANSFORMS_BATCH + "?transforms=SepiaTransform")
+                .body(BodyInserters.fromMultipartData(
+                        multipartBodyBuilder.build()))
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        verify(service, never()).applyTransformsBatch(any(), any());
+    }
+
+    private static DataBuffer toBuffer(byte[] bytes) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+    }
+}
@@ -1,24 +1,45 @@
 package server.main;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.assertj.core.api.InstanceOfAssertFactories;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.cloud.client.DefaultServiceInstance;
 import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+import server.common.BlobStore;
 import server.common.Components;
+import server.common.Constants.Headers;
+import server.common.Constants.Metadata;
+import server.common.Constants.Service;
 import server.common.model.TransformedImage;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -50,7 +71,8 @@ public class MainServiceTests {
         service = new MainService();
         service.baseUrl = String.format("http://localhost:%d/", mockBackEnd.getPort());
         service.webClient = WebClient.builder().build();
-        service.discoveryClient = discoveryClientMock;
+        service.discoveryCache = new DiscoveryCache();
+        service.discoveryCache.discoveryClient = discoveryClientMock;
     }
 
     @AfterEach
@@ -109,4 +131,439 @@ public class MainServiceTests {
         // Ensure that all expected flights were received.
         assertThat(expected).isEmpty();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testApplyTransformsFallsBackToInlineImage(@TempDir Path dir)
+        throws Exception {
+        byte[] imageBytes = randomImageBytes();
+        TransformedImage expected = randomTransformedImages(1).get(0);
+        String fileName = "foobar.png";
+
+        service.blobStore = new BlobStore();
+        service.blobStore.dir = dir.toString();
+        service.blobStore.start();
+        service.strategy = LatencyAwareLoadBalancer.Strategy.CONSISTENT_HASH;
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(expected.getTransformName().toLowerCase()));
+
+        // The microservice can't read the blob, so it gets the image
+        // inline on the second request.
+        mockBackEnd.enqueue(new MockResponse().setResponseCode(404));
+        mockBackEnd.enqueue(new MockResponse()
+                .setBody(objectMapper.writeValueAsString(expected))
+                .addHeader("Content-Type", "application/json"));
+
+        StepVerifier.create(
+                service.applyTransforms(
+                        List.of(expected.getTransformName()),
+                        fileName,
+                        imageBytes))
+                .expectNext(expected)
+                .verifyComplete();
+
+        RecordedRequest byReference = mockBackEnd.takeRequest();
+        RecordedRequest inline = mockBackEnd.takeRequest();
+
+        assertThat(byReference.getPath()).contains("&blob=");
+        assertThat(byReference.getBodySize()).isLessThan(imageBytes.length);
+        assertThat(inline.getPath()).doesNotContain("blob=");
+        assertThat(inline.getBodySize()).isGreaterThan(imageBytes.length);
+
+        // Both requests are routed by the image content.
+        assertThat(byReference.getHeader(Headers.ROUTING_KEY))
+                .endsWith("-" + imageBytes.length)
+                .isEqualTo(inline.getHeader(Headers.ROUTING_KEY));
+
+        // The blob is deleted once the request completes.
+        assertThat(dir.toFile().list()).isEmpty();
+    }
+
+    @Test
+    public void testApplyTransformsUsesClientRoutingKey() throws Exception {
+        TransformedImage expected = randomTransformedImages(1).get(0);
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(expected.getTransformName().toLowerCase()));
+
+        mockBackEnd.enqueue(new MockResponse()
+                .setBody(objectMapper.writeValueAsString(expected))
+                .addHeader("Content-Type", "application/json"));
+
+        StepVerifier.create(
+                service.applyTransforms(
+                        List.of(expected.getTransformName()),
+                        "foobar.png",
+                        randomImageBytes())
+                        .contextWrite(MainService.routingKey("image-42")))
+                .expectNext(expected)
+                .verifyComplete();
+
+        assertThat(mockBackEnd.takeRequest().getHeader(Headers.ROUTING_KEY))
+                .isEqualTo("image-42");
+    }
+
+    @Test
+    public void testContentIsOnlyChecksummedForConsistentHashing() throws Exception {
+        TransformedImage expected = randomTransformedImages(1).get(0);
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(expected.getTransformName().toLowerCase()));
+
+        mockBackEnd.enqueue(new MockResponse()
+                .setBody(objectMapper.writeValueAsString(expected))
+                .addHeader("Content-Type", "application/json"));
+
+        StepVerifier.create(
+                service.applyTransforms(
+                        List.of(expected.getTransformName()),
+                        "foobar.png",
+                        randomImageBytes()))
+                .expectNext(expected)
+                .verifyComplete();
+
+        // Other strategies don't route by key, so none is sent.
+        assertThat(mockBackEnd.takeRequest().getHeader(Headers.ROUTING_KEY))
+                .isNull();
+    }
+
+    @Test
+    public void testApplyTransformsWithinMaxLatency() throws Exception {
+        TransformedImage fast = randomTransformedImages(1).get(0);
+        fast.setTransformName(Service.GRAYSCALE_TRANSFORM);
+        String slow = Service.SEPIA_TRANSFORM;
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(fast.getTransformName().toLowerCase(),
+                        slow.toLowerCase()));
+
+        String body = objectMapper.writeValueAsString(fast);
+        mockBackEnd.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return request.getPath().contains(slow)
+                        ? new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE)
+                        : new MockResponse()
+                                .setBody(body)
+                                .addHeader("Content-Type", "application/json");
+            }
+        });
+
+        // The slow transform is reported as missing instead of
+        // holding up the response.
+        StepVerifier.create(
+                service.applyTransforms(
+                        List.of(fast.getTransformName(), slow),
+                        "foobar.png",
+                        randomImageBytes())
+                        .contextWrite(MainService.maxLatency(500L)))
+                .expectNext(fast)
+                .expectNext(TransformedImage.missing("foobar.png",
+                                                     slow,
+                                                     TransformedImage.TIMED_OUT))
+                .verifyComplete();
+
+        assertThat(service.metrics()).containsEntry("partialResponses", 1L);
+    }
+
+    @Test
+    public void testIdenticalCallsAreCoalesced() throws Exception {
+        byte[] imageBytes = randomImageBytes();
+        TransformedImage expected = randomTransformedImages(1).get(0);
+        expected.setImageName("first.png");
+        service.coalesce = true;
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(expected.getTransformName().toLowerCase()));
+
+        // Only one response is queued, so a second call would hang.
+        mockBackEnd.enqueue(new MockResponse()
+                .setBody(objectMapper.writeValueAsString(expected))
+                .addHeader("Content-Type", "application/json")
+                .setBodyDelay(200, TimeUnit.MILLISECONDS));
+
+        List<String> transforms = List.of(expected.getTransformName());
+        StepVerifier.create(
+                Flux.merge(service.applyTransforms(transforms, "first.png", imageBytes),
+                           service.applyTransforms(transforms, "second.png",
+                                                   imageBytes.clone()))
+                        .map(TransformedImage::getImageName))
+                .recordWith(ArrayList::new)
+                .expectNextCount(2)
+                .consumeRecordedWith(names -> assertThat(names)
+                        .containsExactlyInAnyOrder("first.png", "second.png"))
+                .verifyComplete();
+
+        assertThat(mockBackEnd.getRequestCount()).isEqualTo(1);
+        assertThat(service.metrics())
+                .extracting("coalesce")
+                .asInstanceOf(InstanceOfAssertFactories.MAP)
+                .containsEntry("coalescedCalls", 1L);
+
+        // The shared call completed rather than being cancelled after
+        // its image.
+        assertThat(service.metrics()).containsEntry("cancelledCalls", 0L);
+    }
+
+    @Test
+    public void testProxiedCallsAreNotCoalesced() throws Exception {
+        byte[] imageBytes = randomImageBytes();
+        TransformedImage expected = randomTransformedImages(1).get(0);
+        service.coalesce = true;
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(expected.getTransformName().toLowerCase()));
+
+        for (int i = 0; i < 2; i++) {
+            mockBackEnd.enqueue(new MockResponse()
+                    .setBody(objectMapper.writeValueAsString(expected))
+                    .addHeader("Content-Type", "application/json")
+                    .setBodyDelay(200, TimeUnit.MILLISECONDS));
+        }
+
+        // Each raw body can only be proxied once, so identical
+        // requests send their own calls.
+        List<String> transforms = List.of(expected.getTransformName());
+        StepVerifier.create(
+                Flux.merge(proxy(transforms, "first.png", imageBytes),
+                           proxy(transforms, "second.png", imageBytes.clone())))
+                .expectNextCount(2)
+                .verifyComplete();
+
+        assertThat(mockBackEnd.getRequestCount()).isEqualTo(2);
+        assertThat(service.metrics())
+                .extracting("coalesce")
+                .asInstanceOf(InstanceOfAssertFactories.MAP)
+                .containsEntry("coalescedCalls", 0L);
+    }
+
+    @Test
+    public void testApplyTransformsBatch() throws Exception {
+        List<TransformedImage> expected = randomTransformedImages(2);
+        String transform = Service.SEPIA_TRANSFORM;
+        expected.get(0).setImageName("first.png");
+        expected.get(1).setImageName("second.png");
+        expected.forEach(image -> image.setTransformName(transform));
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(transform.toLowerCase()));
+
+        // The microservice streams back both images of the batch.
+        mockBackEnd.enqueue(new MockResponse()
+                .setBody(objectMapper.writeValueAsString(expected.get(0)) + "\n"
+                         + objectMapper.writeValueAsString(expected.get(1)) + "\n")
+                .addHeader("Content-Type", "application/x-ndjson"));
+
+        Map<String, byte[]> images = new LinkedHashMap<>();
+        images.put("first.png", randomImageBytes());
+        images.put("second.png", randomImageBytes());
+
+        StepVerifier.create(service.applyTransformsBatch(List.of(transform), images))
+                .expectNext(expected.get(0))
+                .expectNext(expected.get(1))
+                .verifyComplete();
+
+        // The whole batch is sent in one request.
+        assertThat(mockBackEnd.getRequestCount()).isEqualTo(1);
+        RecordedRequest request = mockBackEnd.takeRequest();
+        assertThat(request.getPath()).contains("apply-transform-batch");
+        String body = request.getBody().readUtf8();
+        assertThat(body).contains("filename=\"first.png\"", "filename=\"second.png\"");
+    }
+
+    @Test
+    public void testProxyTransforms() throws Exception {
+        byte[] imageBytes = randomImageBytes();
+        List<TransformedImage> expected = randomTransformedImages(3);
+        String fileName = "foobar.png";
+
+        List<String> transforms =
+                expected.stream()
+                        .map(TransformedImage::getTransformName)
+                        .collect(Collectors.toUnmodifiableList());
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                transforms
+                        .stream()
+                        .map(String::toLowerCase)
+                        .collect(Collectors.toUnmodifiableList())
+        );
+
+        for (TransformedImage transformedImage : expected) {
+            mockBackEnd.enqueue(new MockResponse()
+                    .setBody(objectMapper.writeValueAsString(transformedImage))
+                    .addHeader("Content-Type", "application/json"));
+        }
+
+        // The microservice bodies are framed into one JSON array.
+        String json = DataBufferUtils
+                .join(service.proxyTransforms(transforms,
+                                              fileName,
+                                              imageBytes,
+                                              MediaType.APPLICATION_JSON))
+                .map(buffer -> {
+                    String body = buffer.toString(StandardCharsets.UTF_8);
+                    DataBufferUtils.release(buffer);
+                    return body;
+                })
+                .block();
+
+        List<TransformedImage> result = Arrays.asList(
+                objectMapper.readValue(json, TransformedImage[].class));
+
+        assertThat(result).hasSameElementsAs(expected);
+    }
+
+    @Test
+    public void testProxyTransformsFailsBeforeFramingOnRejection() {
+        List<String> transforms = List.of(Service.SEPIA_TRANSFORM);
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of(Service.SEPIA_TRANSFORM.toLowerCase()));
+
+        // A zero limit rejects every call.
+        service.concurrencyLimiter.enabled = true;
+        service.concurrencyLimiter.initialLimit = 0;
+
+        // No opening bracket is written before the rejection, so the
+        // controller can still answer it with a 503.
+        StepVerifier.create(service.proxyTransforms(transforms,
+                                                    "foobar.png",
+                                                    randomImageBytes(),
+                                                    MediaType.APPLICATION_JSON))
+                .expectError(ConcurrencyLimiter.OverloadedException.class)
+                .verify();
+
+        assertThat(mockBackEnd.getRequestCount()).isZero();
+    }
+
+    @Test
+    public void testProxyTransformsStreamsNdjson() throws Exception {
+        List<TransformedImage> expected = randomTransformedImages(2);
+        List<String> transforms =
+                expected.stream()
+                        .map(TransformedImage::getTransformName)
+                        .collect(Collectors.toUnmodifiableList());
+
+        when(discoveryClientMock.getServices()).thenReturn(
+                transforms
+                        .stream()
+                        .map(String::toLowerCase)
+                        .collect(Collectors.toUnmodifiableList())
+        );
+
+        for (TransformedImage transformedImage : expected) {
+            mockBackEnd.enqueue(new MockResponse()
+                    .setBody(objectMapper.writeValueAsString(transformedImage))
+                    .addHeader("Content-Type", "application/json"));
+        }
+
+        String ndjson = DataBufferUtils
+                .join(service.proxyTransforms(transforms,
+                                              "foobar.png",
+                                              randomImageBytes(),
+                                              MediaType.APPLICATION_NDJSON))
+                .map(buffer -> {
+                    String body = buffer.toString(StandardCharsets.UTF_8);
+                    DataBufferUtils.release(buffer);
+                    return body;
+                })
+                .block();
+
+        // Each body is written whole on its own line.
+        List<TransformedImage> result = new ArrayList<>();
+        for (String line : ndjson.split("\n")) {
+            result.add(objectMapper.readValue(line, TransformedImage.class));
+        }
+
+        assertThat(ndjson).endsWith("\n");
+        assertThat(result).hasSameElementsAs(expected);
+    }
+
+    @Test
+    public void testDecodeOnceOnlyUsesServiceApplyingEveryTransform() throws Exception {
+        List<TransformedImage> expected = randomTransformedImages(2);
+        expected.get(0).setTransformName(Service.GRAYSCALE_TRANSFORM);
+        expected.get(1).setTransformName(Service.SEPIA_TRANSFORM);
+        List<String> transforms = List.of(Service.GRAYSCALE_TRANSFORM,
+                                          Service.SEPIA_TRANSFORM);
+        service.decodeOnce = true;
+
+        // Only the sepia microservice also applies the grayscale
+        // transform.
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of("grayscaletransform", "sepiatransform"));
+        when(discoveryClientMock.getInstances("grayscaletransform")).thenReturn(
+                List.of(new DefaultServiceInstance("grayscale-1", "grayscaletransform",
+                                                   "localhost", 8080, false)));
+        when(discoveryClientMock.getInstances("sepiatransform")).thenReturn(
+                List.of(new DefaultServiceInstance("sepia-1", "sepiatransform",
+                                                   "localhost", 8081, false,
+                                                   Map.of(Metadata.TRANSFORMS,
+                                                          Service.GRAYSCALE_TRANSFORM))));
+
+        mockBackEnd.enqueue(new MockResponse()
+                .setBody(objectMapper.writeValueAsString(expected))
+                .addHeader("Content-Type", "application/json"));
+
+        StepVerifier.create(service.applyTransforms(transforms,
+                                                    "foobar.png",
+                                                    randomImageBytes()))
+                .expectNextSequence(expected)
+                .verifyComplete();
+
+        assertThat(mockBackEnd.getRequestCount()).isEqualTo(1);
+        assertThat(mockBackEnd.takeRequest().getPath())
+                .isEqualTo("/" + Service.SEPIA_TRANSFORM + "/apply-multi-transform"
+                           + "?transforms=" + Service.GRAYSCALE_TRANSFORM
+                           + "&transforms=" + Service.SEPIA_TRANSFORM);
+    }
+
+    @Test
+    public void testDecodeOnceSendsEachTransformWithoutSharedService() throws Exception {
+        List<TransformedImage> expected = randomTransformedImages(2);
+        expected.get(0).setTransformName(Service.GRAYSCALE_TRANSFORM);
+        expected.get(1).setTransformName(Service.SEPIA_TRANSFORM);
+        List<String> transforms = List.of(Service.GRAYSCALE_TRANSFORM,
+                                          Service.SEPIA_TRANSFORM);
+        service.decodeOnce = true;
+
+        // Neither microservice lists the other transform.
+        when(discoveryClientMock.getServices()).thenReturn(
+                List.of("grayscaletransform", "sepiatransform"));
+
+        for (TransformedImage transformedImage : expected) {
+            mockBackEnd.enqueue(new MockResponse()
+                    .setBody(objectMapper.writeValueAsString(transformedImage))
+                    .addHeader("Content-Type", "application/json"));
+        }
+
+        StepVerifier.create(service.applyTransforms(transforms,
+                                                    "foobar.png",
+                                                    randomImageBytes()))
+                .expectNextCount(2)
+                .verifyComplete();
+
+        assertThat(List.of(mockBackEnd.takeRequest().getPath(),
+                           mockBackEnd.takeRequest().getPath()))
+                .allMatch(path -> path.contains("/apply-transform?"));
+    }
+
+    /**
+     * Returns the JSON array body that {@link MainService#proxyTransforms}
+     * writes for the image.
+     */
+    private Mono<String> proxy(List<String> transforms,
+                               String fileName,
+                               byte[] imageBytes) {
+        return DataBufferUtils
+                .join(service.proxyTransforms(transforms,
+                                              fileName,
+                                              imageBytes,
+                                              MediaType.APPLICATION_JSON))
+                .map(buffer -> {
+                    String body = buffer.toString(StandardCharsets.UTF_8);
+                    DataBufferUtils.release(buffer);
+                    return body;
+                });
+    }
+}
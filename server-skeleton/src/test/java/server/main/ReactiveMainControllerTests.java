@@ -0,0 +1,153 @@
+package server.main;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.publisher.Flux;
+import server.common.model.TransformedImage;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORMS_BATCH;
+import static server.main.ImageFactory.randomImageBytes;
+import static server.main.ImageFactory.randomTransformedImages;
+
+/**
+ * These tests run the gateway on Netty to ensure that {@link
+ * ReactiveMainController} accepts {@code FilePart} uploads.
+ */
+@SpringBootTest(classes = MainApplication.class,
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "spring.main.web-application-type=reactive")
+public class ReactiveMainControllerTests {
+    @Autowired
+    WebTestClient webTestClient;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @MockBean
+    private MainService service;
+
+    @Test
+    public void testApplyTransforms() throws Exception {
+        List<TransformedImage> expected = randomTransformedImages(3);
+        List<String> transforms =
+                expected.stream()
+                        .map(TransformedImage::getTransformName)
+                        .collect(Collectors.toUnmodifiableList());
+
+        // The service proxies the microservice JSON as is.
+        when(service
+                .proxyTransforms(eq(transforms), any(FilePart.class),
+                        eq(MediaType.APPLICATION_JSON)))
+                .thenReturn(Flux.just(toBuffer(
+                        objectMapper.writeValueAsBytes(expected))));
+
+        List<TransformedImage> result =
+                post(transforms)
+                        .expectStatus().isOk()
+                        .expectBodyList(TransformedImage.class)
+                        .returnResult()
+                        .getResponseBody();
+
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void testRejectedUploadAnswers503() {
+        List<String> transforms = List.of("SepiaTransform");
+
+        when(service
+                .proxyTransforms(eq(transforms), any(FilePart.class),
+                        eq(MediaType.APPLICATION_JSON)))
+                .thenReturn(Flux.error(new RejectedExecutionException("Queue is full")));
+
+        post(transforms)
+                .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "1");
+    }
+
+    @Test
+    public void testOverloadedUploadAnswers503() {
+        List<String> transforms = List.of("SepiaTransform");
+
+        when(service
+                .proxyTransforms(eq(transforms), any(FilePart.class),
+                        eq(MediaType.APPLICATION_JSON)))
+                .thenReturn(Flux.error(new ConcurrencyLimiter.OverloadedException(
+                        "SepiaTransform", Duration.ofSeconds(2))));
+
+        post(transforms)
+                .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "2");
+    }
+
+    @Test
+    public void testDuplicateBatchImageNamesAnswer400() {
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        // Both images would be tagged with the same name.
+        multipartBodyBuilder
+                .part("images", randomImageBytes())
+                .filename("foobar.png");
+        multipartBodyBuilder
+                .part("images", randomImageBytes())
+                .filename("foobar.png");
+
+        webTestClient
+                .post()
+                .uri("/" + APPLY_TRANSFORMS_BATCH + "?transforms=SepiaTransform")
+                .body(BodyInserters.fromMultipartData(
+                        multipartBodyBuilder.build()))
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        verify(service, never()).applyTransformsBatch(any(), any());
+    }
+
+    private WebTestClient.ResponseSpec post(List<String> transforms) {
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", randomImageBytes())
+                .filename("foobar.png");
+
+        return webTestClient
+                .post()
+                .uri(builder -> builder
+                        .path("/" + APPLY_TRANSFORMS)
+                        .queryParam("transforms", transforms)
+                        .build())
+                .body(BodyInserters.fromMultipartData(
+                        multipartBodyBuilder.build()))
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange();
+    }
+
+    private static DataBuffer toBuffer(byte[] bytes) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+    }
+}
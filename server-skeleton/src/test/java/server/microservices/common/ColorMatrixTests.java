@@ -0,0 +1,99 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.data.Offset.offset;
+
+/**
+ * These tests validate the {@link ColorMatrix} presets against the
+ * {@link Transforms} kernels.
+ */
+public class ColorMatrixTests {
+    private final Transforms transforms = new Transforms();
+    private int[] pixels;
+
+    @BeforeEach
+    void beforeEach() {
+        Random random = new Random(13);
+        pixels = new int[1 << 20];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+    }
+
+    @Test
+    public void testGrayScalePresetWithinOneLevel() {
+        int[] expected = pixels.clone();
+        transforms.grayScale(expected, true);
+        ColorMatrix.GRAYSCALE.kernel(true).apply(pixels, 0, pixels.length);
+
+        for (int i = 0; i < pixels.length; i++) {
+            assertThat(pixels[i] >>> 24).isEqualTo(expected[i] >>> 24);
+            assertThat(pixels[i] & 0xFF).isCloseTo(expected[i] & 0xFF, offset(1));
+        }
+    }
+
+    @Test
+    public void testSepiaPresetIsExact() {
+        int[] expected = pixels.clone();
+        transforms.sepia(expected, true);
+        ColorMatrix.SEPIA.kernel(true).apply(pixels, 0, pixels.length);
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+
+    @Test
+    public void testTintPresetIsExact() {
+        int[] expected = pixels.clone();
+        transforms.tint(expected, true, 0.3f, 0.5f, 0.7f);
+        ColorMatrix.tint(0.3f, 0.5f, 0.7f).kernel(true).apply(pixels, 0, pixels.length);
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+
+    @Test
+    public void testTintPresetIsExactForAnyTint() {
+        float[] fractions = {0.0f, 0.25f, 0.5f, 0.9f, 1.0f};
+        int[] sample = Arrays.copyOf(pixels, 1 << 16);
+
+        for (float red : fractions) {
+            for (float green : fractions) {
+                for (float blue : fractions) {
+                    int[] expected = sample.clone();
+                    int[] result = sample.clone();
+                    transforms.tint(expected, true, red, green, blue);
+                    ColorMatrix.tint(red, green, blue).kernel(true)
+                            .apply(result, 0, result.length);
+
+                    assertThat(result)
+                            .as("tint(%s, %s, %s)", red, green, blue)
+                            .isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCustomMatrixSwapsChannelsAndClamps() {
+        int[] result = {0xFF102030, 0x80FFFFFF};
+        ColorMatrix.of(
+                0, 0, 1, 0, 0,
+                0, 1, 0, 0, 0,
+                1, 0, 0, 0, 0,
+                0, 0, 0, 1, 100).kernel(false).apply(result, 0, result.length);
+
+        assertThat(result).containsExactly(0xFF302010, 0xE4FFFFFF);
+    }
+
+    @Test
+    public void testWrongNumberOfValuesIsRejected() {
+        assertThatThrownBy(() -> ColorMatrix.of(1, 2, 3))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
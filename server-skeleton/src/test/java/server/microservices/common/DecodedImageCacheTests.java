@@ -0,0 +1,57 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static server.main.ImageFactory.randomImageBytes;
+
+/**
+ * These tests ensure that {@link DecodedImageCache} decodes each
+ * input image once and never lets a caller change a cached image.
+ */
+public class DecodedImageCacheTests {
+    @Test
+    public void testSharedImageIsDecodedOnce() {
+        DecodedImageCache cache = startedCache(1 << 26);
+        byte[] imageBytes = randomImageBytes();
+
+        BufferedImage first = cache.decodeShared(imageBytes);
+        BufferedImage second = cache.decodeShared(imageBytes.clone());
+
+        assertThat(second).isSameAs(first);
+        assertThat(cache.stats()).containsEntry("hitCount", 1L);
+    }
+
+    @Test
+    public void testDecodedCopyCanBeModified() {
+        DecodedImageCache cache = startedCache(1 << 26);
+        byte[] imageBytes = randomImageBytes();
+
+        BufferedImage copy = cache.decode(imageBytes);
+        int original = copy.getRGB(0, 0);
+        copy.setRGB(0, 0, ~original);
+
+        assertThat(copy).isNotSameAs(cache.decodeShared(imageBytes));
+        assertThat(cache.decode(imageBytes).getRGB(0, 0)).isEqualTo(original);
+        assertThat(cache.decode(imageBytes).getType()).isEqualTo(copy.getType());
+    }
+
+    @Test
+    public void testDisabledCacheAlwaysDecodes() {
+        DecodedImageCache cache = startedCache(0);
+        byte[] imageBytes = randomImageBytes();
+
+        assertThat(cache.decodeShared(imageBytes))
+                .isNotSameAs(cache.decodeShared(imageBytes));
+        assertThat(cache.stats()).isEmpty();
+    }
+
+    private DecodedImageCache startedCache(long maxBytes) {
+        DecodedImageCache cache = new DecodedImageCache();
+        cache.maxBytes = maxBytes;
+        cache.start();
+        return cache;
+    }
+}
@@ -0,0 +1,99 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * These tests ensure that transforming an image directly in its
+ * raster produces the same pixels as the getRGB()/setRGB() path.
+ */
+public class RastersTests {
+    private static final int WIDTH = 101;
+    private static final int HEIGHT = 67;
+
+    private final Transforms transforms = new Transforms();
+
+    @Test
+    public void testByteBgrMatchesCopyPath() {
+        assertRasterMatchesCopyPath(BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    @Test
+    public void testByteAbgrMatchesCopyPath() {
+        assertRasterMatchesCopyPath(BufferedImage.TYPE_4BYTE_ABGR);
+    }
+
+    @Test
+    public void testIntArgbMatchesCopyPath() {
+        assertRasterMatchesCopyPath(BufferedImage.TYPE_INT_ARGB);
+    }
+
+    @Test
+    public void testIntRgbMatchesCopyPath() {
+        assertRasterMatchesCopyPath(BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Test
+    public void testIntRgbMatchesCopyPathForAlphaColumnMatrix() {
+        // The red and green outputs depend on the alpha input, which
+        // getRGB() reports as 255 for an RGB image.
+        ColorMatrix matrix = ColorMatrix.of(0.5f, 0, 0, 0.5f, 0,
+                                            0, 0.5f, 0, 0.25f, 0,
+                                            0, 0, 0.5f, 0, 0,
+                                            0, 0, 0, 1, 0);
+
+        assertRasterMatchesCopyPath(BufferedImage.TYPE_INT_RGB, matrix.kernel(false));
+    }
+
+    @Test
+    public void testIndexedImageIsNotSupported() {
+        BufferedImage image =
+                new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED);
+
+        assertThat(Rasters.isSupported(image)).isFalse();
+    }
+
+    private void assertRasterMatchesCopyPath(int type) {
+        boolean hasAlpha = new BufferedImage(1, 1, type).getColorModel().hasAlpha();
+        assertRasterMatchesCopyPath(type, (pixels, from, to) ->
+                transforms.sepia(pixels, from, to, hasAlpha));
+    }
+
+    private void assertRasterMatchesCopyPath(int type, PixelKernel kernel) {
+        BufferedImage source = randomImage(type);
+
+        BufferedImage expected = copy(source);
+        int[] pixels = expected.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        kernel.apply(pixels, 0, pixels.length);
+        expected.setRGB(0, 0, WIDTH, HEIGHT, pixels, 0, WIDTH);
+
+        BufferedImage result = copy(source);
+        assertThat(Rasters.isSupported(result)).isTrue();
+        Rasters.apply(result, kernel, 0, HEIGHT);
+
+        assertThat(result.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH))
+                .isEqualTo(expected.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+    }
+
+    private static BufferedImage randomImage(int type) {
+        Random random = new Random(7);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        return new BufferedImage(image.getColorModel(),
+                                 image.copyData(null),
+                                 image.isAlphaPremultiplied(),
+                                 null);
+    }
+}
@@ -0,0 +1,280 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import server.common.Deadline;
+import server.common.model.TransformedImage;
+import server.microservices.grayscale.GrayScaleMicroservice;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.assertj.core.api.AssertionsForClassTypes.assertThatThrownBy;
+import static org.mockito.Mockito.*;
+import static server.common.Constants.EndPoint.APPLY_MULTI_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM_BATCH;
+import static server.common.Constants.Service.GRAYSCALE_TRANSFORM;
+import static server.main.ImageFactory.randomImageBytes;
+import static server.main.ImageFactory.randomTransformedImage;
+import static server.main.ImageFactory.randomTransformedImages;
+
+/**
+ * These tests run a transform microservice on Netty to ensure that
+ * {@link ReactiveTransformController} accepts {@code FilePart}
+ * uploads.
+ */
+@EnableDiscoveryClient(autoRegister = false)
+@SpringBootTest(classes = {GrayScaleMicroservice.class},
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "spring.main.web-application-type=reactive")
+public class ReactiveTransformControllerTests {
+    @Autowired
+    WebTestClient webTestClient;
+
+    @Autowired
+    ReactiveTransformController controller;
+
+    @MockBean
+    private TransformService service;
+
+    @Test
+    public void testApplyTransform() {
+        byte[] imageBytes = randomImageBytes();
+        TransformedImage expected = randomTransformedImage();
+        String fileName = "foobar.png";
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", imageBytes)
+                .filename(fileName);
+
+        when(service
+                .applyTransform(
+                        eq(fileName),
+                        eq(expected.getTransformName()),
+                        eq(imageBytes),
+                        isNull(),
+                        any(Deadline.class)))
+                .thenReturn(expected);
+
+        TransformedImage result =
+                webTestClient
+                        .post()
+                        .uri("/" + APPLY_TRANSFORM +
+                                "?transform=" + expected.getTransformName())
+                        .body(BodyInserters.fromMultipartData(
+                                multipartBodyBuilder.build()))
+                        .accept(MediaType.APPLICATION_JSON)
+                        .exchange()
+                        .expectStatus().isOk()
+                        .expectBody(TransformedImage.class)
+                        .returnResult()
+                        .getResponseBody();
+
+        verify(service, times(1))
+                .applyTransform(
+                        eq(fileName),
+                        eq(expected.getTransformName()),
+                        eq(imageBytes),
+                        isNull(),
+                        any(Deadline.class));
+
+        assertThat(result).isEqualTo(expected);
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testApplyTransforms() {
+        byte[] imageBytes = randomImageBytes();
+        List<TransformedImage> expected = randomTransformedImages(2);
+        List<String> transforms = List.of(expected.get(0).getTransformName(),
+                                          expected.get(1).getTransformName());
+        String fileName = "foobar.png";
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", imageBytes)
+                .filename(fileName);
+
+        when(service.applyTransforms(eq(fileName),
+                                     eq(transforms),
+                                     eq(imageBytes),
+                                     any(Deadline.class)))
+                .thenReturn(expected);
+
+        List<TransformedImage> result =
+                webTestClient
+                        .post()
+                        .uri("/" + APPLY_MULTI_TRANSFORM
+                                + "?transforms=" + transforms.get(0)
+                                + "&transforms=" + transforms.get(1))
+                        .body(BodyInserters.fromMultipartData(
+                                multipartBodyBuilder.build()))
+                        .accept(MediaType.APPLICATION_JSON)
+                        .exchange()
+                        .expectStatus().isOk()
+                        .expectBodyList(TransformedImage.class)
+                        .returnResult()
+                        .getResponseBody();
+
+        assertThat(result).isEqualTo(expected);
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testApplyTransformBatch() {
+        List<TransformedImage> expected = randomTransformedImages(2);
+        expected.get(0).setImageName("first.png");
+        expected.get(1).setImageName("second.png");
+        String transform = expected.get(0).getTransformName();
+        expected.get(1).setTransformName(transform);
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        for (TransformedImage image : expected) {
+            byte[] imageBytes = randomImageBytes();
+            multipartBodyBuilder
+                    .part("images", imageBytes)
+                    .filename(image.getImageName());
+            when(service
+                    .applyTransform(
+                            eq(image.getImageName()),
+                            eq(transform),
+                            eq(imageBytes),
+                            isNull(),
+                            any(Deadline.class)))
+                    .thenReturn(image);
+        }
+
+        List<TransformedImage> result =
+                webTestClient
+                        .post()
+                        .uri("/" + APPLY_TRANSFORM_BATCH + "?transform=" + transform)
+                        .body(BodyInserters.fromMultipartData(
+                                multipartBodyBuilder.build()))
+                        .accept(MediaType.APPLICATION_NDJSON)
+                        .exchange()
+                        .expectStatus().isOk()
+                        .returnResult(TransformedImage.class)
+                        .getResponseBody()
+                        .collectList()
+                        .block();
+
+        // The images are transformed in parallel, so they may finish in
+        // any order, each tagged by its own file name.
+        assertThat(Set.copyOf(result)).isEqualTo(Set.copyOf(expected));
+        assertThat(controller.parallelism).isPositive();
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testClosedConnectionCancelsDeadline() throws Exception {
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", randomImageBytes())
+                .filename("foobar.png");
+
+        // The transform runs until its caller goes away.
+        CountDownLatch cancelled = new CountDownLatch(1);
+        when(service
+                .applyTransform(
+                        eq("foobar.png"),
+                        eq(GRAYSCALE_TRANSFORM),
+                        any(byte[].class),
+                        isNull(),
+                        any(Deadline.class)))
+                .thenAnswer(invocation -> {
+                    Deadline deadline = invocation.getArgument(4);
+                    deadline.cancellation().get(5, TimeUnit.SECONDS);
+                    cancelled.countDown();
+                    throw new Deadline.ExpiredException();
+                });
+
+        // Giving up on the response closes the connection.
+        assertThatThrownBy(() -> webTestClient
+                .mutate()
+                .responseTimeout(Duration.ofMillis(500))
+                .build()
+                .post()
+                .uri("/" + APPLY_TRANSFORM + "?transform=" + GRAYSCALE_TRANSFORM)
+                .body(BodyInserters.fromMultipartData(
+                        multipartBodyBuilder.build()))
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange());
+
+        assertThat(cancelled.await(5, TimeUnit.SECONDS)).isTrue();
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testRejectedTransformAnswers503() {
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", randomImageBytes())
+                .filename("foobar.png");
+
+        // A disposed scheduler rejects all work, like a full one.
+        Scheduler scheduler = controller.scheduler;
+        controller.scheduler = Schedulers.newBoundedElastic(1, 1, "full");
+        controller.scheduler.dispose();
+
+        try {
+            webTestClient
+                    .post()
+                    .uri("/" + APPLY_TRANSFORM + "?transform=" + GRAYSCALE_TRANSFORM)
+                    .body(BodyInserters.fromMultipartData(
+                            multipartBodyBuilder.build()))
+                    .accept(MediaType.APPLICATION_JSON)
+                    .exchange()
+                    .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                    .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "1");
+        } finally {
+            controller.scheduler = scheduler;
+        }
+
+        verifyNoInteractions(service);
+    }
+
+    @Test
+    public void testApplyTransformWithoutImageOrBlobIsRejectedWith400() {
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder.part("filename", "foobar.png");
+
+        webTestClient
+                .post()
+                .uri("/" + APPLY_TRANSFORM + "?transform=" + GRAYSCALE_TRANSFORM)
+                .body(BodyInserters.fromMultipartData(
+                        multipartBodyBuilder.build()))
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        verify(service, never())
+                .applyTransform(any(), any(), any(), any(), any());
+    }
+}
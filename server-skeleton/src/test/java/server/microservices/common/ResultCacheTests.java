@@ -0,0 +1,162 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.Test;
+import server.common.model.TransformedImage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static server.common.Constants.Service.*;
+import static server.main.ImageFactory.randomImageBytes;
+
+/**
+ * These tests ensure that {@link ResultCache} only transforms an
+ * image the first time a transform and parameters are requested.
+ */
+public class ResultCacheTests {
+    private final List<String> transformed = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testRepeatedRequestIsCached() {
+        ResultCache cache = startedCache(1 << 20);
+        byte[] imageBytes = randomImageBytes();
+
+        TransformedImage first = cache.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                                           key -> transform("a.png", SEPIA_TRANSFORM));
+        TransformedImage second = cache.get("b.png", SEPIA_TRANSFORM, imageBytes.clone(), null,
+                                            key -> transform("b.png", SEPIA_TRANSFORM));
+
+        assertThat(transformed).containsExactly(SEPIA_TRANSFORM);
+        assertThat(second.getImageName()).isEqualTo("b.png");
+        assertThat(second.getEncodedBytes()).isEqualTo(first.getEncodedBytes());
+        assertThat(cache.stats()).containsEntry("hitCount", 1L);
+    }
+
+    @Test
+    public void testParamsArePartOfTheKey() {
+        ResultCache cache = startedCache(1 << 20);
+        byte[] imageBytes = randomImageBytes();
+
+        cache.get("a.png", TINT_TRANSFORM, imageBytes, new float[]{0, 0, .5f},
+                  key -> transform("a.png", TINT_TRANSFORM));
+        cache.get("a.png", TINT_TRANSFORM, imageBytes, new float[]{0, 0, .6f},
+                  key -> transform("a.png", TINT_TRANSFORM));
+
+        assertThat(transformed).hasSize(2);
+    }
+
+    @Test
+    public void testGetAllOnlyTransformsMisses() {
+        ResultCache cache = startedCache(1 << 20);
+        byte[] imageBytes = randomImageBytes();
+
+        cache.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                  key -> transform("a.png", SEPIA_TRANSFORM));
+        List<TransformedImage> results =
+                cache.getAll("a.png",
+                             List.of(GRAYSCALE_TRANSFORM, SEPIA_TRANSFORM, TINT_TRANSFORM),
+                             imageBytes,
+                             (hash, missed) -> missed.stream()
+                                     .map(name -> transform("a.png", name))
+                                     .collect(Collectors.toList()));
+
+        assertThat(transformed)
+                .containsExactly(SEPIA_TRANSFORM, GRAYSCALE_TRANSFORM, TINT_TRANSFORM);
+        assertThat(results)
+                .extracting(TransformedImage::getTransformName)
+                .containsExactly(GRAYSCALE_TRANSFORM, SEPIA_TRANSFORM, TINT_TRANSFORM);
+    }
+
+    @Test
+    public void testMissIsGivenTheComputedKey() {
+        ResultCache cache = startedCache(1 << 20);
+        byte[] imageBytes = randomImageBytes();
+        List<Object> given = new ArrayList<>();
+
+        cache.get("a.png", SEPIA_TRANSFORM, imageBytes, null, key -> {
+            given.add(key);
+            return transform("a.png", SEPIA_TRANSFORM);
+        });
+        cache.getAll("a.png", List.of(TINT_TRANSFORM), imageBytes, (hash, missed) -> {
+            given.add(hash);
+            return List.of(transform("a.png", TINT_TRANSFORM));
+        });
+
+        // The image is only hashed by the cache, and the loaders are
+        // given its hash to reuse.
+        ContentHash hash = new ContentHash(imageBytes);
+        assertThat(given).containsExactly(
+                new ResultCache.Key(hash, SEPIA_TRANSFORM, null), hash);
+    }
+
+    @Test
+    public void testMissIsTransformedOutsideTheCache() throws Exception {
+        ResultCache cache = startedCache(1 << 20);
+        byte[] imageBytes = randomImageBytes();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<TransformedImage> slow = executor.submit(
+                    () -> cache.get("a.png", SEPIA_TRANSFORM, imageBytes, null, key -> {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return transform("a.png", SEPIA_TRANSFORM);
+                    }));
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // Neither another key nor the same key waits for the
+            // running transform, which holds no lock of the cache.
+            cache.get("a.png", TINT_TRANSFORM, imageBytes, null,
+                      key -> transform("a.png", TINT_TRANSFORM));
+            cache.get("b.png", SEPIA_TRANSFORM, imageBytes, null,
+                      key -> transform("b.png", SEPIA_TRANSFORM));
+            assertThat(transformed).containsExactly(TINT_TRANSFORM, SEPIA_TRANSFORM);
+
+            release.countDown();
+            slow.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDisabledCacheAlwaysTransforms() {
+        ResultCache cache = startedCache(0);
+        byte[] imageBytes = randomImageBytes();
+
+        for (int i = 0; i < 2; i++) {
+            cache.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                      key -> transform("a.png", SEPIA_TRANSFORM));
+        }
+
+        assertThat(transformed).hasSize(2);
+        assertThat(cache.stats()).isEmpty();
+    }
+
+    private ResultCache startedCache(long maxBytes) {
+        ResultCache cache = new ResultCache();
+        cache.maxBytes = maxBytes;
+        cache.start();
+        return cache;
+    }
+
+    private TransformedImage transform(String fileName, String transform) {
+        transformed.add(transform);
+        return new TransformedImage(fileName, transform, (transform + transformed.size()).getBytes());
+    }
+}
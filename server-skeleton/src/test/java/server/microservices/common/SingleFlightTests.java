@@ -0,0 +1,191 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import server.common.Deadline;
+import server.common.model.TransformedImage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static server.common.Constants.Service.*;
+import static server.main.ImageFactory.randomImageBytes;
+
+/**
+ * These tests ensure that {@link SingleFlight} only transforms an
+ * image once for identical requests that overlap.
+ */
+public class SingleFlightTests {
+    private final AtomicInteger transformed = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private SingleFlight singleFlight;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void beforeEach() {
+        singleFlight = new SingleFlight();
+        singleFlight.enabled = true;
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOverlappingRequestsShareOneTransform() throws Exception {
+        byte[] imageBytes = randomImageBytes();
+
+        Future<TransformedImage> first = executor.submit(
+                () -> singleFlight.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                                       Deadline.NONE,
+                                       () -> blockingTransform("a.png", SEPIA_TRANSFORM)));
+        awaitInFlight();
+
+        // Let the first request finish once the second one waits.
+        new Thread(() -> {
+            awaitCoalesced();
+            release.countDown();
+        }).start();
+
+        TransformedImage second =
+                singleFlight.get("b.png", SEPIA_TRANSFORM, imageBytes.clone(), null,
+                                 Deadline.NONE,
+                                 () -> blockingTransform("b.png", SEPIA_TRANSFORM));
+
+        TransformedImage result = first.get(1, TimeUnit.SECONDS);
+
+        assertThat(transformed).hasValue(1);
+        assertThat(second.getImageName()).isEqualTo("b.png");
+        assertThat(second.getEncodedBytes()).isEqualTo(result.getEncodedBytes());
+        assertThat(singleFlight.stats())
+                .containsEntry("leaders", 1L)
+                .containsEntry("coalesced", 1L)
+                .containsEntry("inFlight", 0);
+    }
+
+    @Test
+    public void testWaitingRequestStopsAtItsDeadline() {
+        byte[] imageBytes = randomImageBytes();
+
+        executor.submit(() -> singleFlight.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                                               Deadline.NONE,
+                                               () -> blockingTransform("a.png", SEPIA_TRANSFORM)));
+        awaitInFlight();
+
+        assertThatThrownBy(() -> singleFlight.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                                                  Deadline.ofMillis(50L),
+                                                  () -> blockingTransform("a.png",
+                                                                          SEPIA_TRANSFORM)))
+                .isInstanceOf(Deadline.ExpiredException.class);
+
+        // It didn't transform the image itself either.
+        assertThat(transformed).hasValue(0);
+    }
+
+    @Test
+    public void testWaitingRequestStopsWhenCancelled() {
+        byte[] imageBytes = randomImageBytes();
+
+        executor.submit(() -> singleFlight.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                                               Deadline.NONE,
+                                               () -> blockingTransform("a.png", SEPIA_TRANSFORM)));
+        awaitInFlight();
+
+        // Cancel the untimed request once it waits.
+        Deadline deadline = Deadline.cancellable(null);
+        new Thread(() -> {
+            awaitCoalesced();
+            deadline.cancel();
+        }).start();
+
+        assertThatThrownBy(() -> singleFlight.get("a.png", SEPIA_TRANSFORM, imageBytes, null,
+                                                  deadline,
+                                                  () -> blockingTransform("a.png",
+                                                                          SEPIA_TRANSFORM)))
+                .isInstanceOf(Deadline.ExpiredException.class);
+
+        assertThat(transformed).hasValue(0);
+    }
+
+    @Test
+    public void testDifferentParamsAreNotCoalesced() {
+        byte[] imageBytes = randomImageBytes();
+
+        executor.submit(() -> singleFlight.get("a.png", TINT_TRANSFORM, imageBytes,
+                                               new float[]{0, 0, .5f},
+                                               Deadline.NONE,
+                                               () -> blockingTransform("a.png", TINT_TRANSFORM)));
+        awaitInFlight();
+
+        singleFlight.get("a.png", TINT_TRANSFORM, imageBytes, new float[]{0, 0, .6f},
+                         Deadline.NONE,
+                         () -> transform("a.png", TINT_TRANSFORM));
+
+        // The second request was transformed while the first one ran.
+        assertThat(transformed).hasValue(1);
+        assertThat(singleFlight.stats()).containsEntry("coalesced", 0L);
+    }
+
+    @Test
+    public void testGivenKeyIsNotComputedAgain() throws Exception {
+        ResultCache.Key key =
+                new ResultCache.Key(new ContentHash(randomImageBytes()), SEPIA_TRANSFORM, null);
+
+        // The bytes aren't hashed since the key is given, so requests
+        // with the same key coalesce whatever bytes they pass.
+        Future<TransformedImage> first = executor.submit(
+                () -> singleFlight.get("a.png", SEPIA_TRANSFORM, new byte[]{1}, null, key,
+                                       Deadline.NONE,
+                                       () -> blockingTransform("a.png", SEPIA_TRANSFORM)));
+        awaitInFlight();
+
+        new Thread(() -> {
+            awaitCoalesced();
+            release.countDown();
+        }).start();
+
+        singleFlight.get("b.png", SEPIA_TRANSFORM, new byte[]{2}, null, key,
+                         Deadline.NONE,
+                         () -> blockingTransform("b.png", SEPIA_TRANSFORM));
+        first.get(1, TimeUnit.SECONDS);
+
+        assertThat(transformed).hasValue(1);
+    }
+
+    private void awaitInFlight() {
+        while (!Integer.valueOf(1).equals(singleFlight.stats().get("inFlight"))) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void awaitCoalesced() {
+        while (!Long.valueOf(1).equals(singleFlight.stats().get("coalesced"))) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private TransformedImage blockingTransform(String fileName, String transform) {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return transform(fileName, transform);
+    }
+
+    private TransformedImage transform(String fileName, String transform) {
+        int count = transformed.incrementAndGet();
+        return new TransformedImage(fileName, transform, (transform + count).getBytes());
+    }
+}
@@ -0,0 +1,74 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * These tests ensure that running a transform in parallel row bands
+ * produces exactly the same pixels as a sequential pass.
+ */
+public class TileExecutorTests {
+    private static final int WIDTH = 333;
+    private static final int HEIGHT = 517;
+
+    private final Transforms transforms = new Transforms();
+    private TileExecutor tileExecutor;
+    private int[] pixels;
+
+    @BeforeEach
+    void beforeEach() {
+        tileExecutor = new TileExecutor();
+        tileExecutor.minTilePixels = 1024;
+        tileExecutor.start();
+
+        Random random = new Random(42);
+        pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        tileExecutor.stop();
+    }
+
+    @Test
+    public void testGrayScaleTilesMatchSequential() {
+        int[] expected = pixels.clone();
+        transforms.grayScale(expected, true);
+
+        tileExecutor.invoke(WIDTH, HEIGHT, (fromRow, toRow) ->
+                transforms.grayScale(pixels, fromRow * WIDTH, toRow * WIDTH, true));
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+
+    @Test
+    public void testSepiaTilesMatchSequential() {
+        int[] expected = pixels.clone();
+        transforms.sepia(expected, true);
+
+        tileExecutor.invoke(WIDTH, HEIGHT, (fromRow, toRow) ->
+                transforms.sepia(pixels, fromRow * WIDTH, toRow * WIDTH, true));
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+
+    @Test
+    public void testTintTilesMatchSequential() {
+        int[] expected = pixels.clone();
+        transforms.tint(expected, true, 0.0f, 0.0f, 0.9f);
+
+        tileExecutor.invoke(WIDTH, HEIGHT, (fromRow, toRow) ->
+                transforms.tint(pixels, fromRow * WIDTH, toRow * WIDTH,
+                                true, 0.0f, 0.0f, 0.9f));
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+}
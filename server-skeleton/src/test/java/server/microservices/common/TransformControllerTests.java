@@ -10,14 +10,21 @@ import org.springframework.http.MediaType;
 import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.web.reactive.function.BodyInserters;
+import server.common.Deadline;
 import server.common.model.TransformedImage;
 import server.microservices.grayscale.GrayScaleMicroservice;
 
+import java.util.List;
+
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 import static org.mockito.Mockito.*;
+import static server.common.Constants.EndPoint.APPLY_MULTI_TRANSFORM;
 import static server.common.Constants.EndPoint.APPLY_TRANSFORM;
+import static server.common.Constants.EndPoint.APPLY_TRANSFORM_BATCH;
+import static server.common.Constants.Service.GRAYSCALE_TRANSFORM;
 import static server.main.ImageFactory.randomImageBytes;
 import static server.main.ImageFactory.randomTransformedImage;
+import static server.main.ImageFactory.randomTransformedImages;
 
 @EnableDiscoveryClient(autoRegister = false)
 @SpringBootTest(classes = {GrayScaleMicroservice.class},
@@ -44,9 +51,11 @@ public class TransformControllerTests {
 
         when(service
                 .applyTransform(
-                        fileName,
-                        expected.getTransformName(),
-                        imageBytes))
+                        eq(fileName),
+                        eq(expected.getTransformName()),
+                        eq(imageBytes),
+                        isNull(),
+                        any(Deadline.class)))
                 .thenReturn(expected);
 
         TransformedImage result =
@@ -65,12 +74,126 @@ public class TransformControllerTests {
 
         verify(service, times(1))
                 .applyTransform(
-                        fileName,
-                        expected.getTransformName(),
-                        imageBytes);
+                        eq(fileName),
+                        eq(expected.getTransformName()),
+                        eq(imageBytes),
+                        isNull(),
+                        any(Deadline.class));
+
+        assertThat(result).isEqualTo(expected);
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testApplyTransformBatch() {
+        List<TransformedImage> expected = randomTransformedImages(2);
+        expected.get(0).setImageName("first.png");
+        expected.get(1).setImageName("second.png");
+        String transform = expected.get(0).getTransformName();
+        expected.get(1).setTransformName(transform);
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        for (TransformedImage image : expected) {
+            byte[] imageBytes = randomImageBytes();
+            multipartBodyBuilder
+                    .part("images", imageBytes)
+                    .filename(image.getImageName());
+            when(service
+                    .applyTransform(
+                            eq(image.getImageName()),
+                            eq(transform),
+                            eq(imageBytes),
+                            isNull(),
+                            any(Deadline.class)))
+                    .thenReturn(image);
+        }
+
+        List<TransformedImage> result =
+                webTestClient
+                        .post()
+                        .uri("/" + APPLY_TRANSFORM_BATCH + "?transform=" + transform)
+                        .body(BodyInserters.fromMultipartData(
+                                multipartBodyBuilder.build()))
+                        .accept(MediaType.APPLICATION_NDJSON)
+                        .exchange()
+                        .expectStatus().isOk()
+                        .returnResult(TransformedImage.class)
+                        .getResponseBody()
+                        .collectList()
+                        .block();
+
+        // The images are transformed in order, each tagged by its own
+        // file name.
+        assertThat(result).isEqualTo(expected);
+
+        clearInvocations(service);
+    }
+
+    @Test
+    public void testApplyTransforms() {
+        byte[] imageBytes = randomImageBytes();
+        List<TransformedImage> expected = randomTransformedImages(2);
+        List<String> transforms = List.of(expected.get(0).getTransformName(),
+                                          expected.get(1).getTransformName());
+        String fileName = "foobar.png";
+
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder
+                .part("image", imageBytes)
+                .filename(fileName);
+
+        when(service.applyTransforms(eq(fileName),
+                                     eq(transforms),
+                                     eq(imageBytes),
+                                     any(Deadline.class)))
+                .thenReturn(expected);
+
+        List<TransformedImage> result =
+                webTestClient
+                        .post()
+                        .uri(builder -> builder
+                                .path("/" + APPLY_MULTI_TRANSFORM)
+                                .queryParam("transforms", transforms)
+                                .build())
+                        .body(BodyInserters.fromMultipartData(
+                                multipartBodyBuilder.build()))
+                        .accept(MediaType.APPLICATION_JSON)
+                        .exchange()
+                        .expectStatus().isOk()
+                        .expectBodyList(TransformedImage.class)
+                        .returnResult()
+                        .getResponseBody();
+
+        verify(service, times(1))
+                .applyTransforms(eq(fileName),
+                                 eq(transforms),
+                                 eq(imageBytes),
+                                 any(Deadline.class));
 
         assertThat(result).isEqualTo(expected);
 
         clearInvocations(service);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testApplyTransformWithoutImageOrBlobIsRejectedWith400() {
+        MultipartBodyBuilder multipartBodyBuilder = new MultipartBodyBuilder();
+
+        multipartBodyBuilder.part("filename", "foobar.png");
+
+        webTestClient
+                .post()
+                .uri("/" + APPLY_TRANSFORM + "?transform=" + GRAYSCALE_TRANSFORM)
+                .body(BodyInserters.fromMultipartData(
+                        multipartBodyBuilder.build()))
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        verify(service, never())
+                .applyTransform(any(), any(), any(), any(), any());
+    }
+}
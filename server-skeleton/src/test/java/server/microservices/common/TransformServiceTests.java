@@ -5,15 +5,25 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.http.HttpStatus;
 import org.springframework.test.context.ContextConfiguration;
 import server.common.Components;
+import server.common.ImageUtils;
+import server.common.Deadline;
 import server.common.model.TransformedImage;
 import server.main.MainApplication;
 import server.main.MainService;
 
+import java.awt.image.BufferedImage;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.assertj.core.api.AssertionsForClassTypes.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.Mockito.*;
@@ -71,4 +81,244 @@ public class TransformServiceTests {
         verify(transforms, times(1)).tint(
                 any(int[].class), anyBoolean(), anyFloat(), anyFloat(), anyFloat());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExpiredRequestIsNotTransformed() {
+        TransformService service = new TransformService();
+        service.transforms = transforms;
+
+        assertThatThrownBy(() -> service.applyTransform(
+                "image.png",
+                GRAYSCALE_TRANSFORM,
+                randomImageBytes(),
+                null,
+                Deadline.ofMillis(0L)))
+                .isInstanceOf(Deadline.ExpiredException.class);
+
+        verifyNoInteractions(transforms);
+    }
+
+    @Test
+    public void testCancellableRequestIsNotSplitIntoBands() {
+        TransformService service = new TransformService();
+        service.transforms = transforms;
+
+        service.applyTransform("image.png",
+                               GRAYSCALE_TRANSFORM,
+                               randomImageBytes(),
+                               null,
+                               Deadline.cancellable(null));
+
+        // Without a time limit the whole image is transformed at once.
+        verify(transforms, times(1)).grayScale(any(int[].class), anyBoolean());
+        verify(transforms, never())
+                .grayScale(any(int[].class), anyInt(), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void testCancelledRequestIsNotTransformed() {
+        TransformService service = new TransformService();
+        service.transforms = transforms;
+
+        Deadline deadline = Deadline.cancellable(null);
+        deadline.cancel();
+
+        assertThatThrownBy(() -> service.applyTransforms(
+                "image.png",
+                List.of(GRAYSCALE_TRANSFORM),
+                randomImageBytes(),
+                deadline))
+                .isInstanceOf(Deadline.ExpiredException.class);
+
+        verifyNoInteractions(transforms);
+        assertThat(service.metrics().get("cancelledRequests")).isEqualTo(1L);
+    }
+
+    @Test
+    public void testIdenticalRequestsShareOneTransformWithTheCacheEnabled()
+            throws Exception {
+        TransformService service = new TransformService();
+        service.transforms = transforms;
+        service.resultCache.maxBytes = 1 << 20;
+        service.resultCache.start();
+        service.singleFlight.enabled = true;
+        byte[] imageBytes = randomImageBytes();
+
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(transforms).sepia(any(int[].class), anyBoolean());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TransformedImage> leader = executor.submit(
+                    () -> service.applyTransform("a.png",
+                                                 SEPIA_TRANSFORM,
+                                                 imageBytes,
+                                                 null,
+                                                 Deadline.NONE));
+            while (!Integer.valueOf(1).equals(service.singleFlight.stats().get("inFlight"))) {
+                Thread.onSpinWait();
+            }
+
+            // An identical request joins the running transform rather
+            // than waiting inside the cache, so it stops at its own
+            // deadline.
+            assertThatThrownBy(() -> service.applyTransform("b.png",
+                                                            SEPIA_TRANSFORM,
+                                                            imageBytes.clone(),
+                                                            null,
+                                                            Deadline.ofMillis(50L)))
+                    .isInstanceOf(Deadline.ExpiredException.class);
+
+            release.countDown();
+            leader.get(5, TimeUnit.SECONDS);
+
+            // Once it's done, the result is cached.
+            TransformedImage cached = service.applyTransform("c.png",
+                                                             SEPIA_TRANSFORM,
+                                                             imageBytes,
+                                                             null,
+                                                             Deadline.NONE);
+            assertThat(cached.getImageName()).isEqualTo("c.png");
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+
+        verify(transforms, times(1)).sepia(any(int[].class), anyBoolean());
+        assertThat(service.singleFlight.stats().get("coalesced")).isEqualTo(1L);
+    }
+
+    @Test
+    public void testInvalidParamsAreRejectedWith400() {
+        TransformService service = new TransformService();
+        service.transforms = transforms;
+
+        float[][] invalid = {
+                {0.5f, 0.5f},
+                {0.5f, 0.5f, Float.NaN},
+                {0.5f, 1.5f, 0.5f}};
+
+        for (float[] params : invalid) {
+            assertThatThrownBy(() -> service.applyTransform(
+                    "image.png",
+                    TINT_TRANSFORM,
+                    randomImageBytes(),
+                    params,
+                    Deadline.NONE))
+                    .isInstanceOf(TransformService.InvalidParamsException.class)
+                    .extracting("status")
+                    .isEqualTo(HttpStatus.BAD_REQUEST);
+        }
+
+        assertThatThrownBy(() -> service.applyTransform(
+                "image.png",
+                COLOR_MATRIX_TRANSFORM,
+                randomImageBytes(),
+                new float[] {1, 2, 3},
+                Deadline.NONE))
+                .isInstanceOf(TransformService.InvalidParamsException.class)
+                .extracting("status")
+                .isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    @Test
+    public void testChainsWithEmptyStagesAreRejected() {
+        TransformService service = new TransformService();
+        service.transforms = new Transforms();
+
+        for (String chain : List.of(SEPIA_TRANSFORM + CHAIN_SEPARATOR,
+                                    CHAIN_SEPARATOR + SEPIA_TRANSFORM,
+                                    SEPIA_TRANSFORM + CHAIN_SEPARATOR
+                                    + CHAIN_SEPARATOR + TINT_TRANSFORM)) {
+            assertThatThrownBy(() -> service.applyTransform(
+                    "image.png",
+                    chain,
+                    randomImageBytes(),
+                    null,
+                    Deadline.NONE))
+                    .as(chain)
+                    .isInstanceOf(TransformService.InvalidParamsException.class);
+        }
+    }
+
+    @Test
+    public void testUnknownTransformsAreRejectedWith400() {
+        TransformService service = new TransformService();
+        service.transforms = new Transforms();
+
+        for (boolean colorMatrix : new boolean[] {false, true}) {
+            service.colorMatrix = colorMatrix;
+
+            for (String transform : List.of("NoSuchTransform",
+                                            SEPIA_TRANSFORM + CHAIN_SEPARATOR
+                                            + "NoSuchTransform")) {
+                assertThatThrownBy(() -> service.applyTransform(
+                        "image.png",
+                        transform,
+                        randomImageBytes(),
+                        null,
+                        Deadline.NONE))
+                        .as(transform)
+                        .isInstanceOf(TransformService.InvalidParamsException.class)
+                        .extracting("status")
+                        .isEqualTo(HttpStatus.BAD_REQUEST);
+            }
+        }
+    }
+
+    @Test
+    public void testChainMatchesTransformsAppliedInTurn() {
+        TransformService service = new TransformService();
+        service.transforms = new Transforms();
+        byte[] imageBytes = randomImageBytes();
+
+        byte[] sequential = imageBytes;
+        for (String transform : List.of(SEPIA_TRANSFORM, TINT_TRANSFORM)) {
+            sequential = service.applyTransform("image.png",
+                                                transform,
+                                                sequential)
+                    .getBytes();
+        }
+
+        TransformedImage fused = service.applyTransform(
+                "image.png",
+                SEPIA_TRANSFORM + CHAIN_SEPARATOR + TINT_TRANSFORM,
+                imageBytes);
+
+        assertThat(pixels(fused.getBytes()))
+                .isEqualTo(pixels(sequential));
+    }
+
+    @Test
+    public void testApplyTransformsMatchesEachTransform() {
+        TransformService service = new TransformService();
+        service.transforms = new Transforms();
+        byte[] imageBytes = randomImageBytes();
+        List<String> transformNames = List.of(GRAYSCALE_TRANSFORM,
+                                              SEPIA_TRANSFORM,
+                                              TINT_TRANSFORM);
+
+        List<TransformedImage> results =
+                service.applyTransforms("image.png", transformNames, imageBytes);
+
+        assertThat(results).hasSize(transformNames.size());
+        for (int i = 0; i < transformNames.size(); i++) {
+            TransformedImage expected = service.applyTransform(
+                    "image.png", transformNames.get(i), imageBytes);
+
+            assertThat(results.get(i).getTransformName())
+                    .isEqualTo(transformNames.get(i));
+            assertThat(pixels(results.get(i).getBytes()))
+                    .isEqualTo(pixels(expected.getBytes()));
+        }
+    }
+
+    private static int[] pixels(byte[] imageBytes) {
+        BufferedImage image = ImageUtils.toBufferedImage(imageBytes);
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(),
+                            null, 0, image.getWidth());
+    }
+}
@@ -0,0 +1,88 @@
+package server.microservices.common;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.Offset.offset;
+
+/**
+ * These tests validate the fixed-point transform kernels against the
+ * original floating-point kernels.
+ */
+public class TransformsTests {
+    private final Transforms floatTransforms = new Transforms();
+    private final Transforms fixedTransforms = new Transforms();
+    private int[] pixels;
+
+    @BeforeEach
+    void beforeEach() {
+        fixedTransforms.arithmetic = Transforms.Arithmetic.FIXED_POINT;
+
+        // Every 24-bit color with a random alpha value.
+        Random random = new Random(11);
+        pixels = new int[1 << 24];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (random.nextInt(256) << 24) | i;
+        }
+    }
+
+    @Test
+    public void testFixedPointGrayScaleWithinOneLevel() {
+        int[] expected = pixels.clone();
+        floatTransforms.grayScale(expected, true);
+        fixedTransforms.grayScale(pixels, true);
+
+        int mismatches = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != expected[i]) {
+                mismatches++;
+                assertThat(pixels[i] & 0xFF)
+                        .isCloseTo(expected[i] & 0xFF,
+                                   offset(1));
+            }
+        }
+
+        // Fewer than 0.1% of all colors may differ.
+        assertThat(mismatches).isLessThan(pixels.length / 1000);
+    }
+
+    @Test
+    public void testFixedPointSepiaIsExact() {
+        int[] expected = pixels.clone();
+        floatTransforms.sepia(expected, true);
+        fixedTransforms.sepia(pixels, true);
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+
+    @Test
+    public void testFixedPointTintIsExact() {
+        int[] expected = pixels.clone();
+        floatTransforms.tint(expected, true, 0.0f, 0.0f, 0.9f);
+        fixedTransforms.tint(pixels, true, 0.0f, 0.0f, 0.9f);
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+
+    @Test
+    public void testFixedPointTintBandsUseTheirOwnTint() {
+        // Alternate tints band by band, so each band reuses or
+        // replaces the cached tables of the last one.
+        float[][] tints = {{0.0f, 0.0f, 0.9f}, {0.3f, 0.5f, 0.1f}};
+        int band = 1 << 16;
+
+        int[] expected = pixels.clone();
+        for (int from = 0, i = 0; from < pixels.length; from += band, i++) {
+            float[] tint = tints[i % tints.length];
+            floatTransforms.tint(expected, from, from + band, true,
+                                 tint[0], tint[1], tint[2]);
+            fixedTransforms.tint(pixels, from, from + band, true,
+                                 tint[0], tint[1], tint[2]);
+        }
+
+        assertThat(pixels).isEqualTo(expected);
+    }
+}